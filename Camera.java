@@ -5,6 +5,11 @@ import com.jogamp.opengl.awt.GLCanvas;
 /**
  * Class for camera-related functionality (editing angles, target, position, parsing user inputs,
  * etc.).
+ * 
+ * The view, view-projection and frustum are cached: every change to the position, orientation or
+ * perspective bumps a change count, and each cached value is only recalculated when the count has
+ * moved on since it was last calculated. Within a frame every user therefore shares one view and
+ * one view-projection product.
  */
 public class Camera {
 	public enum CameraType {X, Z};
@@ -31,7 +36,17 @@ public class Camera {
 	private float yaw;
 	private float pitch;
 	
-	private Mat4 perspective;
+	private Mat4 perspective = new Mat4(1);
+	private Mat4 view = new Mat4(1);
+	private Mat4 viewProjection = new Mat4(1);
+	private Frustum frustum = new Frustum();
+
+	// Incremented whenever anything the cached matrices depend on changes
+	private int changeCount = 0;
+	// The change count each cached value was calculated at
+	private int viewStamp = -1;
+	private int viewProjectionStamp = -1;
+	private int frustumStamp = -1;
 
 	/**
 	 * Constructor. Creates a camera object with a position vector, target vector and an up vector.
@@ -62,6 +77,7 @@ public class Camera {
 		calculateYawPitch(front);
 		worldUp = new Vec3(up);
 		updateCameraVectors();
+		changeCount++;
 	}
 	
 	/**
@@ -72,6 +88,20 @@ public class Camera {
 	public Vec3 getPosition() {
 		return new Vec3(position);
 	}
+
+	/**
+	 * Copy the current position of the camera into a vector, without creating a new one (used
+	 * where the position is read for every model each frame).
+	 * 
+	 * @param dest The vector set to the position.
+	 * @return The vector given.
+	 */
+	public Vec3 getPosition(Vec3 dest) {
+		dest.x = position.x;
+		dest.y = position.y;
+		dest.z = position.z;
+		return dest;
+	}
 	
 	/**
 	 * Set the current position of the camera object in the world to a new position.
@@ -115,22 +145,41 @@ public class Camera {
 	}
 
 	/**
-	 * Get the current view of the camera in a matrix format.
+	 * Get the number of changes made to the camera so far. Two calls returning the same count
+	 * mean the view and projection have not changed in between.
+	 * 
+	 * @return The change count of the camera.
+	 */
+	public int getChangeCount() {
+		return changeCount;
+	}
+
+	/**
+	 * Get the current view of the camera in a matrix format. The matrix is owned by the camera
+	 * and only recalculated after the camera has changed, so it should be copied rather than
+	 * modified.
 	 * 
 	 * @return The view of the camera.
 	 */
 	public Mat4 getViewMatrix() {
-		target = Vec3.add(position, front);
-		return Mat4Transform.lookAt(position, target, up);
+		if (viewStamp != changeCount) {
+			target.x = position.x + front.x;
+			target.y = position.y + front.y;
+			target.z = position.z + front.z;
+			Mat4Transform.lookAtInto(position, target, up, view);
+			viewStamp = changeCount;
+		}
+		return view;
 	}
 	
 	/**
-	 * Set the perspective of the camera.
+	 * Set the perspective of the camera. The matrix is copied.
 	 * 
 	 * @param m The new perspective of the camera as a matrix.
 	 */
 	public void setPerspectiveMatrix(Mat4 m) {
-		perspective = m;
+		perspective.set(m);
+		changeCount++;
 	}
 	
 	/**
@@ -142,6 +191,35 @@ public class Camera {
 		return perspective;
 	}
 
+	/**
+	 * Get the combined perspective and view matrix of the camera. The matrix is owned by the
+	 * camera and only recalculated after the camera has changed, so it should be copied rather
+	 * than modified.
+	 * 
+	 * @return The view-projection matrix of the camera.
+	 */
+	public Mat4 getViewProjection() {
+		if (viewProjectionStamp != changeCount) {
+			Mat4.multiplyInto(perspective, getViewMatrix(), viewProjection);
+			viewProjectionStamp = changeCount;
+		}
+		return viewProjection;
+	}
+
+	/**
+	 * Get the view frustum of the camera, extracted from the view-projection matrix. The frustum
+	 * is owned by the camera and only recalculated after the camera has changed.
+	 * 
+	 * @return The view frustum of the camera.
+	 */
+	public Frustum getFrustum() {
+		if (frustumStamp != changeCount) {
+			frustum.set(getViewProjection());
+			frustumStamp = changeCount;
+		}
+		return frustum;
+	}
+
 	/**
 	 * Change the position of the camera based on the user's inputs via the arrow keys, A key and
 	 * Z key.
@@ -158,6 +236,7 @@ public class Camera {
 			case FORWARD: position.add(Vec3.multiply(front, KEYBOARD_SPEED)); break;
 			case BACK: position.add(Vec3.multiply(front, -KEYBOARD_SPEED)); break;
 		}
+		if (movement != Movement.NO_MOVEMENT) changeCount++;
 	}
 	
 	/**
@@ -173,6 +252,7 @@ public class Camera {
 		else if (pitch < -89) pitch = -89;
 		updateFront();
 		updateCameraVectors();
+		changeCount++;
 	}
 	
 	/**
@@ -188,7 +268,9 @@ public class Camera {
 		front.y = (float)(sp);
 		front.z = (float)(sy*cp);
 		front.normalize();
-		target = Vec3.add(position,front);
+		target.x = position.x + front.x;
+		target.y = position.y + front.y;
+		target.z = position.z + front.z;
 	}
 	
 	/**
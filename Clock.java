@@ -0,0 +1,44 @@
+/**
+ * Class for the time used by animation and simulation. Normally this is the system time, but it
+ * can be switched to a manual clock that only moves when advanced, so that runs such as the
+ * headless benchmark animate exactly the same way every time.
+ */
+public final class Clock {
+	private static volatile boolean manual = false;
+	private static volatile long manualNanos = 0;
+
+	/**
+	 * Get the current time in nanoseconds (only meaningful relative to other calls).
+	 *
+	 * @return The current time in nanoseconds.
+	 */
+	public static long nanoTime() {
+		return manual ? manualNanos : System.nanoTime();
+	}
+
+	/**
+	 * Get the current time in seconds.
+	 *
+	 * @return The current time in seconds in a double format.
+	 */
+	public static double getSeconds() {
+		return manual ? manualNanos/1000000000.0 : System.currentTimeMillis()/1000.0;
+	}
+
+	/**
+	 * Switch to a manual clock that starts at zero and only moves when advanced.
+	 */
+	public static void useManualTime() {
+		manualNanos = 0;
+		manual = true;
+	}
+
+	/**
+	 * Move the manual clock forwards.
+	 *
+	 * @param nanos The amount of time to move forwards in nanoseconds.
+	 */
+	public static void advance(long nanos) {
+		manualNanos += nanos;
+	}
+}
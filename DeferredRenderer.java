@@ -0,0 +1,198 @@
+import gmaths.*;
+import java.util.List;
+import com.jogamp.opengl.*;
+
+/**
+ * Class for the deferred shading path, used instead of lighting every fragment as it is drawn
+ * when the scene is started with deferred shading on.
+ *
+ * In the geometry pass the models are drawn into a G-buffer (a framebuffer with albedo,
+ * specular/shininess, normal and position targets plus depth), with their shaders compiled with
+ * DEFINE so that they only write their surface. The lights are then applied in screen space:
+ * one full-screen pass for the global lights, and a light volume (a sphere the size of the
+ * light's range, drawn with additive blending) for each point light and spotlight, so each
+ * visible pixel is lit once per light that reaches it however many surfaces were drawn over it.
+ */
+public class DeferredRenderer {
+	// Defined in every shader when deferred shading is on (see ShaderCache.setGlobalDefines)
+	public static final String DEFINE = "DEFERRED";
+	// Defined in the lighting shader for the light volume pass
+	private static final String VOLUME_DEFINE = "LIGHT_VOLUME";
+	// Texture unit of the first G-buffer texture (after the material textures and light buffers)
+	private static final int FIRST_UNIT = LightManager.LIGHT_INDEX_UNIT + 1;
+	private static final String[] TARGET_NAMES = {"gAlbedo", "gSpecular", "gNormal", "gPosition",
+	                                              "gDepth"};
+	private static final int[] TARGET_FORMATS = {GL.GL_RGBA8, GL.GL_RGBA16F, GL.GL_RGBA16F,
+	                                             GL.GL_RGBA32F};
+	private static final int COLOUR_TARGETS = TARGET_FORMATS.length;
+	// The sphere mesh has a radius of 0.5, and its flat faces lie slightly inside the true sphere
+	private static final float VOLUME_SCALE = 2*1.02f;
+	// Volume radius used for lights with no attenuation (depth clamping keeps it within the view)
+	private static final float MAX_VOLUME_RADIUS = 1000f;
+
+	private int[] framebufferId = new int[1];
+	private int[] textureIds = new int[COLOUR_TARGETS + 1];
+	private int[] emptyVertexArrayId = new int[1];
+	private int width = 0, height = 0;
+
+	private Mesh sphere;
+	private Shader globalShader, volumeShader;
+	private UniformHandle modelUniform, lightIndexUniform, lightDataUniform;
+	private Mat4 volumeModel = new Mat4(1);
+
+	/**
+	 * Constructor. Create the G-buffer framebuffer (its textures are made by resize) and load the
+	 * lighting shaders.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 */
+	public DeferredRenderer(GL3 gl) {
+		gl.glGenFramebuffers(1, framebufferId, 0);
+		// The full-screen pass makes its triangle from gl_VertexID, but a vertex array must be bound
+		gl.glGenVertexArrays(1, emptyVertexArrayId, 0);
+		sphere = MeshRegistry.acquire(gl, MeshRegistry.Primitive.SPHERE);
+
+		globalShader = ShaderCache.get(
+			gl, "assets/shaders/vs_fullscreen.txt", "assets/shaders/fs_deferred_light.txt");
+		volumeShader = ShaderCache.get(
+			gl, "assets/shaders/vs_light_01.txt", "assets/shaders/fs_deferred_light.txt",
+			VOLUME_DEFINE);
+		modelUniform = volumeShader.getUniform("model");
+		lightIndexUniform = volumeShader.getUniform("lightIndex");
+		lightDataUniform = volumeShader.getUniform("lightData");
+		Shader[] shaders = {globalShader, volumeShader};
+		for (Shader shader : shaders) {
+			shader.use(gl);
+			for (int i=0; i<TARGET_NAMES.length; i++) {
+				shader.getUniform(TARGET_NAMES[i]).setInt(gl, FIRST_UNIT + i);
+			}
+		}
+		lightDataUniform.setInt(gl, LightManager.LIGHT_DATA_UNIT);
+		volumeShader.getUniform("shadowMaps").setInt(gl, ShadowRenderer.SHADOW_MAP_UNIT);
+		RenderState.invalidate();
+	}
+
+	/**
+	 * Resize the G-buffer to match the drawing area (called when the window is resized).
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param width The width of the drawing area in pixels.
+	 * @param height The height of the drawing area in pixels.
+	 */
+	public void resize(GL3 gl, int width, int height) {
+		if (width == this.width && height == this.height) return;
+		this.width = width;
+		this.height = height;
+		if (textureIds[0] != 0) gl.glDeleteTextures(textureIds.length, textureIds, 0);
+		gl.glGenTextures(textureIds.length, textureIds, 0);
+
+		gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, framebufferId[0]);
+		int[] drawBuffers = new int[COLOUR_TARGETS];
+		for (int i=0; i<=COLOUR_TARGETS; i++) {
+			boolean depth = i == COLOUR_TARGETS;
+			gl.glBindTexture(GL.GL_TEXTURE_2D, textureIds[i]);
+			if (depth) {
+				gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, GL.GL_DEPTH_COMPONENT24, width, height, 0,
+				                GL3.GL_DEPTH_COMPONENT, GL.GL_UNSIGNED_INT, null);
+			}
+			else {
+				gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, TARGET_FORMATS[i], width, height, 0,
+				                GL.GL_RGBA, GL.GL_FLOAT, null);
+			}
+			// Only read with texelFetch, but a texture without mipmaps must not use mipmap filtering
+			gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER, GL.GL_NEAREST);
+			gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAG_FILTER, GL.GL_NEAREST);
+			int attachment = depth ? GL.GL_DEPTH_ATTACHMENT : GL.GL_COLOR_ATTACHMENT0 + i;
+			gl.glFramebufferTexture2D(GL.GL_FRAMEBUFFER, attachment, GL.GL_TEXTURE_2D,
+			                          textureIds[i], 0);
+			if (!depth) drawBuffers[i] = attachment;
+		}
+		gl.glDrawBuffers(COLOUR_TARGETS, drawBuffers, 0);
+		int status = gl.glCheckFramebufferStatus(GL.GL_FRAMEBUFFER);
+		if (status != GL.GL_FRAMEBUFFER_COMPLETE)
+			System.err.println("[error] G-buffer framebuffer is incomplete: 0x"
+			                   + Integer.toHexString(status));
+		gl.glBindTexture(GL.GL_TEXTURE_2D, 0);
+		gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, gl.getDefaultDrawFramebuffer());
+		RenderState.invalidate();
+	}
+
+	/**
+	 * Start the geometry pass: models drawn from now until light() is called are written into the
+	 * G-buffer.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 */
+	public void beginGeometry(GL3 gl) {
+		gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, framebufferId[0]);
+		gl.glClear(GL.GL_COLOR_BUFFER_BIT | GL.GL_DEPTH_BUFFER_BIT);
+	}
+
+	/**
+	 * End the geometry pass and light the G-buffer into the window's framebuffer: the global
+	 * lights in one full-screen pass (which also writes the scene's depth, so the light markers
+	 * and skybox drawn after this are hidden behind it), then a light volume for every point
+	 * light and spotlight. The light buffers must already have been uploaded by the LightManager
+	 * this frame.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param lightManager The lights in the scene.
+	 */
+	public void light(GL3 gl, LightManager lightManager) {
+		gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, gl.getDefaultDrawFramebuffer());
+		for (int i=0; i<textureIds.length; i++) {
+			gl.glActiveTexture(GL.GL_TEXTURE0 + FIRST_UNIT + i);
+			gl.glBindTexture(GL.GL_TEXTURE_2D, textureIds[i]);
+		}
+		gl.glActiveTexture(GL.GL_TEXTURE0);
+
+		// Global lights, over every pixel with a surface (the others are discarded)
+		globalShader.use(gl);
+		gl.glBindVertexArray(emptyVertexArrayId[0]);
+		gl.glDrawArrays(GL.GL_TRIANGLES, 0, 3);
+		RenderState.countDrawCall(1);
+		gl.glBindVertexArray(0);
+
+		/* Point lights and spotlights, added over the pixels inside their volumes. Only back faces
+		   are drawn, and only where they are behind the surface, so each pixel is lit once by each
+		   volume (also when the camera is inside it). Depth clamping stops the far plane cutting
+		   off the back of a large volume. */
+		gl.glEnable(GL.GL_BLEND);
+		gl.glBlendFunc(GL.GL_ONE, GL.GL_ONE);
+		gl.glEnable(GL.GL_CULL_FACE);
+		gl.glCullFace(GL.GL_FRONT);
+		gl.glEnable(GL3.GL_DEPTH_CLAMP);
+		gl.glDepthFunc(GL.GL_GEQUAL);
+		gl.glDepthMask(false);
+		volumeShader.use(gl);
+		List<Light> lights = lightManager.getClusteredLights();
+		for (int i=0; i<lights.size(); i++) {
+			Light light = lights.get(i);
+			float scale = Math.min(light.getRange(), MAX_VOLUME_RADIUS)*VOLUME_SCALE;
+			volumeModel.setIdentity().translate(light.getPosition()).scale(scale, scale, scale);
+			modelUniform.setFloatArray(gl, volumeModel.toFloatArrayForGLSL());
+			lightIndexUniform.setInt(gl, i);
+			sphere.render(gl);
+		}
+		gl.glDepthMask(true);
+		gl.glDepthFunc(GL.GL_LESS);
+		gl.glDisable(GL3.GL_DEPTH_CLAMP);
+		gl.glDisable(GL.GL_CULL_FACE);
+		gl.glCullFace(GL.GL_BACK);
+		gl.glDisable(GL.GL_BLEND);
+		// Programs and textures were changed behind the render state's back
+		RenderState.invalidate();
+	}
+
+	/**
+	 * Delete the G-buffer and release the (shared) sphere mesh.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 */
+	public void dispose(GL3 gl) {
+		gl.glDeleteFramebuffers(1, framebufferId, 0);
+		if (textureIds[0] != 0) gl.glDeleteTextures(textureIds.length, textureIds, 0);
+		gl.glDeleteVertexArrays(1, emptyVertexArrayId, 0);
+		sphere.dispose(gl);
+	}
+}
@@ -0,0 +1,51 @@
+/**
+ * Class for the 64-bit FNV-1a hash, used to name cache files after their contents (TextureCache,
+ * ShaderCache) and to sign the casters of a shadow map (ShadowRenderer). It is fast and spreads
+ * small changes well, but is not a cryptographic hash.
+ */
+public final class Fnv1aHash {
+	// Starting value of every hash
+	public static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long PRIME = 0x100000001b3L;
+
+	/**
+	 * Fold a value into a hash.
+	 *
+	 * @param h The hash so far.
+	 * @param value The value to fold in.
+	 * @return The new hash.
+	 */
+	public static long add(long h, int value) {
+		return (h ^ value)*PRIME;
+	}
+
+	/**
+	 * Fold floats (as their bits) into a hash.
+	 *
+	 * @param h The hash so far.
+	 * @param values The array holding the floats.
+	 * @param offset The index of the first float.
+	 * @param length The number of floats.
+	 * @return The new hash.
+	 */
+	public static long add(long h, float[] values, int offset, int length) {
+		for (int i=offset; i<offset+length; i++) {
+			h = (h ^ Float.floatToRawIntBits(values[i]))*PRIME;
+		}
+		return h;
+	}
+
+	/**
+	 * Hash a string (one character at a time) for use in a file name.
+	 *
+	 * @param s The string to hash.
+	 * @return A 16 character hexadecimal hash.
+	 */
+	public static String toFileName(String s) {
+		long h = OFFSET_BASIS;
+		for (int i=0; i<s.length(); i++) {
+			h = add(h, s.charAt(i));
+		}
+		return String.format("%016x", h);
+	}
+}
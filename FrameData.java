@@ -0,0 +1,118 @@
+import gmaths.*;
+import java.nio.*;
+import com.jogamp.common.nio.*;
+import com.jogamp.opengl.*;
+
+/**
+ * Class for the per-frame data shared by every shader (camera view-projection/position, the global
+ * lights and the layout of the light cluster grid). The data is stored in a std140 uniform buffer
+ * object that is written once per frame and bound to a fixed binding point, rather than being set
+ * on every model for every draw. Point lights and spotlights are not stored here; they are found
+ * through the cluster grid uploaded by the LightManager.
+ */
+public class FrameData {
+	public static final String BLOCK_NAME = "FrameData";
+	public static final int BINDING_POINT = 0;
+	// Maximum number of global lights (must match MAX_POINT_LIGHTS in the shaders)
+	public static final int MAX_LIGHTS = 10;
+
+	// std140 byte offsets of the members of the FrameData uniform block
+	private static final int VIEW_PROJECTION_OFFSET = 0;
+	private static final int VIEW_POS_OFFSET = 64;
+	private static final int NUM_LIGHTS_OFFSET = 76;
+	private static final int LIGHTS_OFFSET = 80;
+	private static final int LIGHT_STRIDE = 80;
+	private static final int CLUSTER_COUNTS_OFFSET = LIGHTS_OFFSET + MAX_LIGHTS*LIGHT_STRIDE;
+	private static final int CLUSTER_DEPTH_SCALE_OFFSET = CLUSTER_COUNTS_OFFSET + 12;
+	private static final int CLUSTER_DEPTH_BIAS_OFFSET = CLUSTER_COUNTS_OFFSET + 16;
+	// Rounded up to a multiple of 16 bytes, as std140 does
+	private static final int SIZE = CLUSTER_COUNTS_OFFSET + 32;
+
+	private int[] bufferId = new int[1];
+	private ByteBuffer data;
+
+	/**
+	 * Constructor. Create the uniform buffer and attach it to the binding point used by every
+	 * shader's FrameData block.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 */
+	public FrameData(GL3 gl) {
+		data = Buffers.newDirectByteBuffer(SIZE);
+		gl.glGenBuffers(1, bufferId, 0);
+		gl.glBindBuffer(GL3.GL_UNIFORM_BUFFER, bufferId[0]);
+		gl.glBufferData(GL3.GL_UNIFORM_BUFFER, SIZE, null, GL3.GL_STREAM_DRAW);
+		gl.glBindBuffer(GL3.GL_UNIFORM_BUFFER, 0);
+		gl.glBindBufferBase(GL3.GL_UNIFORM_BUFFER, BINDING_POINT, bufferId[0]);
+	}
+
+	/**
+	 * Write the current camera and global light values, and the cluster grid layout, into the
+	 * uniform buffer. Called once per frame (after the LightManager has been updated) before any
+	 * models are drawn.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param camera The camera in the scene.
+	 * @param lightManager The lights in the scene.
+	 */
+	public void update(GL3 gl, Camera camera, LightManager lightManager) {
+		float[] vp = camera.getViewProjection().toFloatArrayForGLSL();
+		for (int i=0; i<16; i++) {
+			data.putFloat(VIEW_PROJECTION_OFFSET + i*Float.BYTES, vp[i]);
+		}
+		putVec3(VIEW_POS_OFFSET, camera.getPosition());
+
+		java.util.List<Light> lights = lightManager.getGlobalLights();
+		int numLights = Math.min(lights.size(), MAX_LIGHTS);
+		data.putInt(NUM_LIGHTS_OFFSET, numLights);
+		for (int i=0; i<numLights; i++) {
+			// Each vec3 is followed by a float that fills the rest of its 16 byte slot
+			int base = LIGHTS_OFFSET + i*LIGHT_STRIDE;
+			Light light = lights.get(i);
+			Material material = light.getMaterial();
+			putVec3(base, light.getPosition());
+			data.putFloat(base + 12, light.getCutOff());
+			putVec3(base + 16, material.getAmbient());
+			data.putFloat(base + 28, light.getOuterCutOff());
+			putVec3(base + 32, material.getDiffuse());
+			data.putFloat(base + 44, light.getConstant());
+			putVec3(base + 48, material.getSpecular());
+			data.putFloat(base + 60, light.getLinear());
+			putVec3(base + 64, light.getDirection());
+			data.putFloat(base + 76, light.getQuadratic());
+		}
+
+		data.putInt(CLUSTER_COUNTS_OFFSET, LightManager.CLUSTERS_X);
+		data.putInt(CLUSTER_COUNTS_OFFSET + 4, LightManager.CLUSTERS_Y);
+		data.putInt(CLUSTER_COUNTS_OFFSET + 8, LightManager.CLUSTERS_Z);
+		data.putFloat(CLUSTER_DEPTH_SCALE_OFFSET, lightManager.getDepthScale());
+		data.putFloat(CLUSTER_DEPTH_BIAS_OFFSET, lightManager.getDepthBias());
+
+		gl.glBindBuffer(GL3.GL_UNIFORM_BUFFER, bufferId[0]);
+		// Orphan last frame's storage so the driver does not wait for draws still using it
+		gl.glBufferData(GL3.GL_UNIFORM_BUFFER, SIZE, null, GL3.GL_STREAM_DRAW);
+		gl.glBufferSubData(GL3.GL_UNIFORM_BUFFER, 0, SIZE, data);
+		gl.glBindBuffer(GL3.GL_UNIFORM_BUFFER, 0);
+	}
+
+	/**
+	 * Store a 3D vector in the data buffer.
+	 *
+	 * @param offset The byte offset to write the vector to.
+	 * @param v The vector to write.
+	 */
+	private void putVec3(int offset, Vec3 v) {
+		data.putFloat(offset, v.x);
+		data.putFloat(offset + 4, v.y);
+		data.putFloat(offset + 8, v.z);
+	}
+
+	/**
+	 * Discard the uniform buffer and free the resources it used.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 */
+	public void dispose(GL3 gl) {
+		gl.glDeleteBuffers(1, bufferId, 0);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,138 @@
+import gmaths.*;
+
+/**
+ * Class for the view frustum of the camera as six planes, extracted from the combined
+ * projection and view matrix. Used to test bounding spheres so that objects outside the view
+ * can be skipped before they are drawn. Counts how many models were drawn and culled since the
+ * counts were last reset.
+ */
+public class Frustum {
+	public static final int OUTSIDE = 0;
+	public static final int INTERSECTING = 1;
+	public static final int INSIDE = 2;
+
+	// a, b, c, d for each of the left, right, bottom, top, near and far planes
+	private final float[] planes = new float[24];
+	private final float[] sphere = new float[4];
+
+	private static int visibleCount = 0;
+	private static int culledCount = 0;
+
+	/**
+	 * Extract the planes from a combined projection and view matrix (projection x view). The
+	 * planes point into the frustum and are normalised so distances are in world units.
+	 *
+	 * @param m The view-projection matrix.
+	 */
+	public void set(Mat4 m) {
+		for (int i=0; i<3; i++) {
+			// Each pair is row 3 plus/minus row i
+			for (int c=0; c<4; c++) {
+				planes[i*8 + c] = m.get(3,c) + m.get(i,c);
+				planes[i*8 + 4 + c] = m.get(3,c) - m.get(i,c);
+			}
+		}
+		for (int p=0; p<24; p+=4) {
+			float length = (float)Math.sqrt(planes[p]*planes[p] + planes[p+1]*planes[p+1]
+			                                + planes[p+2]*planes[p+2]);
+			for (int c=0; c<4; c++) {
+				planes[p+c] /= length;
+			}
+		}
+	}
+
+	/**
+	 * Test a sphere against the frustum.
+	 *
+	 * @param x The x coordinate of the sphere's centre.
+	 * @param y The y coordinate of the sphere's centre.
+	 * @param z The z coordinate of the sphere's centre.
+	 * @param radius The radius of the sphere.
+	 * @return OUTSIDE, INTERSECTING or INSIDE.
+	 */
+	public int classifySphere(float x, float y, float z, float radius) {
+		int result = INSIDE;
+		for (int p=0; p<24; p+=4) {
+			float distance = planes[p]*x + planes[p+1]*y + planes[p+2]*z + planes[p+3];
+			if (distance < -radius) return OUTSIDE;
+			if (distance < radius) result = INTERSECTING;
+		}
+		return result;
+	}
+
+	/**
+	 * Test a mesh's bounding sphere, moved into the world by a model matrix, against the frustum.
+	 *
+	 * @param modelMatrix The world transformation of the mesh.
+	 * @param mesh The mesh.
+	 * @return True if any part of the bounding sphere is inside the frustum.
+	 */
+	public boolean isVisible(Mat4 modelMatrix, Mesh mesh) {
+		transformSphere(modelMatrix.toFloatArrayForGLSL(), 0, mesh, sphere, 0);
+		return classifySphere(sphere[0], sphere[1], sphere[2], sphere[3]) != OUTSIDE;
+	}
+
+	/**
+	 * Move a mesh's bounding sphere into the world. The radius is scaled by the largest scale
+	 * in the matrix so the sphere still encloses the mesh under non-uniform scaling.
+	 *
+	 * @param m The array holding the world transformation (column-major).
+	 * @param offset The index of the world transformation in m.
+	 * @param mesh The mesh.
+	 * @param dest The array that receives the sphere's centre (x, y, z) and radius.
+	 * @param destOffset The index in dest to write the sphere to.
+	 */
+	public static void transformSphere(float[] m, int offset, Mesh mesh, float[] dest,
+	                                   int destOffset) {
+		Vec3 c = mesh.getBoundsCenter();
+		dest[destOffset] = m[offset]*c.x + m[offset+4]*c.y + m[offset+8]*c.z + m[offset+12];
+		dest[destOffset+1] = m[offset+1]*c.x + m[offset+5]*c.y + m[offset+9]*c.z + m[offset+13];
+		dest[destOffset+2] = m[offset+2]*c.x + m[offset+6]*c.y + m[offset+10]*c.z + m[offset+14];
+		float scale = 0;
+		for (int col=0; col<3; col++) {
+			int i = offset + col*4;
+			scale = Math.max(scale, m[i]*m[i] + m[i+1]*m[i+1] + m[i+2]*m[i+2]);
+		}
+		dest[destOffset+3] = mesh.getBoundsRadius()*(float)Math.sqrt(scale);
+	}
+
+	/**
+	 * Record that a model passed the frustum test and was drawn.
+	 */
+	public static void countVisible() {
+		visibleCount++;
+	}
+
+	/**
+	 * Record that a model was skipped because it was outside the frustum.
+	 */
+	public static void countCulled() {
+		culledCount++;
+	}
+
+	/**
+	 * Get the number of models drawn since the counts were last reset.
+	 *
+	 * @return The number of visible models.
+	 */
+	public static int getVisibleCount() {
+		return visibleCount;
+	}
+
+	/**
+	 * Get the number of models culled since the counts were last reset.
+	 *
+	 * @return The number of culled models.
+	 */
+	public static int getCulledCount() {
+		return culledCount;
+	}
+
+	/**
+	 * Set the visible and culled counts back to zero (done at the start of each frame).
+	 */
+	public static void resetCounts() {
+		visibleCount = 0;
+		culledCount = 0;
+	}
+}
@@ -17,8 +17,14 @@ import com.jogamp.opengl.util.texture.*;
  * 
  * Changes made:
  * - The whole class is new for globe construction/rotation updates
+ * - Rotation is advanced by step() on the simulation thread at a fixed tick rate, timed by the
+ *   simulation's tick count; the render thread applies interpolated snapshots of the rotation
+ *   with applySnapshot()
  */
 public class Globe {
+	// Number of values written by writeSnapshot
+	public static final int SNAPSHOT_SIZE = 1;
+
     private ModelMultipleLights[] globe;
     private Camera camera;
 	private Light[] lights;
@@ -26,9 +32,14 @@ public class Globe {
 	private int noObjects = 3;
 
     private SGNode globeGraph;
+    private TransformHierarchy globeHierarchy;
 	private TransformNode rotateEarth;
 	private float rotateEarthAngleStart = 45, rotateEarthAngle = rotateEarthAngleStart;
 	private double startTime;
+	// Simulation time of the last tick (see step)
+	private double simulationTime = 0;
+	// Angle last applied to the scene graph by the render thread (NaN until first applied)
+	private float appliedEarthAngle = Float.NaN;
 
 	/**
 	 * Constructor. Initialise the globe object by creating its individual models, setting their 
@@ -47,9 +58,9 @@ public class Globe {
 		this.axisTexture = t[2];
 		this.earthTexture = t[3];
 		globe = new ModelMultipleLights[noObjects];
-		Shader shaderTexture = new Shader(
+		Shader shaderTexture = ShaderCache.get(
 			gl, "assets/shaders/vs_standard.txt", "assets/shaders/fs_standard_m_1t.txt");
-		Shader shaderTextures = new Shader(
+		Shader shaderTextures = ShaderCache.get(
 			gl, "assets/shaders/vs_standard.txt", "assets/shaders/fs_standard_m_2t.txt");
 		Material material = new Material(
 			new Vec3(0.5f, 0.5f, 0.5f), 
@@ -93,13 +104,58 @@ public class Globe {
     }
 
 	/**
-	 * Render the globe object in the world by updating its rotation and redrawing the scene graph.
+	 * Advance the globe's rotation by one simulation tick. Called on the simulation thread.
+	 *
+	 * @param time The simulation time of the tick in seconds.
+	 */
+	public synchronized void step(double time) {
+		simulationTime = time;
+		updateRotation();
+	}
+
+	/**
+	 * Write the rotation of the Earth into a snapshot. Called on the simulation thread.
+	 * 
+	 * @param snapshot The array to write to.
+	 * @param offset The index of the first value in the array.
+	 */
+	public synchronized void writeSnapshot(float[] snapshot, int offset) {
+		snapshot[offset] = rotateEarthAngle;
+	}
+
+	/**
+	 * Rotate the Earth to a point between two snapshots. Called on the render thread.
+	 * 
+	 * @param from The earlier snapshot.
+	 * @param to The later snapshot.
+	 * @param offset The index of the globe's value in the snapshots.
+	 * @param alpha How far to move from the earlier snapshot to the later one (0 to 1).
+	 */
+	public void applySnapshot(float[] from, float[] to, int offset, float alpha) {
+		float angle = Simulation.lerpAngle(from[offset], to[offset], alpha);
+		if (angle != appliedEarthAngle) {
+			rotateEarth.setTransform(Mat4Transform.rotateAroundY(angle));
+			appliedEarthAngle = angle;
+		}
+		globeHierarchy.update();
+	}
+
+	/**
+	 * Render the globe object in the world by redrawing the scene graph.
 	 * 
 	 * @param gl The OpenGL context used for rendering.
 	 */
     public void render(GL3 gl) {
-		updateRotation();
-		globeGraph.draw(gl);
+		globeHierarchy.draw(gl, camera.getFrustum());
+	}
+
+	/**
+	 * Make every part of the globe cast shadows.
+	 * 
+	 * @param shadowRenderer The renderer of the shadow maps.
+	 */
+	public void addShadowCasters(ShadowRenderer shadowRenderer) {
+		shadowRenderer.addCasters(globeHierarchy);
 	}
 
 	/**
@@ -153,7 +209,8 @@ public class Globe {
 							translateToTop2.addChild(rotateEarth);
 								rotateEarth.addChild(earthBranch);
 
-		globeGraph.update();
+		globeHierarchy = new TransformHierarchy(globeGraph);
+		globeHierarchy.update();
 	}
 
 	/**
@@ -162,17 +219,14 @@ public class Globe {
 	private void updateRotation() {
 		double elapsedTime = getSeconds()-startTime;
 		rotateEarthAngle = rotateEarthAngleStart*(float)elapsedTime;
-		
-		rotateEarth.setTransform(Mat4Transform.rotateAroundY(rotateEarthAngle));
-		globeGraph.update();
 	}
   
 	/**
-	 * Get the current time in seconds.
+	 * Get the simulation time in seconds (the number of ticks run times the length of a tick).
 	 * 
-	 * @return The current time in seconds in a double format.
+	 * @return The simulation time in seconds in a double format.
 	 */
   	private double getSeconds() {
-    	return System.currentTimeMillis()/1000.0;
+    	return simulationTime;
   	}
 }
\ No newline at end of file
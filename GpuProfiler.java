@@ -0,0 +1,239 @@
+import java.io.*;
+import com.jogamp.opengl.*;
+
+/**
+ * Class for measuring how long each pass of a frame takes on the GPU (with GL_TIME_ELAPSED timer
+ * queries) alongside the CPU time spent submitting it, to tell whether a frame is CPU or GPU bound.
+ *
+ * Query results only become available once the GPU has finished the frame, so each frame uses its
+ * own set of query objects from a ring of FRAMES_IN_FLIGHT sets. A set is read back when the ring
+ * comes round to it again, by which point the GPU has normally finished with it, so reading it
+ * back does not stall. If a set is still not ready, that frame's results are dropped instead of
+ * waiting for them.
+ *
+ * The published times are averages over the last WINDOW frames read back. They can be shown as
+ * text (getSummary) and every frame read back can be logged to a CSV file (setCsvLog).
+ */
+public class GpuProfiler {
+	private static final int FRAMES_IN_FLIGHT = 4;
+	private static final int WINDOW = 60;
+
+	private final String[] passNames;
+	private final int passes;
+	private final int[][] queries;
+	// Whether each pass was timed in the frame using each query set
+	private final boolean[][] issued;
+	private final long[][] cpuNanos;
+	private final long[] frameNumbers = new long[FRAMES_IN_FLIGHT];
+	private final long[] cpuStart;
+	private final long[] result = new long[1];
+	private final int[] available = new int[1];
+	private long frame = -1;
+	private int slot = 0;
+	private int droppedFrames = 0;
+
+	// Times of the last WINDOW frames read back, and their running totals (guarded by this)
+	private final double[][] gpuHistory, cpuHistory;
+	private final double[] gpuTotal, cpuTotal;
+	private int historyIndex = 0;
+	private int historyCount = 0;
+
+	private PrintWriter csv;
+
+	/**
+	 * Constructor. Create the timer queries for each pass.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param passNames The names of the passes, in the order they are indexed by begin and end.
+	 */
+	public GpuProfiler(GL3 gl, String... passNames) {
+		this.passNames = passNames.clone();
+		passes = passNames.length;
+		queries = new int[FRAMES_IN_FLIGHT][passes];
+		for (int i=0; i<FRAMES_IN_FLIGHT; i++) {
+			gl.glGenQueries(passes, queries[i], 0);
+		}
+		issued = new boolean[FRAMES_IN_FLIGHT][passes];
+		cpuNanos = new long[FRAMES_IN_FLIGHT][passes];
+		cpuStart = new long[passes];
+		gpuHistory = new double[WINDOW][passes];
+		cpuHistory = new double[WINDOW][passes];
+		gpuTotal = new double[passes];
+		cpuTotal = new double[passes];
+	}
+
+	/**
+	 * Start a new frame: read back the results of the frame that last used this frame's query set
+	 * (if they are ready), then make the set available for this frame.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 */
+	public void beginFrame(GL3 gl) {
+		frame++;
+		slot = (int)(frame % FRAMES_IN_FLIGHT);
+		if (frame >= FRAMES_IN_FLIGHT) collect(gl, slot);
+		frameNumbers[slot] = frame;
+		for (int i=0; i<passes; i++) {
+			issued[slot][i] = false;
+		}
+	}
+
+	/**
+	 * Start timing a pass. Passes cannot overlap (only one GL_TIME_ELAPSED query can be active).
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param pass The index of the pass.
+	 */
+	public void begin(GL3 gl, int pass) {
+		gl.glBeginQuery(GL3.GL_TIME_ELAPSED, queries[slot][pass]);
+		cpuStart[pass] = System.nanoTime();
+	}
+
+	/**
+	 * Stop timing a pass.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param pass The index of the pass.
+	 */
+	public void end(GL3 gl, int pass) {
+		cpuNanos[slot][pass] = System.nanoTime() - cpuStart[pass];
+		gl.glEndQuery(GL3.GL_TIME_ELAPSED);
+		issued[slot][pass] = true;
+	}
+
+	/**
+	 * Read back the results of a query set if every query in it is ready, adding them to the
+	 * averages and the CSV log.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param s The index of the query set.
+	 */
+	private void collect(GL3 gl, int s) {
+		// Queries finish in the order they were issued, so only the last one needs checking
+		int last = -1;
+		for (int i=0; i<passes; i++) {
+			if (issued[s][i]) last = i;
+		}
+		if (last < 0) return;
+		gl.glGetQueryObjectiv(queries[s][last], GL3.GL_QUERY_RESULT_AVAILABLE, available, 0);
+		if (available[0] == 0) {
+			droppedFrames++;
+			return;
+		}
+
+		synchronized (this) {
+			if (historyCount == WINDOW) {
+				for (int i=0; i<passes; i++) {
+					gpuTotal[i] -= gpuHistory[historyIndex][i];
+					cpuTotal[i] -= cpuHistory[historyIndex][i];
+				}
+			}
+			for (int i=0; i<passes; i++) {
+				double gpu = 0, cpu = 0;
+				if (issued[s][i]) {
+					gl.glGetQueryObjecti64v(queries[s][i], GL3.GL_QUERY_RESULT, result, 0);
+					gpu = result[0]/1000000.0;
+					cpu = cpuNanos[s][i]/1000000.0;
+				}
+				gpuHistory[historyIndex][i] = gpu;
+				cpuHistory[historyIndex][i] = cpu;
+				gpuTotal[i] += gpu;
+				cpuTotal[i] += cpu;
+			}
+			historyIndex = (historyIndex+1) % WINDOW;
+			historyCount = Math.min(historyCount+1, WINDOW);
+		}
+
+		if (csv != null) {
+			StringBuilder row = new StringBuilder();
+			row.append(frameNumbers[s]);
+			int h = (historyIndex+WINDOW-1) % WINDOW;
+			for (int i=0; i<passes; i++) {
+				row.append(',').append(String.format(java.util.Locale.ROOT, "%.4f,%.4f",
+				                                     gpuHistory[h][i], cpuHistory[h][i]));
+			}
+			csv.println(row);
+		}
+	}
+
+	/**
+	 * Start logging every frame read back to a CSV file (one row per frame, with the GPU and CPU
+	 * milliseconds of each pass).
+	 *
+	 * @param path The path of the CSV file (replaced if it exists).
+	 * @throws IOException If the file cannot be created.
+	 */
+	public void setCsvLog(String path) throws IOException {
+		if (csv != null) csv.close();
+		csv = new PrintWriter(new BufferedWriter(new FileWriter(path)));
+		StringBuilder header = new StringBuilder("frame");
+		for (String name : passNames) {
+			header.append(',').append(name).append("_gpu_ms,").append(name).append("_cpu_ms");
+		}
+		csv.println(header);
+	}
+
+	/**
+	 * Get the average GPU time of a pass over recent frames.
+	 *
+	 * @param pass The index of the pass.
+	 * @return The average GPU time in milliseconds.
+	 */
+	public synchronized double getGpuMillis(int pass) {
+		return historyCount == 0 ? 0 : gpuTotal[pass]/historyCount;
+	}
+
+	/**
+	 * Get the average CPU time spent submitting a pass over recent frames.
+	 *
+	 * @param pass The index of the pass.
+	 * @return The average CPU time in milliseconds.
+	 */
+	public synchronized double getCpuMillis(int pass) {
+		return historyCount == 0 ? 0 : cpuTotal[pass]/historyCount;
+	}
+
+	/**
+	 * Get the number of frames whose results were dropped because they were not ready in time.
+	 *
+	 * @return The number of dropped frames.
+	 */
+	public int getDroppedFrames() {
+		return droppedFrames;
+	}
+
+	/**
+	 * Get the average GPU and CPU times of every pass as text, one pass per line. Safe to call
+	 * from any thread (e.g. to show the times in the UI).
+	 *
+	 * @return The times of each pass.
+	 */
+	public synchronized String getSummary() {
+		StringBuilder s = new StringBuilder();
+		double gpu = 0, cpu = 0;
+		for (int i=0; i<passes; i++) {
+			s.append(String.format(java.util.Locale.ROOT, "%-8s GPU %6.3f ms  CPU %6.3f ms%n",
+			                       passNames[i], getGpuMillis(i), getCpuMillis(i)));
+			gpu += getGpuMillis(i);
+			cpu += getCpuMillis(i);
+		}
+		s.append(String.format(java.util.Locale.ROOT, "%-8s GPU %6.3f ms  CPU %6.3f ms", "total",
+		                       gpu, cpu));
+		return s.toString();
+	}
+
+	/**
+	 * Delete the queries and close the CSV log.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 */
+	public void dispose(GL3 gl) {
+		for (int i=0; i<FRAMES_IN_FLIGHT; i++) {
+			gl.glDeleteQueries(passes, queries[i], 0);
+		}
+		if (csv != null) {
+			csv.close();
+			csv = null;
+		}
+	}
+}
@@ -0,0 +1,265 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import com.jogamp.opengl.*;
+
+/**
+ * Class for rendering the spacecraft scene without a window (into an offscreen drawable) and
+ * reporting how long each frame took, so rendering performance can be measured and checked on
+ * machines without a display (a software renderer such as Mesa llvmpipe is enough). The scene is
+ * animated with a manual Clock that moves exactly one 60 Hz frame per frame, so every run draws
+ * the same frames.
+ *
+ * Run with: java Spacecraft --headless [--frames N] [--warmup N] [--width W] [--height H]
+ *                                      [--point-lights N] [--deferred]
+ *                                      [--shadow-resolution N] [--shadow-interval N]
+ *                                      [--shadow-max-updates N] [--full-vertex-format]
+ *                                      [--output file.json] [--max-p95 ms]
+ * --point-lights adds N extra coloured point lights to the room, to measure the cost of many
+ * lights, --deferred draws the scene with deferred shading instead of forward shading, and
+ * --shadow-resolution sets the size of the spotlight's shadow map (the number of shadow maps
+ * redrawn per frame is reported, to check that unchanged maps are not drawn again).
+ * --shadow-interval sets the least number of frames between redraws of the shadow map, and
+ * --shadow-max-updates the most shadow maps redrawn in one frame.
+ * --full-vertex-format stores mesh vertices as 8 floats each instead of the compact format, to
+ * compare the two (the bytes held by the mesh buffers are reported). The results are written
+ * as JSON (to standard output unless a file is given). If --max-p95 is given, the program
+ * exits with status 1 when the 95th percentile frame time is above it.
+ */
+public class HeadlessBenchmark {
+	private static final long FRAME_NANOS = 1000000000L/60;
+
+	private int frames = 600;
+	private int warmupFrames = 60;
+	private int width = 1024;
+	private int height = 768;
+	private int pointLights = 0;
+	private boolean deferred = false;
+	private int shadowResolution = ShadowRenderer.DEFAULT_RESOLUTION;
+	private int shadowInterval = 1;
+	private int shadowMaxUpdates = ShadowRenderer.MAX_SHADOW_MAPS;
+	private boolean fullVertexFormat = false;
+	private String outputPath = null;
+	private double maxP95 = -1;
+
+	/**
+	 * Run the benchmark with the given command line arguments.
+	 *
+	 * @param args The command line arguments (see the class description).
+	 */
+	public static void run(String[] args) {
+		HeadlessBenchmark benchmark = new HeadlessBenchmark();
+		benchmark.parseArguments(args);
+		System.exit(benchmark.runFrames());
+	}
+
+	/**
+	 * Read the options from the command line arguments.
+	 *
+	 * @param args The command line arguments.
+	 */
+	private void parseArguments(String[] args) {
+		for (int i=0; i<args.length; i++) {
+			switch (args[i]) {
+				case "--headless": break;
+				case "--frames": frames = Integer.parseInt(args[++i]); break;
+				case "--warmup": warmupFrames = Integer.parseInt(args[++i]); break;
+				case "--width": width = Integer.parseInt(args[++i]); break;
+				case "--height": height = Integer.parseInt(args[++i]); break;
+				case "--point-lights": pointLights = Integer.parseInt(args[++i]); break;
+				case "--deferred": deferred = true; break;
+				case "--shadow-resolution": shadowResolution = Integer.parseInt(args[++i]); break;
+				case "--shadow-interval": shadowInterval = Integer.parseInt(args[++i]); break;
+				case "--shadow-max-updates": shadowMaxUpdates = Integer.parseInt(args[++i]); break;
+				case "--full-vertex-format": fullVertexFormat = true; break;
+				case "--output": outputPath = args[++i]; break;
+				case "--max-p95": maxP95 = Double.parseDouble(args[++i]); break;
+				default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+			}
+		}
+	}
+
+	/**
+	 * Create the offscreen drawable, render the warmup and measured frames, and write the results.
+	 *
+	 * @return The exit status (0 if successful, 1 if the frame time limit was exceeded).
+	 */
+	private int runFrames() {
+		Clock.useManualTime();
+		Mesh.setCompactVertices(!fullVertexFormat);
+		GLProfile profile = GLProfile.get(GLProfile.GL3);
+		GLCapabilities capabilities = new GLCapabilities(profile);
+		capabilities.setOnscreen(false);
+		GLOffscreenAutoDrawable drawable = GLDrawableFactory.getFactory(profile)
+			.createOffscreenAutoDrawable(null, capabilities, null, width, height);
+
+		Camera camera = new Camera(Camera.DEFAULT_POSITION, Camera.DEFAULT_TARGET, Camera.DEFAULT_UP);
+		Spacecraft_GLEventListener listener = new Spacecraft_GLEventListener(camera);
+		// The simulation runs in step with the frames so that every run is identical
+		listener.setThreadedSimulation(false);
+		listener.setExtraPointLights(pointLights);
+		listener.setDeferredShading(deferred);
+		listener.setShadowMapResolution(shadowResolution);
+		listener.setShadowUpdateInterval(shadowInterval);
+		listener.setMaxShadowUpdatesPerFrame(shadowMaxUpdates);
+		drawable.addGLEventListener(listener);
+		final String[] renderer = new String[1];
+		// Added after the scene's listener: wait for the GPU so its work is part of the frame time
+		drawable.addGLEventListener(new GLEventListener() {
+			public void init(GLAutoDrawable d) {
+				renderer[0] = d.getGL().glGetString(GL.GL_RENDERER);
+			}
+			public void display(GLAutoDrawable d) {
+				d.getGL().glFinish();
+			}
+			public void reshape(GLAutoDrawable d, int x, int y, int w, int h) {}
+			public void dispose(GLAutoDrawable d) {}
+		});
+
+		for (int i=0; i<warmupFrames; i++) {
+			Clock.advance(FRAME_NANOS);
+			drawable.display();
+		}
+		// Textures are decoded in the background; keep drawing (without moving the clock, so the
+		// animation is unaffected) until every one has been uploaded
+		while (listener.isLoadingTextures()) {
+			drawable.display();
+		}
+
+		com.sun.management.ThreadMXBean threads =
+			(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		double[] frameTimes = new double[frames];
+		long drawCalls = 0, changesMade = 0, changesSkipped = 0, visible = 0, culled = 0,
+			recomputed = 0, shadowUpdates = 0, triangles = 0;
+		long[] lodModels = new long[Sphere.LOD_LEVELS];
+		long allocatedStart = threads.getThreadAllocatedBytes(threadId);
+		for (int i=0; i<frames; i++) {
+			Clock.advance(FRAME_NANOS);
+			long start = System.nanoTime();
+			drawable.display();
+			frameTimes[i] = (System.nanoTime() - start)/1000000.0;
+			drawCalls += RenderState.getDrawCalls();
+			triangles += RenderState.getTriangles();
+			for (int l=0; l<lodModels.length; l++) {
+				lodModels[l] += LodModelNode.getLevelCount(l);
+			}
+			changesMade += RenderState.getChangesMade();
+			changesSkipped += RenderState.getChangesSkipped();
+			visible += Frustum.getVisibleCount();
+			culled += Frustum.getCulledCount();
+			recomputed += SGNode.getRecomputedCount();
+			shadowUpdates += ShadowRenderer.getUpdateCount();
+		}
+		long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedStart;
+		long meshBytes = Mesh.getBufferBytes();
+		drawable.destroy();
+
+		double[] sorted = frameTimes.clone();
+		Arrays.sort(sorted);
+		double total = 0;
+		for (double t : frameTimes) {
+			total += t;
+		}
+		double p95 = percentile(sorted, 95);
+
+		StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		json.append("  \"renderer\": \"").append(escape(renderer[0])).append("\",\n");
+		json.append("  \"width\": ").append(width).append(",\n");
+		json.append("  \"height\": ").append(height).append(",\n");
+		json.append("  \"pointLights\": ").append(pointLights).append(",\n");
+		json.append("  \"shading\": \"").append(deferred ? "deferred" : "forward").append("\",\n");
+		json.append("  \"shadowResolution\": ").append(shadowResolution).append(",\n");
+		json.append("  \"shadowInterval\": ").append(shadowInterval).append(",\n");
+		json.append("  \"shadowMaxUpdates\": ").append(shadowMaxUpdates).append(",\n");
+		json.append("  \"vertexFormat\": \"").append(fullVertexFormat ? "full" : "compact")
+		    .append("\",\n");
+		json.append("  \"meshBufferBytes\": ").append(meshBytes).append(",\n");
+		json.append("  \"warmupFrames\": ").append(warmupFrames).append(",\n");
+		json.append("  \"frames\": ").append(frames).append(",\n");
+		json.append("  \"frameTimeMs\": {");
+		json.append("\"min\": ").append(format(sorted[0]));
+		json.append(", \"mean\": ").append(format(total/frames));
+		json.append(", \"p50\": ").append(format(percentile(sorted, 50)));
+		json.append(", \"p95\": ").append(format(p95));
+		json.append(", \"p99\": ").append(format(percentile(sorted, 99)));
+		json.append(", \"max\": ").append(format(sorted[frames-1])).append("},\n");
+		json.append("  \"perFrame\": {");
+		json.append("\"drawCalls\": ").append(format((double)drawCalls/frames));
+		json.append(", \"triangles\": ").append(format((double)triangles/frames));
+		json.append(", \"stateChangesMade\": ").append(format((double)changesMade/frames));
+		json.append(", \"stateChangesSkipped\": ").append(format((double)changesSkipped/frames));
+		json.append(", \"modelsVisible\": ").append(format((double)visible/frames));
+		json.append(", \"modelsCulled\": ").append(format((double)culled/frames));
+		json.append(", \"transformsRecomputed\": ").append(format((double)recomputed/frames));
+		json.append(", \"shadowMapUpdates\": ").append(format((double)shadowUpdates/frames));
+		json.append(", \"modelsPerLevelOfDetail\": [");
+		for (int l=0; l<lodModels.length; l++) {
+			if (l > 0) json.append(", ");
+			json.append(format((double)lodModels[l]/frames));
+		}
+		json.append("]");
+		json.append(", \"allocatedBytes\": ").append(format((double)allocated/frames)).append("}\n");
+		json.append("}\n");
+		writeOutput(json.toString());
+
+		if (maxP95 >= 0 && p95 > maxP95) {
+			System.err.println("p95 frame time " + format(p95) + " ms is above the limit of "
+			                   + maxP95 + " ms");
+			return 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Get a percentile of a sorted array of values (nearest rank).
+	 *
+	 * @param sorted The values in ascending order.
+	 * @param percent The percentile to get (0 to 100).
+	 * @return The value at the percentile.
+	 */
+	private static double percentile(double[] sorted, double percent) {
+		int rank = (int)Math.ceil(percent/100.0*sorted.length);
+		return sorted[Math.max(0, Math.min(sorted.length-1, rank-1))];
+	}
+
+	/**
+	 * Format a number for the JSON output.
+	 *
+	 * @param value The number.
+	 * @return The number with three decimal places.
+	 */
+	private static String format(double value) {
+		return String.format(java.util.Locale.ROOT, "%.3f", value);
+	}
+
+	/**
+	 * Escape a string for the JSON output.
+	 *
+	 * @param s The string (may be null).
+	 * @return The escaped string.
+	 */
+	private static String escape(String s) {
+		if (s == null) return "";
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	/**
+	 * Write the results to the output file, or standard output if no file was given.
+	 *
+	 * @param text The results.
+	 */
+	private void writeOutput(String text) {
+		if (outputPath == null) {
+			System.out.print(text);
+			return;
+		}
+		try (Writer writer = new FileWriter(outputPath)) {
+			writer.write(text);
+		}
+		catch (IOException e) {
+			System.err.println("Could not write " + outputPath + ": " + e.getMessage());
+		}
+	}
+}
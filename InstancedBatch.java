@@ -0,0 +1,314 @@
+import gmaths.*;
+import java.nio.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import com.jogamp.common.nio.*;
+import com.jogamp.opengl.*;
+import com.jogamp.opengl.util.texture.*;
+
+/**
+ * Class for drawing every model that shares a mesh, fragment shader, material and textures with a
+ * single instanced draw call. Models add their world transforms while the scene is drawn, and the
+ * transforms (plus a precomputed normal matrix each) are uploaded into a per-instance attribute
+ * buffer and drawn together when the RenderQueue is flushed.
+ *
+ * Models whose textures are layers of the same texture array share a batch, with each instance's
+ * texture layers passed as another per-instance attribute.
+ */
+public class InstancedBatch {
+	private static final String INSTANCED_VERTEX_SHADER = "assets/shaders/vs_standard_instanced.txt";
+	// Attribute locations used by vs_standard_instanced (a mat4 uses 4 locations, a mat3 uses 3)
+	private static final int MODEL_LOCATION = 3;
+	private static final int NORMAL_MATRIX_LOCATION = 7;
+	private static final int LAYERS_LOCATION = 10;
+	private static final int INSTANCE_FLOATS = 16 + 9 + 2;
+	private static final int INITIAL_CAPACITY = 16;
+
+	// Every batch (in creation order)
+	private static final Map<Key,InstancedBatch> batches = new LinkedHashMap<Key,InstancedBatch>();
+
+	private Mesh mesh;
+	private Shader shader;
+	private Material material;
+	private Texture diffuse;
+	private Texture specular;
+	private UniformHandle materialAmbientUniform, materialDiffuseUniform, materialSpecularUniform,
+		materialShininessUniform, firstTextureUniform, secondTextureUniform;
+	private UniformHandle lightDataUniform, clusterLightsUniform, lightIndicesUniform,
+		shadowMapsUniform;
+
+	private int[] vertexArrayId = new int[1];
+	private int[] instanceBufferId = new int[1];
+	private float[] instanceData = new float[INITIAL_CAPACITY*INSTANCE_FLOATS];
+	private FloatBuffer instanceBuffer = Buffers.newDirectFloatBuffer(instanceData.length);
+	private int capacity = INITIAL_CAPACITY;
+	private int instanceCount = 0;
+
+	/**
+	 * Get the batch that a model should be drawn with, creating the batch if no other model with
+	 * the same mesh, fragment shader, material and textures has been seen yet.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param model The model to be drawn with instancing.
+	 * @return The batch for the model.
+	 */
+	public static InstancedBatch forModel(GL3 gl, ModelMultipleLights model) {
+		Shader modelShader = model.getShader();
+		Key key = new Key(model.getMesh(), modelShader.getFragmentPath(), modelShader.getDefines(),
+		                  model.getMaterial(), model.getDiffuse(), model.getSpecular());
+		InstancedBatch batch = batches.get(key);
+		if (batch == null) {
+			Shader shader = ShaderCache.get(gl, INSTANCED_VERTEX_SHADER, key.fragmentPath,
+			                                modelShader.getDefines());
+			batch = new InstancedBatch(gl, model.getMesh(), shader, model.getMaterial(),
+			                           model.getDiffuse(), model.getSpecular());
+			batches.put(key, batch);
+		}
+		return batch;
+	}
+
+	/**
+	 * Queue every batch that has had instances added this frame on the RenderQueue.
+	 */
+	public static void submitAll() {
+		for (InstancedBatch batch : batches.values()) {
+			if (batch.instanceCount > 0) RenderQueue.submit(batch);
+		}
+	}
+
+	/**
+	 * Discard every batch and free the resources they used.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 */
+	public static void disposeAll(GL3 gl) {
+		for (InstancedBatch batch : batches.values()) {
+			batch.dispose(gl);
+		}
+		batches.clear();
+	}
+
+	/**
+	 * Constructor. Create a vertex array that reads the mesh's vertices along with a per-instance
+	 * model matrix, normal matrix and texture layers.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param mesh The mesh shared by every instance.
+	 * @param shader The instanced shader.
+	 * @param material The material shared by every instance.
+	 * @param diffuse Diffuse texture shared by every instance (may be null).
+	 * @param specular Specular texture shared by every instance (may be null).
+	 */
+	private InstancedBatch(GL3 gl, Mesh mesh, Shader shader, Material material, Texture diffuse,
+	                       Texture specular) {
+		this.mesh = mesh.retain();
+		this.shader = shader;
+		this.material = material;
+		this.diffuse = diffuse;
+		this.specular = specular;
+		materialAmbientUniform = shader.getUniform("material.ambient");
+		materialDiffuseUniform = shader.getUniform("material.diffuse");
+		materialSpecularUniform = shader.getUniform("material.specular");
+		materialShininessUniform = shader.getUniform("material.shininess");
+		firstTextureUniform = shader.getUniform("first_texture");
+		secondTextureUniform = shader.getUniform("second_texture");
+		lightDataUniform = shader.getUniform("lightData");
+		clusterLightsUniform = shader.getUniform("clusterLights");
+		lightIndicesUniform = shader.getUniform("lightIndices");
+		shadowMapsUniform = shader.getUniform("shadowMaps");
+
+		gl.glGenVertexArrays(1, vertexArrayId, 0);
+		gl.glBindVertexArray(vertexArrayId[0]);
+		mesh.bindVertexAttributes(gl);
+		gl.glGenBuffers(1, instanceBufferId, 0);
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, instanceBufferId[0]);
+		gl.glBufferData(GL.GL_ARRAY_BUFFER, (long)capacity*INSTANCE_FLOATS*Float.BYTES, null,
+		                GL.GL_DYNAMIC_DRAW);
+		int stride = INSTANCE_FLOATS*Float.BYTES;
+		// Each matrix column is a separate attribute that advances once per instance
+		for (int i=0; i<4; i++) {
+			gl.glVertexAttribPointer(MODEL_LOCATION+i, 4, GL.GL_FLOAT, false, stride, i*4*Float.BYTES);
+			gl.glEnableVertexAttribArray(MODEL_LOCATION+i);
+			gl.glVertexAttribDivisor(MODEL_LOCATION+i, 1);
+		}
+		for (int i=0; i<3; i++) {
+			gl.glVertexAttribPointer(NORMAL_MATRIX_LOCATION+i, 3, GL.GL_FLOAT, false, stride,
+			                         (16+i*3)*Float.BYTES);
+			gl.glEnableVertexAttribArray(NORMAL_MATRIX_LOCATION+i);
+			gl.glVertexAttribDivisor(NORMAL_MATRIX_LOCATION+i, 1);
+		}
+		gl.glVertexAttribPointer(LAYERS_LOCATION, 2, GL.GL_FLOAT, false, stride, (16+9)*Float.BYTES);
+		gl.glEnableVertexAttribArray(LAYERS_LOCATION);
+		gl.glVertexAttribDivisor(LAYERS_LOCATION, 1);
+		gl.glBindVertexArray(0);
+	}
+
+	/**
+	 * Add one instance to be drawn this frame. The matrix is copied, so it can be changed or
+	 * reused straight afterwards.
+	 *
+	 * @param modelMatrix The world transformation of the instance.
+	 * @param diffuseLayer The layer of the instance's diffuse texture (if it is a texture array).
+	 * @param specularLayer The layer of the instance's specular texture (if it is a texture array).
+	 */
+	public void add(Mat4 modelMatrix, int diffuseLayer, int specularLayer) {
+		if (instanceCount == capacity) {
+			capacity *= 2;
+			float[] data = new float[capacity*INSTANCE_FLOATS];
+			System.arraycopy(instanceData, 0, data, 0, instanceData.length);
+			instanceData = data;
+			instanceBuffer = Buffers.newDirectFloatBuffer(instanceData.length);
+		}
+		int base = instanceCount*INSTANCE_FLOATS;
+		System.arraycopy(modelMatrix.toFloatArrayForGLSL(), 0, instanceData, base, 16);
+		Mat3.normalMatrixInto(instanceData, base, instanceData, base+16);
+		instanceData[base+25] = diffuseLayer;
+		instanceData[base+26] = specularLayer;
+		instanceCount++;
+	}
+
+	/**
+	 * Get the number of instances added since the batch was last drawn.
+	 *
+	 * @return The number of instances.
+	 */
+	public int size() {
+		return instanceCount;
+	}
+
+	/**
+	 * Get the instanced shader used by the batch.
+	 *
+	 * @return The shader of the batch.
+	 */
+	public Shader getShader() {
+		return shader;
+	}
+
+	/**
+	 * Get the diffuse texture shared by the batch's instances.
+	 *
+	 * @return The diffuse texture (null if there is none).
+	 */
+	public Texture getDiffuse() {
+		return diffuse;
+	}
+
+	/**
+	 * Get the specular texture shared by the batch's instances.
+	 *
+	 * @return The specular texture (null if there is none).
+	 */
+	public Texture getSpecular() {
+		return specular;
+	}
+
+	/**
+	 * Get the ID of the batch's vertex array.
+	 *
+	 * @return The vertex array ID.
+	 */
+	public int getVertexArrayId() {
+		return vertexArrayId[0];
+	}
+
+	/**
+	 * Upload this frame's instances and draw them all with one draw call, then empty the batch
+	 * ready for the next frame.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 */
+	public void render(GL3 gl) {
+		if (instanceCount == 0) return;
+
+		if (RenderState.useProgram(gl, shader)) {
+			// Sampler units are program state, so only need setting when the program changes
+			firstTextureUniform.setInt(gl, 0);
+			secondTextureUniform.setInt(gl, 1);
+			lightDataUniform.setInt(gl, LightManager.LIGHT_DATA_UNIT);
+			clusterLightsUniform.setInt(gl, LightManager.CLUSTER_GRID_UNIT);
+			lightIndicesUniform.setInt(gl, LightManager.LIGHT_INDEX_UNIT);
+			shadowMapsUniform.setInt(gl, ShadowRenderer.SHADOW_MAP_UNIT);
+		}
+		materialAmbientUniform.setVec3(gl, material.getAmbient());
+		materialDiffuseUniform.setVec3(gl, material.getDiffuse());
+		materialSpecularUniform.setVec3(gl, material.getSpecular());
+		materialShininessUniform.setFloat(gl, material.getShininess());
+		if (diffuse!=null) RenderState.bindTexture(gl, 0, diffuse);
+		if (specular!=null) RenderState.bindTexture(gl, 1, specular);
+
+		int floats = instanceCount*INSTANCE_FLOATS;
+		instanceBuffer.clear();
+		instanceBuffer.put(instanceData, 0, floats);
+		instanceBuffer.flip();
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, instanceBufferId[0]);
+		// Orphan last frame's storage (which may have grown) before writing this frame's instances
+		gl.glBufferData(GL.GL_ARRAY_BUFFER, (long)capacity*INSTANCE_FLOATS*Float.BYTES, null,
+		                GL.GL_DYNAMIC_DRAW);
+		gl.glBufferSubData(GL.GL_ARRAY_BUFFER, 0, (long)floats*Float.BYTES, instanceBuffer);
+
+		RenderState.bindVertexArray(gl, vertexArrayId[0]);
+		gl.glDrawElementsInstanced(GL.GL_TRIANGLES, mesh.getIndexCount(), mesh.getIndexType(), 0,
+		                           instanceCount);
+		RenderState.countDrawCall((long)mesh.getIndexCount()/3*instanceCount);
+		instanceCount = 0;
+	}
+
+	/**
+	 * Discard the batch and free the resources it used (including its use of the shared mesh).
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 */
+	public void dispose(GL3 gl) {
+		gl.glDeleteVertexArrays(1, vertexArrayId, 0);
+		gl.glDeleteBuffers(1, instanceBufferId, 0);
+		mesh.dispose(gl);
+	}
+
+	/**
+	 * Class for what models must have in common to be drawn in the same batch. Materials are
+	 * compared by value so separately created but identical materials still share a batch.
+	 * Texture array layers are not part of the key, as each instance has its own.
+	 */
+	private static final class Key {
+		private final Mesh mesh;
+		private final String fragmentPath;
+		private final String defines;
+		private final Vec3 ambient, diffuse, specular;
+		private final float shininess;
+		private final Texture diffuseTexture, specularTexture;
+
+		private Key(Mesh mesh, String fragmentPath, String[] defines, Material material,
+		            Texture diffuseTexture, Texture specularTexture) {
+			this.mesh = mesh;
+			this.fragmentPath = fragmentPath;
+			this.defines = String.join(",", defines);
+			this.ambient = new Vec3(material.getAmbient());
+			this.diffuse = new Vec3(material.getDiffuse());
+			this.specular = new Vec3(material.getSpecular());
+			this.shininess = material.getShininess();
+			this.diffuseTexture = diffuseTexture;
+			this.specularTexture = specularTexture;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key k = (Key)o;
+			return mesh == k.mesh && fragmentPath.equals(k.fragmentPath) && defines.equals(k.defines)
+				&& sameVec3(ambient, k.ambient) && sameVec3(diffuse, k.diffuse)
+				&& sameVec3(specular, k.specular) && shininess == k.shininess
+				&& diffuseTexture == k.diffuseTexture && specularTexture == k.specularTexture;
+		}
+
+		public int hashCode() {
+			return Objects.hash(System.identityHashCode(mesh), fragmentPath, defines,
+			                    System.identityHashCode(diffuseTexture),
+			                    System.identityHashCode(specularTexture));
+		}
+
+		private static boolean sameVec3(Vec3 a, Vec3 b) {
+			return a.x == b.x && a.y == b.y && a.z == b.z;
+		}
+	}
+}
\ No newline at end of file
@@ -1,10 +1,9 @@
 import gmaths.*;
-import java.nio.*;
-import com.jogamp.common.nio.*;
-import com.jogamp.opengl.*;
   
 /**
- * Class for storing the properties of a light object and its associated buffers.
+ * Class for storing the properties of a light object (its type, colour, position, direction,
+ * spotlight cone and attenuation). Lights only hold data; they are collected, assigned to the
+ * cluster grid and drawn by a LightManager.
  * 
  * I declare that this code is my own work.
  * Author: Ellis Barker
@@ -13,38 +12,77 @@ import com.jogamp.opengl.*;
  * Changes made:
  * - 'shape' parameter in the constructor for determining the light's shape
  * - getDirection(): used for spotlight functionality
+ * - Spotlight cutoff and attenuation values are stored here (and read once per frame by FrameData)
+ * - The light is drawn with the shared sphere/cube mesh from MeshRegistry instead of its own buffers
+ * - The light shader is shared through the ShaderCache instead of compiled per light
+ * - Now a data-only class with a type (global, point or spot) and a range; the mesh, shader and
+ *   drawing of the light moved to LightManager
+ * - Spotlights can cast shadows: the layer and view-projection matrix of the light's shadow map
+ *   are stored here (set by the ShadowRenderer)
  */
 public class Light {
+	/**
+	 * The kinds of light. Global lights reach everything (with no attenuation); point lights and
+	 * spotlights fade with distance, so they only light the clusters within their range.
+	 */
+	public enum Type { GLOBAL, POINT, SPOT }
+
+	// Brightness below which a light is treated as no longer reaching a point (used for its range)
+	private static final float MIN_BRIGHTNESS = 5.0f/256.0f;
+
+	private Type type;
+	private String shape;
 	private Material material;
 	private Vec3 position;
 	private Vec3 direction;
-	private Mat4 model;
-	private Shader shader;
-	private Camera camera;
+
+	// Spotlight cone (cosines of the cutoff angles) and attenuation values
+	private float cutOff = (float)Math.cos(Math.toRadians(12.5f));
+	private float outerCutOff = (float)Math.cos(Math.toRadians(17.5f));
+	private float constant = 1.0f;
+	private float linear = 0.09f;
+	private float quadratic = 0.032f;
+
+	// Layer of the light's shadow map in the ShadowRenderer's texture array (-1 if it has none)
+	// and the view-projection matrix the map was drawn with
+	private int shadowLayer = -1;
+	private final Mat4 shadowMatrix = new Mat4(1);
 		
 	/**
 	 * Constructor. Create a light object and set its default material values, position and 
 	 * direction.
 	 * 
-	 * @param gl The OpenGL context used for rendering.
-	 * @param shape The shape of the light to be made (sphere or cube).
+	 * @param type The type of the light (global, point or spot).
+	 * @param shape The shape drawn at the light's position (sphere or cube), or null to draw 
+	 *              nothing.
 	 */
-	public Light(GL3 gl, String shape) {
+	public Light(Type type, String shape) {
+		this.type = type;
+		this.shape = shape;
 		material = new Material();
 		material.setAmbient(0.4f, 0.4f, 0.4f);
 		material.setDiffuse(0.7f, 0.7f, 0.7f);
 		material.setSpecular(0.7f, 0.7f, 0.7f);
 		position = new Vec3(3f,2f,1f);
 		direction = new Vec3(-0.6f, -1.0f, -0.6f);
-		model = new Mat4(1);
-		if (shape == "sphere") {
-			this.vertices = Sphere.verticesPosOnly.clone();
-			this.indices = Sphere.indices.clone();
-		}
-		
-		fillBuffers(gl);
-		shader = new Shader(
-			gl, "assets/shaders/vs_light_01.txt", "assets/shaders/fs_light_01.txt");
+	}
+
+	/**
+	 * Get the type of the light.
+	 * 
+	 * @return The type of the light.
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Get the shape drawn at the light's position.
+	 * 
+	 * @return The shape of the light (sphere or cube), or null if nothing is drawn.
+	 */
+	public String getShape() {
+		return shape;
 	}
 	
 	/**
@@ -98,6 +136,83 @@ public class Light {
 		return direction;
 	}
 	
+	/**
+	 * Get the cosine of the inner cutoff angle of the light's spotlight cone.
+	 * 
+	 * @return The cosine of the inner cutoff angle.
+	 */
+	public float getCutOff() {
+		return cutOff;
+	}
+
+	/**
+	 * Get the cosine of the outer cutoff angle of the light's spotlight cone.
+	 * 
+	 * @return The cosine of the outer cutoff angle.
+	 */
+	public float getOuterCutOff() {
+		return outerCutOff;
+	}
+
+	/**
+	 * Get the constant term of the light's attenuation.
+	 * 
+	 * @return The constant attenuation term.
+	 */
+	public float getConstant() {
+		return constant;
+	}
+
+	/**
+	 * Get the linear term of the light's attenuation.
+	 * 
+	 * @return The linear attenuation term.
+	 */
+	public float getLinear() {
+		return linear;
+	}
+
+	/**
+	 * Get the quadratic term of the light's attenuation.
+	 * 
+	 * @return The quadratic attenuation term.
+	 */
+	public float getQuadratic() {
+		return quadratic;
+	}
+	
+	/**
+	 * Set the attenuation of the light (how quickly it fades with distance d, as 
+	 * 1/(constant + linear*d + quadratic*d*d)).
+	 * 
+	 * @param constant The constant attenuation term.
+	 * @param linear The linear attenuation term.
+	 * @param quadratic The quadratic attenuation term.
+	 */
+	public void setAttenuation(float constant, float linear, float quadratic) {
+		this.constant = constant;
+		this.linear = linear;
+		this.quadratic = quadratic;
+	}
+
+	/**
+	 * Get the distance beyond which the light is too dim to matter (from its attenuation and its
+	 * brightest diffuse or specular component). Global lights have an unlimited range.
+	 * 
+	 * @return The range of the light.
+	 */
+	public float getRange() {
+		if (type == Type.GLOBAL) return Float.POSITIVE_INFINITY;
+		Vec3 d = material.getDiffuse(), s = material.getSpecular();
+		float brightest = Math.max(Math.max(Math.max(d.x, d.y), Math.max(d.z, s.x)), 
+		                           Math.max(s.y, s.z));
+		// Solve brightest/(constant + linear*r + quadratic*r*r) = MIN_BRIGHTNESS for r
+		float c = constant - brightest/MIN_BRIGHTNESS;
+		if (c >= 0) return 0;
+		if (quadratic == 0) return linear > 0 ? -c/linear : Float.POSITIVE_INFINITY;
+		return (-linear + (float)Math.sqrt(linear*linear - 4*quadratic*c))/(2*quadratic);
+	}
+	
 	/**
 	 * Set the material of the light (ambient, diffuse and specular properties).
 	 * 
@@ -115,109 +230,43 @@ public class Light {
 	public Material getMaterial() {
 		return material;
 	}
-	
+
 	/**
-	 * Set the camera object associated with the light.
+	 * Set the layer of the shadow map texture array that holds this light's shadow map (set by
+	 * the ShadowRenderer once the map has been drawn).
 	 * 
-	 * @param camera The camera object.
+	 * @param layer The layer, or -1 if the light has no shadow map.
 	 */
-	public void setCamera(Camera camera) {
-		this.camera = camera;
+	public void setShadowLayer(int layer) {
+		shadowLayer = layer;
 	}
-	
+
 	/**
-	 * Draw the light in the world and its effects on surrounding objects.
+	 * Get the layer of the shadow map texture array that holds this light's shadow map.
 	 * 
-	 * @param gl The OpenGL context used for rendering.
+	 * @return The layer, or -1 if the light has no shadow map.
 	 */
-	public void render(GL3 gl) {
-		Mat4 model = new Mat4(1);
-		model = Mat4.multiply(Mat4Transform.scale(0.3f,0.3f,0.3f), model);
-		model = Mat4.multiply(Mat4Transform.translate(position), model);
-		
-		Mat4 mvpMatrix = Mat4.multiply(camera.getPerspectiveMatrix(), Mat4.multiply(camera.getViewMatrix(), model));
-		
-		shader.use(gl);
-		shader.setFloatArray(gl, "mvpMatrix", mvpMatrix.toFloatArrayForGLSL());
-	
-		gl.glBindVertexArray(vertexArrayId[0]);
-		
-		gl.glDrawElements(GL.GL_TRIANGLES, indices.length, GL.GL_UNSIGNED_INT, 0);
-		gl.glBindVertexArray(0);
+	public int getShadowLayer() {
+		return shadowLayer;
 	}
 
 	/**
-	 * Discard the camera and free the resources it used.
+	 * Set the view-projection matrix that the light's shadow map was drawn with. The matrix is
+	 * copied.
 	 * 
-	 * @param gl The OpenGL context used for rendering.
+	 * @param m The view-projection matrix.
 	 */
-	public void dispose(GL3 gl) {
-		gl.glDeleteBuffers(1, vertexBufferId, 0);
-		gl.glDeleteVertexArrays(1, vertexArrayId, 0);
-		gl.glDeleteBuffers(1, elementBufferId, 0);
+	public void setShadowMatrix(Mat4 m) {
+		shadowMatrix.set(m);
 	}
 
-	// ***************************************************
-	/* THE DATA */
-	// anticlockwise/counterclockwise ordering
-	private float[] vertices = new float[] {  // x,y,z
-		-0.5f, -0.5f, -0.5f,  // 0
-		-0.5f, -0.5f,  0.5f,  // 1
-		-0.5f,  0.5f, -0.5f,  // 2
-		-0.5f,  0.5f,  0.5f,  // 3
-		0.5f, -0.5f, -0.5f,  // 4
-		0.5f, -0.5f,  0.5f,  // 5
-		0.5f,  0.5f, -0.5f,  // 6
-		0.5f,  0.5f,  0.5f   // 7
-	};
-		
-	private int[] indices =  new int[] {
-		0,1,3, // x -ve 
-		3,2,0, // x -ve
-		4,6,7, // x +ve
-		7,5,4, // x +ve
-		1,5,7, // z +ve
-		7,3,1, // z +ve
-		6,4,0, // z -ve
-		0,2,6, // z -ve
-		0,4,5, // y -ve
-		5,1,0, // y -ve
-		2,3,7, // y +ve
-		7,6,2  // y +ve
-	};
-		
-	private int vertexStride = 3;
-	private int vertexXYZFloats = 3;
-	
-	// ***************************************************
-	/* THE LIGHT BUFFERS */
-	private int[] vertexBufferId = new int[1];
-	private int[] vertexArrayId = new int[1];
-	private int[] elementBufferId = new int[1];
-		
 	/**
-	 * Initialises and fills the OpenGL buffers for the light's vertices and indices.
+	 * Get the view-projection matrix that the light's shadow map was drawn with (which may be
+	 * from an earlier frame than the light's current position, if the map was not redrawn).
 	 * 
-	 * @param gl The OpenGL context used for rendering.
+	 * @return The view-projection matrix.
 	 */
-	private void fillBuffers(GL3 gl) {
-		gl.glGenVertexArrays(1, vertexArrayId, 0);
-		gl.glBindVertexArray(vertexArrayId[0]);
-		gl.glGenBuffers(1, vertexBufferId, 0);
-		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vertexBufferId[0]);
-		FloatBuffer fb = Buffers.newDirectFloatBuffer(vertices);
-		
-		gl.glBufferData(GL.GL_ARRAY_BUFFER, Float.BYTES * vertices.length, fb, GL.GL_STATIC_DRAW);
-		
-		int stride = vertexStride;
-		int numXYZFloats = vertexXYZFloats;
-		int offset = 0;
-		gl.glVertexAttribPointer(0, numXYZFloats, GL.GL_FLOAT, false, stride*Float.BYTES, offset);
-		gl.glEnableVertexAttribArray(0);
-		
-		gl.glGenBuffers(1, elementBufferId, 0);
-		IntBuffer ib = Buffers.newDirectIntBuffer(indices);
-		gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, elementBufferId[0]);
-		gl.glBufferData(GL.GL_ELEMENT_ARRAY_BUFFER, Integer.BYTES * indices.length, ib, GL.GL_STATIC_DRAW);
-	} 
+	public Mat4 getShadowMatrix() {
+		return shadowMatrix;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,442 @@
+import gmaths.*;
+import java.nio.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+import com.jogamp.common.nio.*;
+import com.jogamp.opengl.*;
+
+/**
+ * Class for the lights in the scene, which lights them with clustered forward shading.
+ *
+ * The view frustum is divided into a grid of clusters: CLUSTERS_X by CLUSTERS_Y tiles across the
+ * screen, and CLUSTERS_Z slices through the depth (spaced exponentially, so near slices are
+ * thinner). Each frame, every point light and spotlight is assigned to the clusters that its
+ * range overlaps. The clusters are independent in each depth slice, so the slices are filled on
+ * worker threads when there are many lights. The results are uploaded into three buffer textures:
+ * - the light data (LIGHT_TEXELS vec4 texels per light: five laid out like the shaders' Light
+ *   struct, then the light's shadow map layer and the four columns of its shadow matrix)
+ * - the grid (the offset and count of each cluster's lights in the index list)
+ * - the index list (the light indices of every cluster, one cluster after another)
+ * so each fragment only loops over the lights in its own cluster. Global lights reach every
+ * cluster, so they are written into the FrameData block instead (see getGlobalLights).
+ *
+ * Lights are data-only; the markers drawn at their positions (for lights with a shape) are drawn
+ * here with the shared light shader.
+ */
+public class LightManager {
+	// Size of the cluster grid
+	public static final int CLUSTERS_X = 16;
+	public static final int CLUSTERS_Y = 9;
+	public static final int CLUSTERS_Z = 24;
+	private static final int TILES = CLUSTERS_X*CLUSTERS_Y;
+	private static final int CLUSTERS = TILES*CLUSTERS_Z;
+	// Texture units of the light buffers (the standard shaders use 0 and 1 for material textures)
+	public static final int LIGHT_DATA_UNIT = 2;
+	public static final int CLUSTER_GRID_UNIT = 3;
+	public static final int LIGHT_INDEX_UNIT = 4;
+	// Texels (of 4 floats) per light in the light data buffer
+	private static final int LIGHT_TEXELS = 10;
+	// Below this many clustered lights, assigning them on worker threads costs more than it saves
+	private static final int PARALLEL_THRESHOLD = 64;
+	private static final float MARKER_SCALE = 0.3f;
+	// The markers are small and plain white, so a coarse level of detail of the sphere is enough
+	private static final int MARKER_SPHERE_LEVEL = 2;
+
+	private final ArrayList<Light> lights = new ArrayList<Light>();
+	private final ArrayList<Light> globalLights = new ArrayList<Light>();
+	private final ArrayList<Light> clusteredLights = new ArrayList<Light>();
+
+	// View-space bounding sphere of each clustered light (depth is the distance along the view)
+	private float[] viewX = new float[0], viewY = new float[0], viewDepth = new float[0],
+		radius = new float[0];
+	private int clusteredCount = 0;
+	// Projection scale factors and the depth of the near and far planes
+	private float projectX, projectY, near, far;
+	private float depthScale, depthBias;
+
+	// Per depth slice: light count and first index of each tile, the tile rectangle of each
+	// light touching the slice (light, x0, x1, y0, y1) and the light indices of its clusters
+	private final int[][] sliceCounts = new int[CLUSTERS_Z][TILES];
+	private final int[][] sliceOffsets = new int[CLUSTERS_Z][TILES];
+	private final int[][] sliceRects = new int[CLUSTERS_Z][0];
+	private final int[][] sliceIndices = new int[CLUSTERS_Z][16];
+	private final int[] sliceTotals = new int[CLUSTERS_Z];
+
+	private FloatBuffer lightData = Buffers.newDirectFloatBuffer(LIGHT_TEXELS*4);
+	private IntBuffer clusterGrid = Buffers.newDirectIntBuffer(CLUSTERS*2);
+	private IntBuffer lightIndices = Buffers.newDirectIntBuffer(16);
+	private int[] bufferIds = new int[3];
+	private int[] textureIds = new int[3];
+
+	private Mesh sphere, cube;
+	private Shader markerShader;
+	private UniformHandle modelUniform;
+	private Mat4 markerModel = new Mat4(1);
+
+	/**
+	 * Constructor. Create the buffer textures that hold the lights and the cluster grid, and load
+	 * the meshes and shader used to draw the lights' markers.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 */
+	public LightManager(GL3 gl) {
+		gl.glGenBuffers(3, bufferIds, 0);
+		gl.glGenTextures(3, textureIds, 0);
+		int[] formats = {GL.GL_RGBA32F, GL3.GL_RG32UI, GL3.GL_R32UI};
+		for (int i=0; i<3; i++) {
+			gl.glBindBuffer(GL3.GL_TEXTURE_BUFFER, bufferIds[i]);
+			// Never empty, as a buffer texture needs storage
+			gl.glBufferData(GL3.GL_TEXTURE_BUFFER, 16, null, GL3.GL_STREAM_DRAW);
+			gl.glBindTexture(GL3.GL_TEXTURE_BUFFER, textureIds[i]);
+			gl.glTexBuffer(GL3.GL_TEXTURE_BUFFER, formats[i], bufferIds[i]);
+		}
+		gl.glBindTexture(GL3.GL_TEXTURE_BUFFER, 0);
+		gl.glBindBuffer(GL3.GL_TEXTURE_BUFFER, 0);
+
+		// The light shader only reads positions, so the standard shared meshes can be used
+		sphere = MeshRegistry.acquireSphere(gl, MARKER_SPHERE_LEVEL);
+		cube = MeshRegistry.acquire(gl, MeshRegistry.Primitive.CUBE);
+		markerShader = ShaderCache.get(
+			gl, "assets/shaders/vs_light_01.txt", "assets/shaders/fs_light_01.txt");
+		modelUniform = markerShader.getUniform("model");
+	}
+
+	/**
+	 * Add a light to the scene.
+	 *
+	 * @param light The light to add.
+	 * @return The light (so it can be kept when created in the call).
+	 */
+	public Light add(Light light) {
+		lights.add(light);
+		if (light.getType() == Light.Type.GLOBAL) globalLights.add(light);
+		else clusteredLights.add(light);
+		return light;
+	}
+
+	/**
+	 * Get the lights that reach everything (these are written into the FrameData block rather
+	 * than the cluster grid).
+	 *
+	 * @return The global lights.
+	 */
+	public List<Light> getGlobalLights() {
+		return globalLights;
+	}
+
+	/**
+	 * Get the point lights and spotlights (the lights assigned to clusters), in the order they
+	 * are stored in the light data buffer.
+	 *
+	 * @return The clustered lights.
+	 */
+	public List<Light> getClusteredLights() {
+		return clusteredLights;
+	}
+
+	/**
+	 * Get the number of point lights and spotlights (the lights assigned to clusters).
+	 *
+	 * @return The number of clustered lights.
+	 */
+	public int getClusteredLightCount() {
+		return clusteredLights.size();
+	}
+
+	/**
+	 * Get the scale that turns the log of a view depth into a depth slice (see getDepthBias).
+	 *
+	 * @return The depth slice scale.
+	 */
+	public float getDepthScale() {
+		return depthScale;
+	}
+
+	/**
+	 * Get the bias added to the scaled log of a view depth to give its depth slice, i.e. the slice
+	 * is log(depth)*getDepthScale() + getDepthBias().
+	 *
+	 * @return The depth slice bias.
+	 */
+	public float getDepthBias() {
+		return depthBias;
+	}
+
+	/**
+	 * Assign every point light and spotlight to the clusters its range overlaps (from the
+	 * camera's current view), upload the lights and the cluster grid, and bind them to their
+	 * texture units. Called once per frame, after the lights have moved and before any models
+	 * are drawn.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param camera The camera in the scene.
+	 */
+	public void update(GL3 gl, Camera camera) {
+		prepareLights(camera);
+		if (clusteredCount >= PARALLEL_THRESHOLD) {
+			IntStream.range(0, CLUSTERS_Z).parallel().forEach(this::assignSlice);
+		}
+		else {
+			for (int z=0; z<CLUSTERS_Z; z++) {
+				assignSlice(z);
+			}
+		}
+		packClusters();
+		upload(gl);
+	}
+
+	/**
+	 * Find the view-space bounding sphere of each clustered light and the projection values used
+	 * to place them in the grid.
+	 *
+	 * @param camera The camera in the scene.
+	 */
+	private void prepareLights(Camera camera) {
+		Mat4 p = camera.getPerspectiveMatrix();
+		projectX = p.get(0, 0);
+		projectY = p.get(1, 1);
+		near = p.get(2, 3)/(p.get(2, 2) - 1);
+		far = p.get(2, 3)/(p.get(2, 2) + 1);
+		float logRatio = (float)Math.log(far/near);
+		depthScale = CLUSTERS_Z/logRatio;
+		depthBias = -CLUSTERS_Z*(float)Math.log(near)/logRatio;
+
+		clusteredCount = clusteredLights.size();
+		if (viewX.length < clusteredCount) {
+			int capacity = Math.max(clusteredCount, viewX.length*2);
+			viewX = new float[capacity];
+			viewY = new float[capacity];
+			viewDepth = new float[capacity];
+			radius = new float[capacity];
+			for (int z=0; z<CLUSTERS_Z; z++) {
+				sliceRects[z] = new int[capacity*5];
+			}
+		}
+		Mat4 v = camera.getViewMatrix();
+		for (int i=0; i<clusteredCount; i++) {
+			Light light = clusteredLights.get(i);
+			Vec3 pos = light.getPosition();
+			viewX[i] = v.get(0, 0)*pos.x + v.get(0, 1)*pos.y + v.get(0, 2)*pos.z + v.get(0, 3);
+			viewY[i] = v.get(1, 0)*pos.x + v.get(1, 1)*pos.y + v.get(1, 2)*pos.z + v.get(1, 3);
+			// The camera looks down -z, so depth is the negated view z
+			viewDepth[i] = -(v.get(2, 0)*pos.x + v.get(2, 1)*pos.y + v.get(2, 2)*pos.z + v.get(2, 3));
+			radius[i] = light.getRange();
+		}
+	}
+
+	/**
+	 * Assign the clustered lights to the clusters of one depth slice. Each slice only writes its
+	 * own arrays, so slices can be assigned on different threads at once.
+	 *
+	 * @param z The index of the depth slice.
+	 */
+	private void assignSlice(int z) {
+		int[] counts = sliceCounts[z];
+		int[] rects = sliceRects[z];
+		Arrays.fill(counts, 0);
+		float sliceNear = sliceDepth(z);
+		float sliceFar = sliceDepth(z+1);
+
+		int rectCount = 0;
+		for (int i=0; i<clusteredCount; i++) {
+			float r = radius[i];
+			// The part of the light's sphere within the slice
+			float d0 = Math.max(sliceNear, viewDepth[i] - r);
+			float d1 = Math.min(sliceFar, viewDepth[i] + r);
+			if (d0 > d1) continue;
+			// Project the sphere's bounding box at the nearest and furthest depths, keeping the
+			// widest extent on screen
+			float left = viewX[i] - r, right = viewX[i] + r;
+			float bottom = viewY[i] - r, top = viewY[i] + r;
+			int x0 = tile(Math.min(projectX*left/d0, projectX*left/d1), CLUSTERS_X);
+			int x1 = tile(Math.max(projectX*right/d0, projectX*right/d1), CLUSTERS_X);
+			int y0 = tile(Math.min(projectY*bottom/d0, projectY*bottom/d1), CLUSTERS_Y);
+			int y1 = tile(Math.max(projectY*top/d0, projectY*top/d1), CLUSTERS_Y);
+			int base = rectCount*5;
+			rects[base] = i;
+			rects[base+1] = x0;
+			rects[base+2] = x1;
+			rects[base+3] = y0;
+			rects[base+4] = y1;
+			rectCount++;
+			for (int y=y0; y<=y1; y++) {
+				for (int x=x0; x<=x1; x++) {
+					counts[y*CLUSTERS_X + x]++;
+				}
+			}
+		}
+
+		int[] offsets = sliceOffsets[z];
+		int total = 0;
+		for (int t=0; t<TILES; t++) {
+			offsets[t] = total;
+			total += counts[t];
+		}
+		sliceTotals[z] = total;
+		if (sliceIndices[z].length < total) {
+			sliceIndices[z] = new int[Math.max(total, sliceIndices[z].length*2)];
+		}
+		int[] indices = sliceIndices[z];
+		// Counts are used as each tile's fill position and end up as they were
+		Arrays.fill(counts, 0);
+		for (int j=0; j<rectCount; j++) {
+			int base = j*5;
+			for (int y=rects[base+3]; y<=rects[base+4]; y++) {
+				for (int x=rects[base+1]; x<=rects[base+2]; x++) {
+					int t = y*CLUSTERS_X + x;
+					indices[offsets[t] + counts[t]++] = rects[base];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the view depth at the start of a depth slice.
+	 *
+	 * @param z The index of the depth slice (CLUSTERS_Z for the end of the last slice).
+	 * @return The depth.
+	 */
+	private float sliceDepth(int z) {
+		return near*(float)Math.pow(far/near, (double)z/CLUSTERS_Z);
+	}
+
+	/**
+	 * Get the tile containing a normalised device coordinate (clamped to the grid).
+	 *
+	 * @param ndc The coordinate (-1 to 1 on screen).
+	 * @param tiles The number of tiles along the axis.
+	 * @return The index of the tile.
+	 */
+	private static int tile(float ndc, int tiles) {
+		int t = (int)Math.floor((ndc*0.5f + 0.5f)*tiles);
+		return Math.max(0, Math.min(tiles-1, t));
+	}
+
+	/**
+	 * Join every slice's light indices into one list and write the grid entry of every cluster.
+	 */
+	private void packClusters() {
+		int total = 0;
+		for (int z=0; z<CLUSTERS_Z; z++) {
+			total += sliceTotals[z];
+		}
+		if (lightIndices.capacity() < total) {
+			lightIndices = Buffers.newDirectIntBuffer(Math.max(total, lightIndices.capacity()*2));
+		}
+		lightIndices.clear();
+		clusterGrid.clear();
+		int offset = 0;
+		for (int z=0; z<CLUSTERS_Z; z++) {
+			for (int t=0; t<TILES; t++) {
+				clusterGrid.put(offset + sliceOffsets[z][t]).put(sliceCounts[z][t]);
+			}
+			lightIndices.put(sliceIndices[z], 0, sliceTotals[z]);
+			offset += sliceTotals[z];
+		}
+		lightIndices.flip();
+		clusterGrid.flip();
+
+		int floats = clusteredCount*LIGHT_TEXELS*4;
+		if (lightData.capacity() < floats) {
+			lightData = Buffers.newDirectFloatBuffer(Math.max(floats, lightData.capacity()*2));
+		}
+		lightData.clear();
+		for (Light light : clusteredLights) {
+			Material material = light.getMaterial();
+			float cutOff = light.getCutOff(), outerCutOff = light.getOuterCutOff();
+			if (light.getType() == Light.Type.POINT) {
+				// A cone wider than every direction, so the spotlight code lights all around
+				cutOff = -1;
+				outerCutOff = -2;
+			}
+			putVec3(light.getPosition(), cutOff);
+			putVec3(material.getAmbient(), outerCutOff);
+			putVec3(material.getDiffuse(), light.getConstant());
+			putVec3(material.getSpecular(), light.getLinear());
+			putVec3(light.getDirection(), light.getQuadratic());
+			// Shadow map layer (negative for none) and the matrix it was drawn with
+			lightData.put(light.getShadowLayer()).put(0).put(0).put(0);
+			lightData.put(light.getShadowMatrix().toFloatArrayForGLSL());
+		}
+		lightData.flip();
+	}
+
+	/**
+	 * Add a 3D vector and a float to the light data (one texel).
+	 *
+	 * @param v The vector.
+	 * @param w The float stored after the vector.
+	 */
+	private void putVec3(Vec3 v, float w) {
+		lightData.put(v.x).put(v.y).put(v.z).put(w);
+	}
+
+	/**
+	 * Upload the light data, cluster grid and index list, and bind their buffer textures.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 */
+	private void upload(GL3 gl) {
+		uploadBuffer(gl, bufferIds[0], lightData, lightData.remaining()*Float.BYTES);
+		uploadBuffer(gl, bufferIds[1], clusterGrid, clusterGrid.remaining()*Integer.BYTES);
+		uploadBuffer(gl, bufferIds[2], lightIndices, lightIndices.remaining()*Integer.BYTES);
+		gl.glBindBuffer(GL3.GL_TEXTURE_BUFFER, 0);
+
+		int[] units = {LIGHT_DATA_UNIT, CLUSTER_GRID_UNIT, LIGHT_INDEX_UNIT};
+		for (int i=0; i<3; i++) {
+			gl.glActiveTexture(GL.GL_TEXTURE0 + units[i]);
+			gl.glBindTexture(GL3.GL_TEXTURE_BUFFER, textureIds[i]);
+		}
+		gl.glActiveTexture(GL.GL_TEXTURE0);
+		// The active texture unit was changed behind the render state's back
+		RenderState.invalidate();
+	}
+
+	/**
+	 * Replace the contents of a buffer, orphaning its old storage so the driver does not wait for
+	 * draws still using it.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param id The ID of the buffer.
+	 * @param data The new contents.
+	 * @param bytes The size of the new contents in bytes.
+	 */
+	private static void uploadBuffer(GL3 gl, int id, Buffer data, long bytes) {
+		gl.glBindBuffer(GL3.GL_TEXTURE_BUFFER, id);
+		// Never empty, as a buffer texture needs storage
+		gl.glBufferData(GL3.GL_TEXTURE_BUFFER, Math.max(bytes, 16), null, GL3.GL_STREAM_DRAW);
+		if (bytes > 0) gl.glBufferSubData(GL3.GL_TEXTURE_BUFFER, 0, bytes, data);
+	}
+
+	/**
+	 * Draw a marker at the position of every light that has a shape.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 */
+	public void render(GL3 gl) {
+		// The view-projection matrix comes from the per-frame FrameData block
+		markerShader.use(gl);
+		for (Light light : lights) {
+			String shape = light.getShape();
+			if (shape == null) continue;
+			markerModel.setIdentity().translate(light.getPosition())
+			           .scale(MARKER_SCALE, MARKER_SCALE, MARKER_SCALE);
+			modelUniform.setFloatArray(gl, markerModel.toFloatArrayForGLSL());
+			(shape.equals("sphere") ? sphere : cube).render(gl);
+		}
+	}
+
+	/**
+	 * Delete the light buffers and release the (shared) marker meshes.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 */
+	public void dispose(GL3 gl) {
+		gl.glDeleteTextures(3, textureIds, 0);
+		gl.glDeleteBuffers(3, bufferIds, 0);
+		sphere.dispose(gl);
+		cube.dispose(gl);
+	}
+}
@@ -0,0 +1,110 @@
+import gmaths.*;
+import com.jogamp.opengl.*;
+
+/**
+ * Class for representing a model with several levels of detail within a scene graph (see
+ * ModelMultipleLights.setLevelsOfDetail). Each frame the level drawn is picked from how large the
+ * model's bounding sphere appears on screen, so a small or distant model is drawn with fewer
+ * triangles.
+ *
+ * The switching sizes have a margin either side (hysteresis): a model only moves to a finer level
+ * once it is clearly larger than the switching size, and to a coarser level once it is clearly
+ * smaller, so a model sitting near a switching size does not flick between levels every frame.
+ */
+public class LodModelNode extends ModelNode {
+	/* Smallest on-screen size for each level but the last (the radius of the bounding sphere as a
+	   fraction of half the screen's height); smaller models use the next level */
+	private static final float[] SWITCH_SIZES = {0.15f, 0.06f, 0.025f};
+	// Fraction of the switching size that a model must pass it by to change level
+	private static final float HYSTERESIS = 0.15f;
+
+	// Number of models drawn at each level since the counts were last reset
+	private static final int[] levelCounts = new int[SWITCH_SIZES.length + 1];
+
+	private final ModelMultipleLights[] levels;
+	private final Camera camera;
+	private int level = 0;
+	private final float[] sphere = new float[4];
+	// Position of the camera, reused by every selection so that none allocates
+	private final Vec3 eye = new Vec3();
+
+	/**
+	 * Constructor. Initialises the node with a model that has levels of detail.
+	 *
+	 * @param name The name of the node.
+	 * @param m The model object (level 0), which must have its levels of detail set.
+	 */
+	public LodModelNode(String name, ModelMultipleLights m) {
+		super(name, m);
+		levels = m.getLevelsOfDetail();
+		camera = m.getCamera();
+	}
+
+	/**
+	 * Get the model to draw this frame for a world bounding sphere, updating the current level.
+	 *
+	 * @param bounds The array holding the bounding sphere (x, y, z, radius) of the model.
+	 * @param offset The index of the sphere in bounds.
+	 * @return The model at the level of detail to draw.
+	 */
+	public ModelMultipleLights select(float[] bounds, int offset) {
+		camera.getPosition(eye);
+		float dx = bounds[offset] - eye.x;
+		float dy = bounds[offset+1] - eye.y;
+		float dz = bounds[offset+2] - eye.z;
+		float distance = (float)Math.sqrt(dx*dx + dy*dy + dz*dz);
+		float radius = bounds[offset+3];
+		// The projection's y scale is 1/tan(fov/2), so this is the radius over half the screen
+		float size = (distance <= radius) ? Float.POSITIVE_INFINITY
+			: radius*camera.getPerspectiveMatrix().get(1, 1)/distance;
+
+		int last = Math.min(levels.length, SWITCH_SIZES.length + 1) - 1;
+		level = Math.min(level, last);
+		while (level > 0 && size > SWITCH_SIZES[level-1]*(1 + HYSTERESIS)) level--;
+		while (level < last && size < SWITCH_SIZES[level]*(1 - HYSTERESIS)) level++;
+		levelCounts[level]++;
+		return levels[level];
+	}
+
+	/**
+	 * Get the level of detail picked when the node was last drawn.
+	 *
+	 * @return The level (0 is the most detailed).
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Render the model at the level of detail for its current size on screen, as well as children
+	 * nodes of the current node.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 */
+	public void draw(GL3 gl) {
+		Frustum.transformSphere(worldTransform.toFloatArrayForGLSL(), 0, model.getMesh(), sphere, 0);
+		select(sphere, 0).render(gl, worldTransform);
+		for (int i=0; i<children.size(); i++) {
+			children.get(i).draw(gl);
+		}
+	}
+
+	/**
+	 * Get the number of models drawn at a level of detail since the counts were last reset.
+	 *
+	 * @param level The level of detail.
+	 * @return The number of models drawn at the level.
+	 */
+	public static int getLevelCount(int level) {
+		return levelCounts[level];
+	}
+
+	/**
+	 * Reset the number of models drawn at each level of detail (called at the start of each frame).
+	 */
+	public static void resetCounts() {
+		for (int i=0; i<levelCounts.length; i++) {
+			levelCounts[i] = 0;
+		}
+	}
+}
@@ -5,18 +5,34 @@ import com.jogamp.opengl.*;
 
 /**
  * Class for representing the shape defined by vertices/indices and managing the buffers associated
- * with them.
+ * with them. A mesh can be shared by several models (see MeshRegistry), so it counts its users and
+ * only frees its buffers when the last one disposes of it.
+ *
+ * Vertices are uploaded in a compact format by default (see VertexFormat), and indices as 16-bit
+ * values whenever the mesh has few enough vertices, which halves the memory and bandwidth used
+ * by the meshes.
  */
 public class Mesh {
+	// Format used for meshes made without one (see setCompactVertices)
+	private static boolean compactVertices = true;
+	// Bytes held in the vertex and index buffers of every mesh that has not been freed
+	private static long bufferBytes = 0;
+
 	private float[] vertices;
 	private int[] indices;
-	private int vertexStride = 8;
-	private int vertexXYZFloats = 3;
-	private int vertexNormalFloats = 3;
-	private int vertexTexFloats = 2;
+	private final VertexFormat format;
+	// GL_UNSIGNED_SHORT or GL_UNSIGNED_INT, depending on the number of vertices
+	private final int indexType;
+	private int bytes;
 	private int[] vertexBufferId = new int[1];
 	private int[] vertexArrayId = new int[1];
 	private int[] elementBufferId = new int[1];
+	// Vertex array reading only the positions (made when first needed by drawPositions)
+	private int[] positionArrayId = new int[1];
+	private int users = 1;
+	// Local bounding box and the bounding sphere around it
+	private Vec3 boundsMin, boundsMax, boundsCenter;
+	private float boundsRadius;
 	
 	/**
 	 * Constructor. Set the vertices and indices and fill the associated buffers.
@@ -26,10 +42,47 @@ public class Mesh {
 	 * @param indices The indices of the shape.
 	 */
 	public Mesh(GL3 gl, float[] vertices, int[] indices) {
+		this(gl, vertices, indices, compactVertices ? VertexFormat.compactFor(vertices)
+		                                            : VertexFormat.FULL);
+	}
+
+	/**
+	 * Constructor. Set the vertices and indices and fill the associated buffers, with the vertices
+	 * stored in a given format.
+	 * 
+	 * @param gl The OpenGL context used for rendering.
+	 * @param vertices The vertices of the shape (8 floats each: position, normal, texture).
+	 * @param indices The indices of the shape.
+	 * @param format The format the vertices are stored in on the GPU.
+	 */
+	public Mesh(GL3 gl, float[] vertices, int[] indices, VertexFormat format) {
 		this.vertices = vertices;
 		this.indices = indices;
+		this.format = format;
+		int vertexCount = vertices.length/VertexFormat.SOURCE_FLOATS;
+		indexType = (vertexCount <= 0x10000) ? GL.GL_UNSIGNED_SHORT : GL.GL_UNSIGNED_INT;
+		calculateBounds();
 		fillBuffers(gl);
 	}
+
+	/**
+	 * Set whether meshes made from now on store their vertices in a compact format (the default)
+	 * or as 8 floats per vertex.
+	 * 
+	 * @param compact True to use a compact format.
+	 */
+	public static void setCompactVertices(boolean compact) {
+		compactVertices = compact;
+	}
+
+	/**
+	 * Get the number of bytes held in the vertex and index buffers of every mesh.
+	 * 
+	 * @return The number of bytes.
+	 */
+	public static long getBufferBytes() {
+		return bufferBytes;
+	}
 	
 	/**
 	 * Draw the mesh by binding its vertex array and drawing.
@@ -38,10 +91,145 @@ public class Mesh {
 	 */
 	public void render(GL3 gl) {
 		gl.glBindVertexArray(vertexArrayId[0]);
-		gl.glDrawElements(GL.GL_TRIANGLES, indices.length, GL.GL_UNSIGNED_INT, 0);
+		gl.glDrawElements(GL.GL_TRIANGLES, indices.length, indexType, 0);
+		RenderState.countDrawCall(indices.length/3);
 		gl.glBindVertexArray(0);
 	}
 
+	/**
+	 * Draw the mesh, binding its vertex array through RenderState (so it is not rebound if already
+	 * bound) and leaving it bound afterwards. Used by draws submitted from the RenderQueue.
+	 * 
+	 * @param gl The OpenGL context used for rendering.
+	 */
+	public void draw(GL3 gl) {
+		RenderState.bindVertexArray(gl, vertexArrayId[0]);
+		gl.glDrawElements(GL.GL_TRIANGLES, indices.length, indexType, 0);
+		RenderState.countDrawCall(indices.length/3);
+	}
+
+	/**
+	 * Draw the mesh reading only its vertex positions (e.g. for a depth-only pass), through a
+	 * second vertex array over the same buffers. Like draw, the vertex array is bound through
+	 * RenderState and left bound.
+	 * 
+	 * @param gl The OpenGL context used for rendering.
+	 */
+	public void drawPositions(GL3 gl) {
+		if (positionArrayId[0] == 0) {
+			gl.glGenVertexArrays(1, positionArrayId, 0);
+			gl.glBindVertexArray(positionArrayId[0]);
+			gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vertexBufferId[0]);
+			format.bindAttributes(gl, true);
+			gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, elementBufferId[0]);
+			gl.glBindVertexArray(0);
+			// The vertex array was changed behind the render state's back
+			RenderState.invalidate();
+		}
+		RenderState.bindVertexArray(gl, positionArrayId[0]);
+		gl.glDrawElements(GL.GL_TRIANGLES, indices.length, indexType, 0);
+		RenderState.countDrawCall(indices.length/3);
+	}
+
+	/**
+	 * Get the ID of the mesh's vertex array.
+	 * 
+	 * @return The vertex array ID.
+	 */
+	public int getVertexArrayId() {
+		return vertexArrayId[0];
+	}
+
+	/**
+	 * Get the number of indices drawn for the mesh.
+	 * 
+	 * @return The number of indices.
+	 */
+	public int getIndexCount() {
+		return indices.length;
+	}
+
+	/**
+	 * Get the type of the mesh's indices.
+	 * 
+	 * @return GL_UNSIGNED_SHORT or GL_UNSIGNED_INT.
+	 */
+	public int getIndexType() {
+		return indexType;
+	}
+
+	/**
+	 * Get the format the mesh's vertices are stored in.
+	 * 
+	 * @return The vertex format.
+	 */
+	public VertexFormat getFormat() {
+		return format;
+	}
+
+	/**
+	 * Get the corner of the mesh's local bounding box with the smallest coordinates.
+	 * 
+	 * @return The minimum corner of the bounding box.
+	 */
+	public Vec3 getBoundsMin() {
+		return boundsMin;
+	}
+
+	/**
+	 * Get the corner of the mesh's local bounding box with the largest coordinates.
+	 * 
+	 * @return The maximum corner of the bounding box.
+	 */
+	public Vec3 getBoundsMax() {
+		return boundsMax;
+	}
+
+	/**
+	 * Get the centre of the mesh's local bounding sphere.
+	 * 
+	 * @return The centre of the bounding sphere.
+	 */
+	public Vec3 getBoundsCenter() {
+		return boundsCenter;
+	}
+
+	/**
+	 * Get the radius of the mesh's local bounding sphere.
+	 * 
+	 * @return The radius of the bounding sphere.
+	 */
+	public float getBoundsRadius() {
+		return boundsRadius;
+	}
+
+	/**
+	 * Calculate the local bounding box of the vertex positions, and a bounding sphere centred on
+	 * the box that encloses every vertex.
+	 */
+	private void calculateBounds() {
+		boundsMin = new Vec3(Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE);
+		boundsMax = new Vec3(-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE);
+		for (int i=0; i<vertices.length; i+=VertexFormat.SOURCE_FLOATS) {
+			boundsMin.x = Math.min(boundsMin.x, vertices[i]);
+			boundsMin.y = Math.min(boundsMin.y, vertices[i+1]);
+			boundsMin.z = Math.min(boundsMin.z, vertices[i+2]);
+			boundsMax.x = Math.max(boundsMax.x, vertices[i]);
+			boundsMax.y = Math.max(boundsMax.y, vertices[i+1]);
+			boundsMax.z = Math.max(boundsMax.z, vertices[i+2]);
+		}
+		boundsCenter = new Vec3((boundsMin.x+boundsMax.x)*0.5f, (boundsMin.y+boundsMax.y)*0.5f,
+		                        (boundsMin.z+boundsMax.z)*0.5f);
+		float radiusSquared = 0;
+		for (int i=0; i<vertices.length; i+=VertexFormat.SOURCE_FLOATS) {
+			float dx = vertices[i]-boundsCenter.x;
+			float dy = vertices[i+1]-boundsCenter.y;
+			float dz = vertices[i+2]-boundsCenter.z;
+			radiusSquared = Math.max(radiusSquared, dx*dx + dy*dy + dz*dz);
+		}
+		boundsRadius = (float)Math.sqrt(radiusSquared);
+	}
+
 	/**
 	 * Initialise and fill the OpenGL buffers with position, normal and texture data.
 	 * 
@@ -52,45 +240,76 @@ public class Mesh {
 		gl.glBindVertexArray(vertexArrayId[0]);
 		gl.glGenBuffers(1, vertexBufferId, 0);
 		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vertexBufferId[0]);
-		FloatBuffer fb = Buffers.newDirectFloatBuffer(vertices);
-		
-		gl.glBufferData(GL.GL_ARRAY_BUFFER, Float.BYTES * vertices.length, fb, GL.GL_STATIC_DRAW);
-		
-		int stride = vertexStride;
-		int numXYZFloats = vertexXYZFloats;
-		int offset = 0;
-		gl.glVertexAttribPointer(0, numXYZFloats, GL.GL_FLOAT, false, stride*Float.BYTES, offset);
-		gl.glEnableVertexAttribArray(0);
-	
-		// x, y, z for each vertex
-		int numNormalFloats = vertexNormalFloats;
-		// Normal values are the three floats after the x,y,z values, so offset needs to be changed
-		offset = numXYZFloats*Float.BYTES;
-		// Vertex shader uses location 1 for normal information
-		gl.glVertexAttribPointer(1, numNormalFloats, GL.GL_FLOAT, false, stride*Float.BYTES, offset);
-		// Enable vertex attribute array at location 1
-		gl.glEnableVertexAttribArray(1);
-
-		// Only 2 values stored for each texture coordinate
-		int numTexFloats = vertexTexFloats;
-		offset = (numXYZFloats+numNormalFloats)*Float.BYTES;
-		gl.glVertexAttribPointer(2, numTexFloats, GL.GL_FLOAT, false, stride*Float.BYTES, offset);
-		gl.glEnableVertexAttribArray(2);
+		ByteBuffer vb = format.pack(vertices);
+		gl.glBufferData(GL.GL_ARRAY_BUFFER, vb.capacity(), vb, GL.GL_STATIC_DRAW);
 		
 		gl.glGenBuffers(1, elementBufferId, 0);
-		IntBuffer ib = Buffers.newDirectIntBuffer(indices);
 		gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, elementBufferId[0]);
-		gl.glBufferData(GL.GL_ELEMENT_ARRAY_BUFFER, Integer.BYTES * indices.length, ib, GL.GL_STATIC_DRAW);
+		if (indexType == GL.GL_UNSIGNED_SHORT) {
+			ShortBuffer sb = Buffers.newDirectShortBuffer(indices.length);
+			for (int i=0; i<indices.length; i++) {
+				// Stored unsigned, so indices up to 65535 fit
+				sb.put((short)indices[i]);
+			}
+			sb.flip();
+			gl.glBufferData(GL.GL_ELEMENT_ARRAY_BUFFER, Short.BYTES * indices.length, sb, GL.GL_STATIC_DRAW);
+		}
+		else {
+			IntBuffer ib = Buffers.newDirectIntBuffer(indices);
+			gl.glBufferData(GL.GL_ELEMENT_ARRAY_BUFFER, Integer.BYTES * indices.length, ib, GL.GL_STATIC_DRAW);
+		}
+		bytes = vb.capacity() + indices.length*((indexType == GL.GL_UNSIGNED_SHORT) ? 2 : 4);
+		bufferBytes += bytes;
+
+		bindVertexAttributes(gl);
+		gl.glBindVertexArray(0);
+	}
+
+	/**
+	 * Point the position, normal and texture attributes (locations 0-2) and the element buffer of 
+	 * the currently bound vertex array at this mesh's buffers, as laid out by its vertex format.
+	 * Also used by other vertex arrays that draw the same data (e.g. with extra per-instance
+	 * attributes).
+	 * 
+	 * @param gl The OpenGL context used for rendering.
+	 */
+	public void bindVertexAttributes(GL3 gl) {
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vertexBufferId[0]);
+		format.bindAttributes(gl, false);
+		gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, elementBufferId[0]);
+	}
+	
+	/**
+	 * Register one more user of the mesh, which must later call dispose like the original owner.
+	 * 
+	 * @return This mesh.
+	 */
+	public Mesh retain() {
+		users++;
+		return this;
+	}
+
+	/**
+	 * Return whether or not the mesh's buffers have been freed (i.e. every user has disposed of it).
+	 * 
+	 * @return True if the mesh can no longer be rendered.
+	 */
+	public boolean isDisposed() {
+		return users == 0;
 	}
 	
 	/**
-	 * Discard the mesh and free up the buffer-related resources it used.
+	 * Release one user of the mesh, and discard the mesh and free up the buffer-related resources 
+	 * it used once no users remain.
 	 * 
 	 * @param gl The OpenGL context used for rendering.
 	 */
 	public void dispose(GL3 gl) {
+		if (users == 0 || --users > 0) return;
 		gl.glDeleteBuffers(1, vertexBufferId, 0);
 		gl.glDeleteVertexArrays(1, vertexArrayId, 0);
+		if (positionArrayId[0] != 0) gl.glDeleteVertexArrays(1, positionArrayId, 0);
 		gl.glDeleteBuffers(1, elementBufferId, 0);
+		bufferBytes -= bytes;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,436 @@
+import java.util.Arrays;
+
+/**
+ * Class for optimising a mesh's vertices and indices when it is loaded, before it is uploaded.
+ * The mesh is changed in four steps, none of which change how it looks:
+ * - identical vertices (every position, normal and texture value the same) are welded into one
+ * - degenerate triangles (with no area, such as those at the poles of a sphere) are removed
+ * - triangles are reordered so that recently transformed vertices are reused while they are still
+ *   in the GPU's post-transform vertex cache (Tom Forsyth's linear-speed vertex cache
+ *   optimisation)
+ * - vertices are renumbered in the order they are first used, so they are fetched in order
+ *
+ * The average cache miss ratio (ACMR: vertices transformed per triangle, for a FIFO cache of
+ * ACMR_CACHE_SIZE vertices) is calculated before and after, so the gain can be checked (run with
+ * 'java MeshOptimizer' to print it for every primitive shape).
+ */
+public final class MeshOptimizer {
+	// Size of the FIFO cache the ACMR is measured with (a typical post-transform cache)
+	public static final int ACMR_CACHE_SIZE = 16;
+	private static final int FLOATS = VertexFormat.SOURCE_FLOATS;
+
+	// Scoring used to pick the next triangle (values from Forsyth's description of the algorithm)
+	private static final int CACHE_SIZE = 32;
+	private static final float CACHE_DECAY_POWER = 1.5f;
+	private static final float LAST_TRIANGLE_SCORE = 0.75f;
+	private static final float VALENCE_BOOST_SCALE = 2.0f;
+	private static final float VALENCE_BOOST_POWER = 0.5f;
+	// Triangles thinner than this fraction of their longest edge are treated as degenerate
+	private static final double DEGENERATE_RATIO = 1e-6;
+
+	/**
+	 * Optimise a mesh.
+	 *
+	 * @param vertices The vertices of the mesh (8 floats each: position, normal, texture).
+	 * @param indices The indices of the mesh's triangles.
+	 * @return The optimised mesh and the ACMR before and after.
+	 */
+	public static Result optimize(float[] vertices, int[] indices) {
+		float acmrBefore = acmr(indices, ACMR_CACHE_SIZE);
+		int[] remap = new int[vertices.length/FLOATS];
+		float[] welded = weld(vertices, remap);
+		int[] weldedIndices = new int[indices.length];
+		for (int i=0; i<indices.length; i++) {
+			weldedIndices[i] = remap[indices[i]];
+		}
+		int[] kept = removeDegenerate(welded, weldedIndices);
+		int[] ordered = orderForVertexCache(kept, welded.length/FLOATS);
+		float[] fetchOrdered = orderForVertexFetch(welded, ordered);
+		return new Result(fetchOrdered, ordered, acmrBefore, acmr(ordered, ACMR_CACHE_SIZE));
+	}
+
+	/**
+	 * Calculate the average cache miss ratio of a triangle list: the number of vertices that would
+	 * be transformed per triangle with a FIFO post-transform cache (1.5 to 3 for most meshes, and
+	 * 0.5 at best).
+	 *
+	 * @param indices The indices of the triangles.
+	 * @param cacheSize The number of vertices the cache holds.
+	 * @return The average cache miss ratio.
+	 */
+	public static float acmr(int[] indices, int cacheSize) {
+		if (indices.length == 0) return 0;
+		int vertexCount = 0;
+		for (int index : indices) {
+			vertexCount = Math.max(vertexCount, index + 1);
+		}
+		// The miss count when each vertex last entered the cache (-1 if it never has)
+		int[] entered = new int[vertexCount];
+		Arrays.fill(entered, -1);
+		int misses = 0;
+		for (int index : indices) {
+			if (entered[index] < 0 || misses - entered[index] >= cacheSize) {
+				entered[index] = misses;
+				misses++;
+			}
+		}
+		return (float)misses/(indices.length/3);
+	}
+
+	/**
+	 * Weld identical vertices into one.
+	 *
+	 * @param vertices The vertices.
+	 * @param remap Receives the new index of each original vertex.
+	 * @return The unique vertices, in the order they first appear.
+	 */
+	private static float[] weld(float[] vertices, int[] remap) {
+		int count = vertices.length/FLOATS;
+		// Open addressing hash table of unique vertex indices (-1 for empty), at most half full
+		int[] table = new int[Integer.highestOneBit(Math.max(count, 1))*4];
+		Arrays.fill(table, -1);
+		float[] unique = new float[vertices.length];
+		int uniqueCount = 0;
+		for (int v=0; v<count; v++) {
+			int slot = hash(vertices, v*FLOATS) & (table.length - 1);
+			while (table[slot] >= 0 && !equal(unique, table[slot]*FLOATS, vertices, v*FLOATS)) {
+				slot = (slot + 1) & (table.length - 1);
+			}
+			if (table[slot] < 0) {
+				System.arraycopy(vertices, v*FLOATS, unique, uniqueCount*FLOATS, FLOATS);
+				table[slot] = uniqueCount++;
+			}
+			remap[v] = table[slot];
+		}
+		return Arrays.copyOf(unique, uniqueCount*FLOATS);
+	}
+
+	/**
+	 * Hash the values of a vertex.
+	 *
+	 * @param vertices The array holding the vertex.
+	 * @param offset The index of the vertex's first value.
+	 * @return The hash.
+	 */
+	private static int hash(float[] vertices, int offset) {
+		int h = 0;
+		for (int i=0; i<FLOATS; i++) {
+			h = h*31 + Float.floatToIntBits(vertices[offset+i]);
+		}
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Compare the values of two vertices.
+	 *
+	 * @param a The array holding the first vertex.
+	 * @param aOffset The index of the first vertex's first value.
+	 * @param b The array holding the second vertex.
+	 * @param bOffset The index of the second vertex's first value.
+	 * @return True if every value is the same.
+	 */
+	private static boolean equal(float[] a, int aOffset, float[] b, int bOffset) {
+		for (int i=0; i<FLOATS; i++) {
+			if (Float.floatToIntBits(a[aOffset+i]) != Float.floatToIntBits(b[bOffset+i]))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Remove the triangles that have no area: those using a vertex twice, or whose corners are
+	 * (almost exactly) in a line or in the same place.
+	 *
+	 * @param vertices The vertices.
+	 * @param indices The indices of the triangles.
+	 * @return The indices of the remaining triangles.
+	 */
+	private static int[] removeDegenerate(float[] vertices, int[] indices) {
+		int[] kept = new int[indices.length];
+		int keptCount = 0;
+		for (int t=0; t<indices.length; t+=3) {
+			int a = indices[t]*FLOATS, b = indices[t+1]*FLOATS, c = indices[t+2]*FLOATS;
+			double e1x = vertices[b]-vertices[a], e1y = vertices[b+1]-vertices[a+1],
+				e1z = vertices[b+2]-vertices[a+2];
+			double e2x = vertices[c]-vertices[a], e2y = vertices[c+1]-vertices[a+1],
+				e2z = vertices[c+2]-vertices[a+2];
+			double cx = e1y*e2z - e1z*e2y, cy = e1z*e2x - e1x*e2z, cz = e1x*e2y - e1y*e2x;
+			double crossSquared = cx*cx + cy*cy + cz*cz;
+			double e3x = e2x-e1x, e3y = e2y-e1y, e3z = e2z-e1z;
+			double longestSquared = Math.max(e1x*e1x + e1y*e1y + e1z*e1z,
+				Math.max(e2x*e2x + e2y*e2y + e2z*e2z, e3x*e3x + e3y*e3y + e3z*e3z));
+			// |e1 x e2| is the longest edge times the triangle's height from it
+			double limit = DEGENERATE_RATIO*longestSquared;
+			if (crossSquared <= limit*limit) continue;
+			System.arraycopy(indices, t, kept, keptCount, 3);
+			keptCount += 3;
+		}
+		return Arrays.copyOf(kept, keptCount);
+	}
+
+	/**
+	 * Reorder triangles for the post-transform vertex cache. Each vertex is scored by its place
+	 * in a simulated LRU cache and by how few triangles still use it, and the triangle with the
+	 * highest total score is always drawn next (only the triangles of vertices in the cache need
+	 * rescoring after each one).
+	 *
+	 * @param indices The indices of the triangles.
+	 * @param vertexCount The number of vertices.
+	 * @return The indices of the triangles in their new order.
+	 */
+	private static int[] orderForVertexCache(int[] indices, int vertexCount) {
+		int triangleCount = indices.length/3;
+		// Triangles using each vertex, and how many of them have not been drawn yet
+		int[] remaining = new int[vertexCount];
+		for (int index : indices) {
+			remaining[index]++;
+		}
+		int[] firstTriangle = new int[vertexCount + 1];
+		for (int v=0; v<vertexCount; v++) {
+			firstTriangle[v+1] = firstTriangle[v] + remaining[v];
+		}
+		int[] vertexTriangles = new int[indices.length];
+		int[] filled = new int[vertexCount];
+		for (int i=0; i<indices.length; i++) {
+			int v = indices[i];
+			vertexTriangles[firstTriangle[v] + filled[v]++] = i/3;
+		}
+
+		int[] cachePosition = new int[vertexCount];
+		Arrays.fill(cachePosition, -1);
+		float[] vertexScore = new float[vertexCount];
+		for (int v=0; v<vertexCount; v++) {
+			vertexScore[v] = score(-1, remaining[v]);
+		}
+		float[] triangleScore = new float[triangleCount];
+		boolean[] drawn = new boolean[triangleCount];
+		for (int t=0; t<triangleCount; t++) {
+			triangleScore[t] = vertexScore[indices[t*3]] + vertexScore[indices[t*3+1]]
+				+ vertexScore[indices[t*3+2]];
+		}
+
+		int[] cache = new int[CACHE_SIZE + 3];
+		int[] newCache = new int[CACHE_SIZE + 3];
+		int cacheCount = 0;
+		int[] ordered = new int[indices.length];
+		int best = highestScore(triangleScore, drawn);
+		// Triangles before this have all been drawn (used when the cache has nothing left to draw)
+		int scanStart = 0;
+		for (int n=0; n<triangleCount; n++) {
+			if (best < 0) {
+				while (drawn[scanStart]) scanStart++;
+				best = scanStart;
+			}
+			drawn[best] = true;
+			System.arraycopy(indices, best*3, ordered, n*3, 3);
+
+			// The triangle's vertices move to the front of the cache, followed by the rest in order
+			int newCount = 0;
+			for (int i=0; i<3; i++) {
+				int v = indices[best*3 + i];
+				newCache[newCount++] = v;
+				// Forget the triangle from the vertex's list of remaining triangles
+				int start = firstTriangle[v], end = start + remaining[v];
+				for (int k=start; k<end; k++) {
+					if (vertexTriangles[k] == best) {
+						vertexTriangles[k] = vertexTriangles[end-1];
+						vertexTriangles[end-1] = best;
+						break;
+					}
+				}
+				remaining[v]--;
+			}
+			for (int i=0; i<cacheCount; i++) {
+				int v = cache[i];
+				if (v != newCache[0] && v != newCache[1] && v != newCache[2]) newCache[newCount++] = v;
+			}
+			// Vertices pushed out of the cache, then every vertex still in it, are rescored
+			for (int i=CACHE_SIZE; i<newCount; i++) {
+				cachePosition[newCache[i]] = -1;
+			}
+			for (int i=0; i<newCount; i++) {
+				int v = newCache[i];
+				if (i < CACHE_SIZE) cachePosition[v] = i;
+				vertexScore[v] = score(cachePosition[v], remaining[v]);
+			}
+			cacheCount = Math.min(newCount, CACHE_SIZE);
+			int[] swap = cache;
+			cache = newCache;
+			newCache = swap;
+
+			// Rescore the triangles of the vertices that were rescored, and draw the best next
+			best = -1;
+			float bestScore = -1;
+			for (int i=0; i<newCount; i++) {
+				int v = cache[i];
+				for (int k=firstTriangle[v]; k<firstTriangle[v] + remaining[v]; k++) {
+					int t = vertexTriangles[k];
+					float s = vertexScore[indices[t*3]] + vertexScore[indices[t*3+1]]
+						+ vertexScore[indices[t*3+2]];
+					triangleScore[t] = s;
+					if (s > bestScore) {
+						bestScore = s;
+						best = t;
+					}
+				}
+			}
+		}
+		return ordered;
+	}
+
+	/**
+	 * Find the triangle with the highest score that has not been drawn.
+	 *
+	 * @param triangleScore The score of each triangle.
+	 * @param drawn Whether each triangle has been drawn.
+	 * @return The index of the triangle, or -1 if every triangle has been drawn.
+	 */
+	private static int highestScore(float[] triangleScore, boolean[] drawn) {
+		int best = -1;
+		for (int t=0; t<triangleScore.length; t++) {
+			if (!drawn[t] && (best < 0 || triangleScore[t] > triangleScore[best])) best = t;
+		}
+		return best;
+	}
+
+	/**
+	 * Score a vertex for the vertex cache ordering: higher for vertices near the front of the
+	 * cache, and for vertices with few triangles left (so no vertex is left with lone triangles).
+	 *
+	 * @param cachePosition The vertex's position in the cache (-1 if it is not in the cache).
+	 * @param remaining The number of triangles still to be drawn that use the vertex.
+	 * @return The score.
+	 */
+	private static float score(int cachePosition, int remaining) {
+		if (remaining == 0) return -1;
+		float score = 0;
+		if (cachePosition >= 0) {
+			// The last triangle's vertices score the same, so it does not matter which it used last
+			if (cachePosition < 3) {
+				score = LAST_TRIANGLE_SCORE;
+			}
+			else {
+				float scaled = 1 - (float)(cachePosition - 3)/(CACHE_SIZE - 3);
+				score = (float)Math.pow(scaled, CACHE_DECAY_POWER);
+			}
+		}
+		return score + VALENCE_BOOST_SCALE*(float)Math.pow(remaining, -VALENCE_BOOST_POWER);
+	}
+
+	/**
+	 * Renumber the vertices in the order the triangles first use them (dropping any unused
+	 * vertices), so that vertices are fetched from memory in order.
+	 *
+	 * @param vertices The vertices.
+	 * @param indices The indices of the triangles, which are changed to the new numbering.
+	 * @return The vertices in their new order.
+	 */
+	private static float[] orderForVertexFetch(float[] vertices, int[] indices) {
+		int[] newIndex = new int[vertices.length/FLOATS];
+		Arrays.fill(newIndex, -1);
+		float[] ordered = new float[vertices.length];
+		int count = 0;
+		for (int i=0; i<indices.length; i++) {
+			int v = indices[i];
+			if (newIndex[v] < 0) {
+				System.arraycopy(vertices, v*FLOATS, ordered, count*FLOATS, FLOATS);
+				newIndex[v] = count++;
+			}
+			indices[i] = newIndex[v];
+		}
+		return Arrays.copyOf(ordered, count*FLOATS);
+	}
+
+	/**
+	 * Print the size and ACMR of every primitive shape (and every sphere level of detail) before
+	 * and after optimisation.
+	 *
+	 * @param args The command line arguments (unused).
+	 */
+	public static void main(String[] args) {
+		System.out.println(String.format("%-16s %18s %18s %14s", "Mesh", "vertices",
+		                                 "triangles", "ACMR"));
+		report("sphere", Sphere.vertices, Sphere.indices);
+		for (int level=1; level<Sphere.LOD_LEVELS; level++) {
+			report("sphere LOD " + level, Sphere.getVertices(level), Sphere.getIndices(level));
+		}
+		report("cube", Cube.vertices, Cube.indices);
+		report("triangle", Triangle.vertices, Triangle.indices);
+		report("two triangles", TwoTriangles.vertices, TwoTriangles.indices);
+	}
+
+	/**
+	 * Optimise a mesh and print its size and ACMR before and after.
+	 *
+	 * @param name The name of the mesh.
+	 * @param vertices The vertices of the mesh.
+	 * @param indices The indices of the mesh.
+	 */
+	private static void report(String name, float[] vertices, int[] indices) {
+		Result result = optimize(vertices, indices);
+		System.out.println(String.format(java.util.Locale.ROOT,
+			"%-16s %8d -> %-7d %8d -> %-7d %.3f -> %.3f", name, vertices.length/FLOATS, result.getVertices().length/FLOATS,
+			indices.length/3, result.getIndices().length/3,
+			result.getAcmrBefore(), result.getAcmrAfter()));
+	}
+
+	/**
+	 * Class for the result of optimising a mesh.
+	 */
+	public static final class Result {
+		private final float[] vertices;
+		private final int[] indices;
+		private final float acmrBefore, acmrAfter;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param vertices The optimised vertices.
+		 * @param indices The optimised indices.
+		 * @param acmrBefore The ACMR of the original mesh.
+		 * @param acmrAfter The ACMR of the optimised mesh.
+		 */
+		private Result(float[] vertices, int[] indices, float acmrBefore, float acmrAfter) {
+			this.vertices = vertices;
+			this.indices = indices;
+			this.acmrBefore = acmrBefore;
+			this.acmrAfter = acmrAfter;
+		}
+
+		/**
+		 * Get the optimised vertices.
+		 *
+		 * @return The vertices (8 floats each).
+		 */
+		public float[] getVertices() {
+			return vertices;
+		}
+
+		/**
+		 * Get the optimised indices.
+		 *
+		 * @return The indices of the triangles.
+		 */
+		public int[] getIndices() {
+			return indices;
+		}
+
+		/**
+		 * Get the ACMR of the original mesh.
+		 *
+		 * @return The average cache miss ratio before optimisation.
+		 */
+		public float getAcmrBefore() {
+			return acmrBefore;
+		}
+
+		/**
+		 * Get the ACMR of the optimised mesh.
+		 *
+		 * @return The average cache miss ratio after optimisation.
+		 */
+		public float getAcmrAfter() {
+			return acmrAfter;
+		}
+	}
+}
@@ -0,0 +1,115 @@
+import java.util.EnumMap;
+import java.util.Map;
+import com.jogamp.opengl.*;
+
+/**
+ * Class for sharing one uploaded mesh per primitive shape (sphere, cube, etc.) between every model
+ * that uses it, instead of every model uploading its own copy of the same vertices and indices.
+ * Meshes are reference counted, so a shared mesh is only freed once its last user disposes of it.
+ *
+ * The sphere is also shared at each of its coarser levels of detail (see acquireSphere).
+ *
+ * Each shape is run through the MeshOptimizer before it is uploaded, so its triangles are drawn
+ * in an order that makes good use of the GPU's vertex cache.
+ */
+public final class MeshRegistry {
+	public enum Primitive {SPHERE, CUBE, TRIANGLE, TWO_TRIANGLES, TWO_TRIANGLES_LOOP_TEXTURE};
+
+	// Optimise each shape's vertices and indices before uploading them
+	private static final boolean OPTIMIZE_MESHES = true;
+
+	private static final Map<Primitive,Mesh> meshes = new EnumMap<Primitive,Mesh>(Primitive.class);
+	// Sphere meshes for the levels of detail after the first (level 0 is the SPHERE primitive)
+	private static final Mesh[] sphereLevels = new Mesh[Sphere.LOD_LEVELS];
+
+	/**
+	 * Get the shared mesh for a primitive shape, uploading it first if no model currently uses it.
+	 * Each call counts as one more user of the mesh, so must be matched by a call to the mesh's
+	 * dispose method.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param primitive The shape of the mesh.
+	 * @return The shared mesh for the shape.
+	 */
+	public static Mesh acquire(GL3 gl, Primitive primitive) {
+		Mesh mesh = meshes.get(primitive);
+		if (mesh == null || mesh.isDisposed()) {
+			mesh = createMesh(gl, primitive);
+			meshes.put(primitive, mesh);
+		}
+		else {
+			mesh.retain();
+		}
+		return mesh;
+	}
+
+	/**
+	 * Get the shared sphere mesh for a level of detail, uploading it first if no model currently
+	 * uses it. Like acquire, each call must be matched by a call to the mesh's dispose method.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param level The level of detail (0 is the SPHERE primitive, up to Sphere.LOD_LEVELS-1).
+	 * @return The shared sphere mesh for the level.
+	 */
+	public static Mesh acquireSphere(GL3 gl, int level) {
+		if (level == 0) return acquire(gl, Primitive.SPHERE);
+		Mesh mesh = sphereLevels[level];
+		if (mesh == null || mesh.isDisposed()) {
+			mesh = createMesh(gl, Sphere.getVertices(level), Sphere.getIndices(level));
+			sphereLevels[level] = mesh;
+		}
+		else {
+			mesh.retain();
+		}
+		return mesh;
+	}
+
+	/**
+	 * Convert one of the shape names used when making models (e.g. "sphere") into a primitive.
+	 *
+	 * @param name The name of the shape.
+	 * @return The matching primitive, or null if the name is not recognised.
+	 */
+	public static Primitive fromName(String name) {
+		switch (name) {
+			case "sphere": return Primitive.SPHERE;
+			case "cube": return Primitive.CUBE;
+			case "triangle": return Primitive.TRIANGLE;
+			case "two triangles": return Primitive.TWO_TRIANGLES;
+			// Used for the right wall to loop one texture across the whole surface
+			case "two triangles (loop texture)": return Primitive.TWO_TRIANGLES_LOOP_TEXTURE;
+			default: return null;
+		}
+	}
+
+	/**
+	 * Upload the vertices and indices of a primitive shape into a new mesh.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param primitive The shape of the mesh.
+	 * @return The new mesh.
+	 */
+	private static Mesh createMesh(GL3 gl, Primitive primitive) {
+		switch (primitive) {
+			case SPHERE: return createMesh(gl, Sphere.vertices, Sphere.indices);
+			case CUBE: return createMesh(gl, Cube.vertices, Cube.indices);
+			case TRIANGLE: return createMesh(gl, Triangle.vertices, Triangle.indices);
+			case TWO_TRIANGLES: return createMesh(gl, TwoTriangles.vertices, TwoTriangles.indices);
+			default: return createMesh(gl, TwoTriangles.vertices_mipmap, TwoTriangles.indices);
+		}
+	}
+
+	/**
+	 * Optimise a shape's vertices and indices (see MeshOptimizer) and upload them into a new mesh.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param vertices The vertices of the shape.
+	 * @param indices The indices of the shape.
+	 * @return The new mesh.
+	 */
+	private static Mesh createMesh(GL3 gl, float[] vertices, int[] indices) {
+		if (!OPTIMIZE_MESHES) return new Mesh(gl, vertices, indices);
+		MeshOptimizer.Result optimized = MeshOptimizer.optimize(vertices, indices);
+		return new Mesh(gl, optimized.getVertices(), optimized.getIndices());
+	}
+}
\ No newline at end of file
@@ -18,8 +18,19 @@ import com.jogamp.opengl.util.texture.*;
  * 
  * Changes made:
  * - A new class for preparing model matrices and models to be put into scene graphs
+ * - Meshes are shared between models of the same shape via MeshRegistry
+ * - Models are drawn through InstancedBatch (one draw call per mesh/material/texture combination)
+ * - makePart() can take texture array layers, so models textured from the same texture array share
+ *   a batch
+ * - Sphere models are given coarser levels of detail, and makeBranch() puts them in a LodModelNode
+ *   so the level drawn follows their size on screen
  */
 public final class ModelMaker {
+	// Draw models made here with hardware instancing rather than one draw call per model
+	private static final boolean INSTANCED_RENDERING = true;
+	// Give sphere models coarser levels of detail, drawn when they are small on screen
+	private static final boolean LEVELS_OF_DETAIL = true;
+
 	/**
 	 * Model creation function with many parameters to fit different shape types and texture 
 	 * selections.
@@ -39,18 +50,37 @@ public final class ModelMaker {
     public static ModelMultipleLights makePart(GL3 gl, String name, Material material, 
 	                                           Mat4 modelMatrix, Shader shader, Texture[] textures, 
 											   Light[] lights, Camera camera, String modelOption) {
+		return makePart(gl, name, material, modelMatrix, shader, textures, null, lights, camera,
+		                modelOption);
+	}
+
+	/**
+	 * Model creation function for models whose textures are layers of texture arrays (see
+	 * TextureLibrary.addArray). The shader must be compiled with TextureLibrary.ARRAY_DEFINE.
+	 * 
+	 * @param gl The OpenGL context used for rendering.
+	 * @param name The name of the model.
+	 * @param material The material of the model.
+	 * @param modelMatrix The transformation matrix associated with the model.
+	 * @param shader The shader to use (whether it accounts for specular/diffuse, etc.).
+	 * @param textures The array of textures for the model (used to determine which model 
+	 				    constructor to use)
+	 * @param layers The layer of each texture within its texture array (null if the textures are
+	 				  not texture arrays).
+	 * @param lights The lights in the scene.
+	 * @param camera The camera in the scene.
+	 * @param modelOption The shape type of the model (sphere, cube, triangle, etc.).
+	 * @return Fully prepared model for rendering.
+	 */
+    public static ModelMultipleLights makePart(GL3 gl, String name, Material material, 
+	                                           Mat4 modelMatrix, Shader shader, Texture[] textures, 
+											   int[] layers, Light[] lights, Camera camera,
+											   String modelOption) {
+		// Models of the same shape share one mesh rather than each uploading their own copy
 		Mesh mesh = null;
-        if (modelOption == "sphere")
-            mesh = new Mesh(gl, Sphere.vertices.clone(), Sphere.indices.clone());
-        else if (modelOption == "cube")
-            mesh = new Mesh(gl, Cube.vertices.clone(), Cube.indices.clone());
-        else if (modelOption == "triangle")
-            mesh = new Mesh(gl, Triangle.vertices.clone(), Triangle.indices.clone());
-        else if (modelOption == "two triangles")
-            mesh = new Mesh(gl, TwoTriangles.vertices.clone(), TwoTriangles.indices.clone());
-		// Used for the right wall to loop one texture across the whole surface
-        else if (modelOption == "two triangles (loop texture)")
-			mesh = new Mesh(gl, TwoTriangles.vertices_mipmap.clone(), TwoTriangles.indices.clone());
+		MeshRegistry.Primitive primitive = MeshRegistry.fromName(modelOption);
+		if (primitive != null)
+			mesh = MeshRegistry.acquire(gl, primitive);
 
 		ModelMultipleLights model;
 		switch (textures.length) {
@@ -69,9 +99,34 @@ public final class ModelMaker {
 				model = new ModelMultipleLights(name, mesh, modelMatrix, shader, material, lights, 
 												camera);
 		}
+		// Layers are set before the batch is chosen (the batch does not depend on them)
+		if (layers != null)
+			model.setTextureLayers(layers[0], layers.length > 1 ? layers[1] : 0);
+		if (INSTANCED_RENDERING && mesh != null)
+			model.setBatch(InstancedBatch.forModel(gl, model));
+		if (LEVELS_OF_DETAIL && primitive == MeshRegistry.Primitive.SPHERE)
+			addSphereLevels(gl, model);
 		return model;
 	}
 
+	/**
+	 * Give a sphere model a copy at each coarser level of detail of the sphere mesh, each drawn
+	 * the same way as the model (in its own instanced batch if the model has one).
+	 * 
+	 * @param gl The OpenGL context used for rendering.
+	 * @param model The sphere model (level 0).
+	 */
+	private static void addSphereLevels(GL3 gl, ModelMultipleLights model) {
+		ModelMultipleLights[] levels = new ModelMultipleLights[Sphere.LOD_LEVELS];
+		levels[0] = model;
+		for (int i=1; i<levels.length; i++) {
+			levels[i] = model.withMesh(MeshRegistry.acquireSphere(gl, i));
+			if (model.getBatch() != null)
+				levels[i].setBatch(InstancedBatch.forModel(gl, levels[i]));
+		}
+		model.setLevelsOfDetail(levels);
+	}
+
 	/**
 	 * Create a branch for preparing the model for the scene graph and converting it to a SGNode.
 	 * 
@@ -104,7 +159,9 @@ public final class ModelMaker {
 		Mat4 m = Mat4Transform.scale(sx,sy,sx);
 		m = Mat4.multiply(m, Mat4Transform.translate(0,0.5f,0));
 		TransformNode branchScale = new TransformNode(name + " scale", m);
-		ModelNode modelNode = new ModelNode(name + "model", model);
+		ModelNode modelNode = (model.getLevelsOfDetail() != null)
+			? new LodModelNode(name + "model", model)
+			: new ModelNode(name + "model", model);
     	branchName.addChild(branchRotateX);
 			branchRotateX.addChild(branchRotateY);
 				branchRotateY.addChild(branchRotateZ);
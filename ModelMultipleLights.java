@@ -17,6 +17,20 @@ import com.jogamp.opengl.util.texture.spi.JPEGImage;
  * 
  * Changes made:
  * - Shaders are now updated with uniform variables for spotlight functionality (cutoff, direction)
+ * - Uniform locations are resolved into handles once (when the shader is set) rather than looked
+ *   up by name on every render
+ * - Camera and light values are no longer set per model; they are written once per frame into
+ *   the shared FrameData uniform block
+ * - Models can be given an InstancedBatch, in which case render only records the model matrix and
+ *   the model is drawn along with every other model in the batch in one instanced draw call
+ * - render() queues the model on the RenderQueue; draw() does the drawing, skipping any shader,
+ *   texture or vertex array binds that match the current state
+ * - draw() computes the normal matrix once per draw on the CPU (instead of an inverse per vertex
+ *   in vs_standard)
+ * - Textures can be layers of a texture array (setTextureLayers), so models with different
+ *   textures from the same array share texture bindings and instanced batches
+ * - Models can have coarser copies as levels of detail (setLevelsOfDetail), picked from each
+ *   frame by a LodModelNode
  */
 public class ModelMultipleLights {
 	private String name;
@@ -28,6 +42,21 @@ public class ModelMultipleLights {
 	private Light[] lights;
 	private Texture diffuse;
 	private Texture specular;
+	// Layers of the diffuse and specular textures, if they are texture arrays
+	private int diffuseLayer = 0;
+	private int specularLayer = 0;
+	private InstancedBatch batch;
+	// The model at each level of detail (this model first), or null if it has only one
+	private ModelMultipleLights[] levelsOfDetail;
+	// Normal matrix of the current draw (reused so drawing does not allocate)
+	private final Mat3 normalMatrix = new Mat3(1);
+
+	// Uniform handles resolved from the shader
+	private UniformHandle modelUniform, normalMatrixUniform, textureLayersUniform;
+	private UniformHandle materialAmbientUniform, materialDiffuseUniform, materialSpecularUniform, 
+		materialShininessUniform, firstTextureUniform, secondTextureUniform;
+	private UniformHandle lightDataUniform, clusterLightsUniform, lightIndicesUniform,
+		shadowMapsUniform;
 
 	/**
 	 * Constructor with no parameters. Sets every attribute as null.
@@ -67,6 +96,7 @@ public class ModelMultipleLights {
 		this.camera = camera;
 		this.diffuse = diffuse;
 		this.specular = specular;
+		resolveUniforms();
 	}
 
 	/**
@@ -145,6 +175,7 @@ public class ModelMultipleLights {
 	 */
 	public void setShader(Shader shader) {
 		this.shader = shader;
+		resolveUniforms();
 	}
 
 	/** 
@@ -165,6 +196,143 @@ public class ModelMultipleLights {
 		this.lights = lights;
 	}
 
+	/**
+	 * Set the instanced batch the model is drawn with. If set, render adds the model to the batch
+	 * instead of drawing it straight away.
+	 * 
+	 * @param batch The batch to be assigned to the model (or null to draw the model by itself).
+	 */
+	public void setBatch(InstancedBatch batch) {
+		this.batch = batch;
+	}
+
+	/**
+	 * Set the model's levels of detail: copies of the model with coarser meshes, one of which is
+	 * drawn instead of the model when it is small on screen (see LodModelNode).
+	 * 
+	 * @param levels The model at each level of detail, starting with this model.
+	 */
+	public void setLevelsOfDetail(ModelMultipleLights[] levels) {
+		levelsOfDetail = levels;
+	}
+
+	/**
+	 * Make a copy of the model (sharing its shader, material, textures and texture layers) that
+	 * is drawn with a different mesh. The copy has no instanced batch.
+	 * 
+	 * @param mesh The mesh of the copy.
+	 * @return The copy of the model.
+	 */
+	public ModelMultipleLights withMesh(Mesh mesh) {
+		ModelMultipleLights copy = new ModelMultipleLights(name, mesh, modelMatrix, shader, material,
+		                                                   lights, camera, diffuse, specular);
+		copy.setTextureLayers(diffuseLayer, specularLayer);
+		return copy;
+	}
+
+	/**
+	 * Get the model's levels of detail.
+	 * 
+	 * @return The model at each level of detail (starting with this model), or null if the model
+	 *         has only one.
+	 */
+	public ModelMultipleLights[] getLevelsOfDetail() {
+		return levelsOfDetail;
+	}
+
+	/**
+	 * Get the instanced batch the model is drawn with.
+	 * 
+	 * @return The batch (null if the model is drawn by itself).
+	 */
+	public InstancedBatch getBatch() {
+		return batch;
+	}
+
+	/**
+	 * Get the camera of the model.
+	 * 
+	 * @return The camera of the model.
+	 */
+	public Camera getCamera() {
+		return camera;
+	}
+
+	/**
+	 * Get the mesh of the model.
+	 * 
+	 * @return The mesh of the model.
+	 */
+	public Mesh getMesh() {
+		return mesh;
+	}
+
+	/**
+	 * Get the model matrix of the model.
+	 * 
+	 * @return The model matrix of the model.
+	 */
+	public Mat4 getModelMatrix() {
+		return modelMatrix;
+	}
+
+	/**
+	 * Get the shader of the model.
+	 * 
+	 * @return The shader of the model.
+	 */
+	public Shader getShader() {
+		return shader;
+	}
+
+	/**
+	 * Get the material of the model.
+	 * 
+	 * @return The material of the model.
+	 */
+	public Material getMaterial() {
+		return material;
+	}
+
+	/**
+	 * Get the diffuse texture of the model.
+	 * 
+	 * @return The diffuse texture of the model (null if there is none).
+	 */
+	public Texture getDiffuse() {
+		return diffuse;
+	}
+
+	/**
+	 * Get the specular texture of the model.
+	 * 
+	 * @return The specular texture of the model (null if there is none).
+	 */
+	public Texture getSpecular() {
+		return specular;
+	}
+
+	/**
+	 * Look up the locations of every uniform variable used in render so that no names need to be
+	 * built or looked up when drawing.
+	 */
+	private void resolveUniforms() {
+		if (shader == null) return;
+		modelUniform = shader.getUniform("model");
+		normalMatrixUniform = shader.getUniform("normalMatrix");
+		textureLayersUniform = shader.getUniform("textureLayers");
+		materialAmbientUniform = shader.getUniform("material.ambient");
+		materialDiffuseUniform = shader.getUniform("material.diffuse");
+		materialSpecularUniform = shader.getUniform("material.specular");
+		materialShininessUniform = shader.getUniform("material.shininess");
+		firstTextureUniform = shader.getUniform("first_texture");
+		secondTextureUniform = shader.getUniform("second_texture");
+		lightDataUniform = shader.getUniform("lightData");
+		clusterLightsUniform = shader.getUniform("clusterLights");
+		lightIndicesUniform = shader.getUniform("lightIndices");
+		shadowMapsUniform = shader.getUniform("shadowMaps");
+	}
+
 	/**
 	 * Set the diffuse texture to the model.
 	 * 
@@ -183,6 +351,36 @@ public class ModelMultipleLights {
 		this.specular = t;
 	}
 
+	/**
+	 * Set the layers of the model's textures within their texture arrays (only used if the
+	 * textures are texture arrays, drawn with a shader compiled with TextureLibrary.ARRAY_DEFINE).
+	 * 
+	 * @param diffuseLayer The layer of the diffuse texture.
+	 * @param specularLayer The layer of the specular texture.
+	 */
+	public void setTextureLayers(int diffuseLayer, int specularLayer) {
+		this.diffuseLayer = diffuseLayer;
+		this.specularLayer = specularLayer;
+	}
+
+	/**
+	 * Get the layer of the model's diffuse texture within its texture array.
+	 * 
+	 * @return The layer of the diffuse texture.
+	 */
+	public int getDiffuseLayer() {
+		return diffuseLayer;
+	}
+
+	/**
+	 * Get the layer of the model's specular texture within its texture array.
+	 * 
+	 * @return The layer of the specular texture.
+	 */
+	public int getSpecularLayer() {
+		return specularLayer;
+	}
+
 	/**
 	 * Display the name of the model.
 	 * 
@@ -203,7 +401,9 @@ public class ModelMultipleLights {
 	}
 
 	/**
-	 * Version of render so that modelMatrix can be overriden with a new parameter.
+	 * Version of render so that modelMatrix can be overriden with a new parameter. The model is
+	 * not drawn straight away: it is added to its instanced batch, or otherwise queued on the
+	 * RenderQueue, and drawn when the queue is flushed.
 	 * 
 	 * @param gl The OpenGL context used for rendering.
 	 * @param modelMatrix The transformation matrix associated with the model.
@@ -213,49 +413,49 @@ public class ModelMultipleLights {
 			System.out.println("Error: null in model render");
 			return;
 		}
-
-		Mat4 mvpMatrix = Mat4.multiply(camera.getPerspectiveMatrix(), Mat4.multiply(camera.getViewMatrix(), modelMatrix));
-		shader.use(gl);
-		shader.setFloatArray(gl, "model", modelMatrix.toFloatArrayForGLSL());
-		shader.setFloatArray(gl, "mvpMatrix", mvpMatrix.toFloatArrayForGLSL());
-
-		shader.setVec3(gl, "viewPos", camera.getPosition());
-
-		shader.setInt(gl,"numLights", lights.length);
-
-		// Update global light/spotlight shaders
-		for (int i=0; i<lights.length; i++) {
-			shader.setVec3(gl, "lights["+i+"].position", lights[i].getPosition());
-			shader.setVec3(gl, "lights["+i+"].ambient", lights[i].getMaterial().getAmbient());
-			shader.setVec3(gl, "lights["+i+"].diffuse", lights[i].getMaterial().getDiffuse());
-			shader.setVec3(gl, "lights["+i+"].specular", lights[i].getMaterial().getSpecular());
-			shader.setVec3(gl, "lights["+i+"].direction", lights[i].getDirection());
-			shader.setFloat(gl, "lights["+i+"].cutOff", (float)Math.cos(Math.toRadians(12.5f)));
-			shader.setFloat(gl, "lights["+i+"].outerCutOff", (float)Math.cos(Math.toRadians(17.5f)));
-			shader.setFloat(gl, "lights["+i+"].constant", 1.0f);
-			shader.setFloat(gl, "lights["+i+"].linear", 0.09f);
-			shader.setFloat(gl, "lights["+i+"].quadratic", 0.032f);
+		if (batch != null) {
+			batch.add(modelMatrix, diffuseLayer, specularLayer);
 		}
+		else {
+			RenderQueue.submit(this, modelMatrix);
+		}
+	}
 
-		shader.setVec3(gl, "material.ambient", material.getAmbient());
-		shader.setVec3(gl, "material.diffuse", material.getDiffuse());
-		shader.setVec3(gl, "material.specular", material.getSpecular());
-		shader.setFloat(gl, "material.shininess", material.getShininess());
-
-		// Extra uniforms for textures (diffuse/specular textures are provided for the model).
-		if (diffuse!=null) {
-			shader.setInt(gl, "first_texture", 0);
-			gl.glActiveTexture(GL.GL_TEXTURE0);
-			diffuse.bind(gl);
+	/**
+	 * Draw the model straight away with a given model matrix. Called by the RenderQueue, with any
+	 * shader, texture or vertex array that is already current not being set again.
+	 * 
+	 * @param gl The OpenGL context used for rendering.
+	 * @param modelMatrix The transformation matrix associated with the model.
+	 */
+	public void draw(GL3 gl, Mat4 modelMatrix) {
+		// View-projection, camera position and lights come from the per-frame FrameData block
+		if (RenderState.useProgram(gl, shader)) {
+			// Sampler units are program state, so only need setting when the program changes
+			firstTextureUniform.setInt(gl, 0);
+			secondTextureUniform.setInt(gl, 1);
+			lightDataUniform.setInt(gl, LightManager.LIGHT_DATA_UNIT);
+			clusterLightsUniform.setInt(gl, LightManager.CLUSTER_GRID_UNIT);
+			lightIndicesUniform.setInt(gl, LightManager.LIGHT_INDEX_UNIT);
+			shadowMapsUniform.setInt(gl, ShadowRenderer.SHADOW_MAP_UNIT);
 		}
-		if (specular!=null) {
-			shader.setInt(gl, "second_texture", 1);
-			gl.glActiveTexture(GL.GL_TEXTURE1);
-			specular.bind(gl);
+		modelUniform.setFloatArray(gl, modelMatrix.toFloatArrayForGLSL());
+		normalMatrixUniform.setMat3(gl, Mat3.normalMatrixInto(modelMatrix, normalMatrix));
+		if (textureLayersUniform.isActive()) {
+			textureLayersUniform.setFloat(gl, diffuseLayer, specularLayer);
 		}
 
-		// Finally, the mesh is rendered.
-		mesh.render(gl);
+		materialAmbientUniform.setVec3(gl, material.getAmbient());
+		materialDiffuseUniform.setVec3(gl, material.getDiffuse());
+		materialSpecularUniform.setVec3(gl, material.getSpecular());
+		materialShininessUniform.setFloat(gl, material.getShininess());
+
+		// Extra textures (diffuse/specular textures are provided for the model).
+		if (diffuse!=null) RenderState.bindTexture(gl, 0, diffuse);
+		if (specular!=null) RenderState.bindTexture(gl, 1, specular);
+
+		// Finally, the mesh is drawn.
+		mesh.draw(gl);
 	}
 
 	/**
@@ -272,5 +472,10 @@ public class ModelMultipleLights {
 	 */
 	public void dispose(GL3 gl) {
 		mesh.dispose(gl);
+		if (levelsOfDetail != null) {
+			for (int i=1; i<levelsOfDetail.length; i++) {
+				levelsOfDetail[i].dispose(gl);
+			}
+		}
 	}
 }
\ No newline at end of file
@@ -17,6 +17,15 @@ public class ModelNode extends SGNode {
 		model = m; 
 	}
 
+	/**
+	 * Get the model of the node.
+	 * 
+	 * @return The model object.
+	 */
+	public ModelMultipleLights getModel() {
+		return model;
+	}
+
 	/**
 	 * Render the model as well as children nodes of the current node.
 	 * 
@@ -0,0 +1,191 @@
+import gmaths.*;
+import com.jogamp.opengl.*;
+import com.jogamp.opengl.util.texture.*;
+
+/**
+ * Class for collecting the draws made while the scene is traversed and submitting them together,
+ * sorted by a 64-bit key so that draws sharing a shader, textures and mesh are next to each other
+ * (and nearer draws come first within the same state). The draws are submitted through RenderState
+ * so any state that is already current is not set again.
+ *
+ * Key layout (most significant first): shader program (12 bits), diffuse texture (12 bits),
+ * specular texture (12 bits), vertex array (12 bits), depth (16 bits).
+ */
+public final class RenderQueue {
+	private static final int INITIAL_CAPACITY = 64;
+	private static final int ID_BITS = 12;
+	private static final long ID_MASK = (1L << ID_BITS) - 1;
+	private static final int DEPTH_BITS = 16;
+	private static final int MAX_DEPTH = (1 << DEPTH_BITS) - 1;
+	// Depth steps per world unit (distances beyond MAX_DEPTH/DEPTH_SCALE all share the last step)
+	private static final float DEPTH_SCALE = 256.0f;
+
+	private static Entry[] entries = new Entry[INITIAL_CAPACITY];
+	private static long[] keys = new long[INITIAL_CAPACITY];
+	private static int count = 0;
+
+	/**
+	 * Queue a model to be drawn with a given model matrix. The matrix is copied, so it can be
+	 * changed or reused straight afterwards.
+	 *
+	 * @param model The model to draw.
+	 * @param modelMatrix The world transformation of the model.
+	 */
+	public static void submit(ModelMultipleLights model, Mat4 modelMatrix) {
+		Entry entry = nextEntry();
+		entry.model = model;
+		entry.batch = null;
+		entry.modelMatrix.set(modelMatrix);
+	}
+
+	/**
+	 * Queue an instanced batch to be drawn.
+	 *
+	 * @param batch The batch to draw.
+	 */
+	public static void submit(InstancedBatch batch) {
+		Entry entry = nextEntry();
+		entry.model = null;
+		entry.batch = batch;
+	}
+
+	/**
+	 * Get the number of draws currently queued.
+	 *
+	 * @return The number of queued draws.
+	 */
+	public static int size() {
+		return count;
+	}
+
+	/**
+	 * Empty the queue without drawing anything (e.g. when the draws are only being counted, as in
+	 * the scene graph benchmarks).
+	 */
+	public static void clear() {
+		for (int i=0; i<count; i++) {
+			entries[i].model = null;
+			entries[i].batch = null;
+		}
+		count = 0;
+	}
+
+	/**
+	 * Sort and submit every queued draw (including any non-empty instanced batches), then empty
+	 * the queue.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param viewPosition The position of the camera (used to order draws front to back).
+	 */
+	public static void flush(GL3 gl, Vec3 viewPosition) {
+		InstancedBatch.submitAll();
+		for (int i=0; i<count; i++) {
+			keys[i] = sortKey(entries[i], viewPosition);
+		}
+		sort();
+
+		// Other objects may have changed GL state since the last flush
+		RenderState.invalidate();
+		for (int i=0; i<count; i++) {
+			Entry entry = entries[i];
+			if (entry.batch != null) {
+				entry.batch.render(gl);
+			}
+			else {
+				entry.model.draw(gl, entry.modelMatrix);
+			}
+			entry.model = null;
+			entry.batch = null;
+		}
+		count = 0;
+
+		// Leave the default vertex array bound for any objects drawn without the queue
+		RenderState.bindVertexArray(gl, 0);
+		RenderState.invalidate();
+	}
+
+	/**
+	 * Get the next unused entry, growing the queue if it is full.
+	 *
+	 * @return The entry to fill in.
+	 */
+	private static Entry nextEntry() {
+		if (count == entries.length) {
+			Entry[] e = new Entry[count*2];
+			System.arraycopy(entries, 0, e, 0, count);
+			entries = e;
+			keys = new long[count*2];
+		}
+		if (entries[count] == null) entries[count] = new Entry();
+		return entries[count++];
+	}
+
+	/**
+	 * Build the sort key of a queued draw.
+	 *
+	 * @param entry The queued draw.
+	 * @param viewPosition The position of the camera.
+	 * @return The sort key.
+	 */
+	private static long sortKey(Entry entry, Vec3 viewPosition) {
+		if (entry.batch != null) {
+			InstancedBatch b = entry.batch;
+			// Instances are spread across the scene, so batches have no single depth
+			return stateKey(b.getShader(), b.getDiffuse(), b.getSpecular(), b.getVertexArrayId(), 0);
+		}
+		ModelMultipleLights m = entry.model;
+		float[] v = entry.modelMatrix.toFloatArrayForGLSL();
+		float dx = v[12]-viewPosition.x, dy = v[13]-viewPosition.y, dz = v[14]-viewPosition.z;
+		int depth = (int)Math.min(MAX_DEPTH, Math.sqrt(dx*dx + dy*dy + dz*dz)*DEPTH_SCALE);
+		return stateKey(m.getShader(), m.getDiffuse(), m.getSpecular(),
+		                m.getMesh().getVertexArrayId(), depth);
+	}
+
+	/**
+	 * Pack the state of a draw into a sort key.
+	 *
+	 * @param shader The shader of the draw.
+	 * @param diffuse The diffuse texture of the draw (may be null).
+	 * @param specular The specular texture of the draw (may be null).
+	 * @param vertexArray The vertex array of the draw.
+	 * @param depth The quantised distance from the camera.
+	 * @return The sort key.
+	 */
+	private static long stateKey(Shader shader, Texture diffuse, Texture specular, int vertexArray,
+	                             int depth) {
+		long key = shader.getID() & ID_MASK;
+		key = (key << ID_BITS) | (diffuse == null ? 0 : diffuse.getTextureObject() & ID_MASK);
+		key = (key << ID_BITS) | (specular == null ? 0 : specular.getTextureObject() & ID_MASK);
+		key = (key << ID_BITS) | (vertexArray & ID_MASK);
+		return (key << DEPTH_BITS) | depth;
+	}
+
+	/**
+	 * Sort the queued draws by key. An insertion sort is used as the queue is short and stays
+	 * mostly in the same order from frame to frame.
+	 */
+	private static void sort() {
+		for (int i=1; i<count; i++) {
+			long key = keys[i];
+			Entry entry = entries[i];
+			int j = i-1;
+			while (j >= 0 && Long.compareUnsigned(keys[j], key) > 0) {
+				keys[j+1] = keys[j];
+				entries[j+1] = entries[j];
+				j--;
+			}
+			keys[j+1] = key;
+			entries[j+1] = entry;
+		}
+	}
+
+	/**
+	 * Class for one queued draw: either a model with its own copy of the model matrix, or an
+	 * instanced batch.
+	 */
+	private static final class Entry {
+		private ModelMultipleLights model;
+		private InstancedBatch batch;
+		private final Mat4 modelMatrix = new Mat4(1);
+	}
+}
\ No newline at end of file
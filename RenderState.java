@@ -0,0 +1,153 @@
+import com.jogamp.opengl.*;
+import com.jogamp.opengl.util.texture.*;
+
+/**
+ * Class for tracking the GL state last set by the render queue (program, textures and vertex
+ * array), so that a state change is skipped when the requested state is already current. Counts
+ * how many changes were made and how many were skipped since the last reset, as well as the
+ * number of draw calls and the triangles they drew.
+ */
+public final class RenderState {
+	// Texture units used by the standard shaders (first_texture and second_texture)
+	public static final int TEXTURE_UNITS = 2;
+	private static final int UNKNOWN = -1;
+
+	private static int program = UNKNOWN;
+	private static int vertexArray = UNKNOWN;
+	private static int activeUnit = UNKNOWN;
+	private static final int[] textures = new int[TEXTURE_UNITS];
+	private static int changesMade = 0;
+	private static int changesSkipped = 0;
+	private static int drawCalls = 0;
+	private static long triangles = 0;
+
+	static {
+		invalidate();
+	}
+
+	/**
+	 * Forget the tracked state, so that the next request for each piece of state is always sent
+	 * to GL. Needed whenever GL state may have been changed by code that does not use this class.
+	 */
+	public static void invalidate() {
+		program = UNKNOWN;
+		vertexArray = UNKNOWN;
+		activeUnit = UNKNOWN;
+		for (int i=0; i<TEXTURE_UNITS; i++) {
+			textures[i] = UNKNOWN;
+		}
+	}
+
+	/**
+	 * Set the state change and draw call counters back to zero (done at the start of each frame).
+	 */
+	public static void resetCounters() {
+		changesMade = 0;
+		changesSkipped = 0;
+		drawCalls = 0;
+		triangles = 0;
+	}
+
+	/**
+	 * Record that a draw call has been made.
+	 *
+	 * @param triangleCount The number of triangles drawn by the call (over every instance).
+	 */
+	public static void countDrawCall(long triangleCount) {
+		drawCalls++;
+		triangles += triangleCount;
+	}
+
+	/**
+	 * Get the number of draw calls made since the counters were last reset.
+	 *
+	 * @return The number of draw calls.
+	 */
+	public static int getDrawCalls() {
+		return drawCalls;
+	}
+
+	/**
+	 * Get the number of triangles drawn since the counters were last reset.
+	 *
+	 * @return The number of triangles.
+	 */
+	public static long getTriangles() {
+		return triangles;
+	}
+
+	/**
+	 * Use a shader program if it is not already in use.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param shader The shader to use.
+	 * @return True if the program was changed (so per-program uniforms may need setting).
+	 */
+	public static boolean useProgram(GL3 gl, Shader shader) {
+		if (program == shader.getID()) {
+			changesSkipped++;
+			return false;
+		}
+		shader.use(gl);
+		program = shader.getID();
+		changesMade++;
+		return true;
+	}
+
+	/**
+	 * Bind a texture to a texture unit if it is not already bound there.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param unit The texture unit (0 to TEXTURE_UNITS-1).
+	 * @param texture The texture to bind.
+	 */
+	public static void bindTexture(GL3 gl, int unit, Texture texture) {
+		int id = texture.getTextureObject();
+		if (textures[unit] == id) {
+			changesSkipped++;
+			return;
+		}
+		if (activeUnit != unit) {
+			gl.glActiveTexture(GL.GL_TEXTURE0 + unit);
+			activeUnit = unit;
+		}
+		texture.bind(gl);
+		textures[unit] = id;
+		changesMade++;
+	}
+
+	/**
+	 * Bind a vertex array if it is not already bound.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param id The ID of the vertex array (0 to unbind).
+	 */
+	public static void bindVertexArray(GL3 gl, int id) {
+		if (vertexArray == id) {
+			changesSkipped++;
+			return;
+		}
+		gl.glBindVertexArray(id);
+		vertexArray = id;
+		changesMade++;
+	}
+
+	/**
+	 * Get the number of state changes sent to GL since the counters were last reset.
+	 *
+	 * @return The number of state changes made.
+	 */
+	public static int getChangesMade() {
+		return changesMade;
+	}
+
+	/**
+	 * Get the number of state changes skipped (because the state was already current) since the
+	 * counters were last reset.
+	 *
+	 * @return The number of state changes saved.
+	 */
+	public static int getChangesSkipped() {
+		return changesSkipped;
+	}
+}
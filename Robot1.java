@@ -1,5 +1,6 @@
 import gmaths.*;
 import java.nio.*;
+import java.util.Arrays;
 import com.jogamp.common.nio.*;
 import com.jogamp.opengl.*;
 import com.jogamp.opengl.util.*;
@@ -17,17 +18,28 @@ import com.jogamp.opengl.util.texture.*;
  * 
  * Changes made:
  * - A new class for the creation and updating of robot 1
+ * - Dancing is advanced by step() on the simulation thread at a fixed tick rate, timed by the
+ *   simulation's tick count; the render thread applies interpolated snapshots of the dance with
+ *   applySnapshot()
+ * - Every texture of the robot is a layer of one texture array, so parts sharing a shape are drawn
+ *   in one instanced batch whatever their texture
  */
 public class Robot1 {
+	// Number of values written by writeSnapshot
+	public static final int SNAPSHOT_SIZE = 8;
+
     private ModelMultipleLights[] robot;
     private Camera camera;
 	private Light[] lights;
-    private Texture baseTexture, bodyTexture1, bodyTexture2, bodyTexture3, armTexture, headTexture, 
-					eyeTexture, appendageTexture;
+    // Texture array holding every texture of the robot, and the layer of each texture in it
+    private Texture materials;
+    private int baseLayer, bodyLayer1, bodyLayer2, bodyLayer3, armLayer, headLayer, eyeLayer,
+				appendageLayer;
 	private int noObjects = 12;
 
 	// Attributes surrounding nodes in the scene graph and the values that get updated over time.
     private SGNode robotGraph;
+	private TransformHierarchy robotHierarchy;
 	private TransformNode translateBase, rotateBase, rotateBodyPiece1, rotateBodyPiece2, 
 						  rotateBodyPiece3, rotateArm1, rotateArm2, scaleHead;
 	private float translateToPositionDistance = -2.0f;
@@ -40,6 +52,8 @@ public class Robot1 {
     private float rotateArm2AngleStart = -60, rotateArm2Angle = rotateArm2AngleStart;
     private float scaleHeadSizeStart = 1, scaleHeadSize = scaleHeadSizeStart;
 	private double startTime;
+	// Simulation time of the last tick (see step)
+	private double simulationTime = 0;
 
 	// Attributes for controlling the robot's dancing (distance threshold, user input, etc.)
 	private boolean robotDancingManual = false;
@@ -48,6 +62,10 @@ public class Robot1 {
 	private double timePaused;
 	private float distanceThreshold = 8.0f;
 
+	// Values last applied to the scene graph by the render thread (NaN until first applied)
+	private float[] applied = new float[SNAPSHOT_SIZE];
+	private float[] interpolated = new float[SNAPSHOT_SIZE];
+
 	/**
 	 * Constructor. Create the models for the robot, set individual textures for each one, and
 	 * generate the scene graph.
@@ -55,22 +73,26 @@ public class Robot1 {
 	 * @param gl The OpenGL context used for rendering.
 	 * @param c The camera object in the world.
 	 * @param l The light sources in the world (as an array).
-	 * @param t The array of all textures to be used for this specific object.
+	 * @param t The texture array holding all textures to be used for this specific object.
+	 * @param layers The layers of the robot's textures within the texture array (base, body 1-3,
+	 *               arm, head, eye, appendage).
 	 */
-    public Robot1(GL3 gl, Camera c, Light[] l, Texture[] t) {
+    public Robot1(GL3 gl, Camera c, Light[] l, Texture t, int[] layers) {
 		camera = c;
 		lights = l;
-		this.baseTexture = t[0];
-		this.bodyTexture1 = t[1];
-		this.bodyTexture2 = t[2];
-		this.bodyTexture3 = t[3];
-		this.armTexture = t[4];
-		this.headTexture = t[5];
-		this.eyeTexture = t[6];
-		this.appendageTexture = t[7];
+		this.materials = t;
+		this.baseLayer = layers[0];
+		this.bodyLayer1 = layers[1];
+		this.bodyLayer2 = layers[2];
+		this.bodyLayer3 = layers[3];
+		this.armLayer = layers[4];
+		this.headLayer = layers[5];
+		this.eyeLayer = layers[6];
+		this.appendageLayer = layers[7];
 		robot = new ModelMultipleLights[noObjects];
-		Shader shaderTexture = new Shader(
-			gl, "assets/shaders/vs_standard.txt", "assets/shaders/fs_standard_m_1t.txt");
+		Shader shaderTexture = ShaderCache.get(
+			gl, "assets/shaders/vs_standard.txt", "assets/shaders/fs_standard_m_1t.txt",
+			TextureLibrary.ARRAY_DEFINE);
 		Material material = new Material(
 			new Vec3(0.5f, 0.5f, 0.5f), 
 			new Vec3(0.5f, 0.5f, 0.5f), 
@@ -83,7 +105,8 @@ public class Robot1 {
 									   material,
 									   modelMatrix,
 									   shaderTexture,
-									   new Texture[] {baseTexture},
+									   new Texture[] {materials},
+									   new int[] {baseLayer},
 									   lights,
 									   camera,
 									   "sphere");
@@ -93,7 +116,8 @@ public class Robot1 {
 									   material,
 									   modelMatrix,
 									   shaderTexture,
-									   new Texture[] {bodyTexture1},
+									   new Texture[] {materials},
+									   new int[] {bodyLayer1},
 									   lights,
 									   camera,
 									   "sphere");
@@ -103,7 +127,8 @@ public class Robot1 {
 									   material,
 									   modelMatrix,
 									   shaderTexture,
-									   new Texture[] {bodyTexture2},
+									   new Texture[] {materials},
+									   new int[] {bodyLayer2},
 									   lights,
 									   camera,
 									   "sphere");
@@ -113,7 +138,8 @@ public class Robot1 {
 									   material,
 									   modelMatrix,
 									   shaderTexture,
-									   new Texture[] {bodyTexture3},
+									   new Texture[] {materials},
+									   new int[] {bodyLayer3},
 									   lights,
 									   camera,
 									   "sphere");
@@ -123,7 +149,8 @@ public class Robot1 {
 									   material,
 									   modelMatrix,
 									   shaderTexture,
-									   new Texture[] {armTexture},
+									   new Texture[] {materials},
+									   new int[] {armLayer},
 									   lights,
 									   camera,
 									   "sphere");
@@ -133,7 +160,8 @@ public class Robot1 {
 									   material,
 									   modelMatrix,
 									   shaderTexture,
-									   new Texture[] {armTexture},
+									   new Texture[] {materials},
+									   new int[] {armLayer},
 									   lights,
 									   camera,
 									   "sphere");
@@ -143,7 +171,8 @@ public class Robot1 {
 									   material,
 									   modelMatrix,
 									   shaderTexture,
-									   new Texture[] {headTexture},
+									   new Texture[] {materials},
+									   new int[] {headLayer},
 									   lights,
 									   camera,
 									   "sphere");
@@ -153,7 +182,8 @@ public class Robot1 {
 									   material,
 									   modelMatrix,
 									   shaderTexture,
-									   new Texture[] {eyeTexture},
+									   new Texture[] {materials},
+									   new int[] {eyeLayer},
 									   lights,
 									   camera,
 									   "sphere");
@@ -163,7 +193,8 @@ public class Robot1 {
 									   material,
 									   modelMatrix,
 									   shaderTexture,
-									   new Texture[] {appendageTexture},
+									   new Texture[] {materials},
+									   new int[] {appendageLayer},
 									   lights,
 									   camera,
 									   "sphere");
@@ -173,7 +204,8 @@ public class Robot1 {
 									   material,
 									   modelMatrix,
 									   shaderTexture,
-									   new Texture[] {appendageTexture},
+									   new Texture[] {materials},
+									   new int[] {appendageLayer},
 									   lights,
 									   camera,
 									   "sphere");
@@ -183,7 +215,8 @@ public class Robot1 {
 										material,
 										modelMatrix,
 										shaderTexture,
-										new Texture[] {appendageTexture},
+										new Texture[] {materials},
+										new int[] {appendageLayer},
 										lights,
 										camera,
 										"sphere");
@@ -193,24 +226,28 @@ public class Robot1 {
 										material,
 										modelMatrix,
 										shaderTexture,
-										new Texture[] {eyeTexture},
+										new Texture[] {materials},
+										new int[] {eyeLayer},
 										lights,
 										camera,
 										"sphere");
 
+		Arrays.fill(applied, Float.NaN);
+
         startTime = getSeconds();
 		createRobotSceneGraph();
     }
 
 	/**
-	 * Render robot 1 in the world and update its transforms depending on its proximity/user 
-	 * input.
+	 * Advance robot 1's dancing by one simulation tick, depending on its proximity to robot 2/user
+	 * input. Called on the simulation thread.
 	 * 
-	 * @param gl The OpenGL context used for rendering.
+	 * @param time The simulation time of the tick in seconds.
 	 * @param robot2Position The current position of robot 2 in a x,y,z format to decide whether
 	                         robot 1 should dance or not.
 	 */
-	public void render(GL3 gl, float[] robot2Position) {
+	public synchronized void step(double time, float[] robot2Position) {
+		simulationTime = time;
 		if (robotDancingProximity) {
 			if (timePaused != 0.0) {
 				/* Determine new start time for once the robot starts dancing again 
@@ -235,8 +272,70 @@ public class Robot1 {
 			else
 				robotDancingProximity = false;
 		}
+	}
+
+	/**
+	 * Write the values that change as robot 1 dances into a snapshot. Called on the simulation
+	 * thread.
+	 * 
+	 * @param snapshot The array to write to.
+	 * @param offset The index of the first value in the array.
+	 */
+	public synchronized void writeSnapshot(float[] snapshot, int offset) {
+		snapshot[offset] = translateBaseDistance;
+		snapshot[offset+1] = rotateBaseAngle;
+		snapshot[offset+2] = rotateBodyPiece1Angle;
+		snapshot[offset+3] = rotateBodyPiece2Angle;
+		snapshot[offset+4] = rotateBodyPiece3Angle;
+		snapshot[offset+5] = rotateArm1Angle;
+		snapshot[offset+6] = rotateArm2Angle;
+		snapshot[offset+7] = scaleHeadSize;
+	}
+
+	/**
+	 * Move robot 1 to a point between two snapshots. Called on the render thread. Transforms are
+	 * only set if their values have changed (so a robot that is not dancing is not recomputed).
+	 * 
+	 * @param from The earlier snapshot.
+	 * @param to The later snapshot.
+	 * @param offset The index of robot 1's first value in the snapshots.
+	 * @param alpha How far to move from the earlier snapshot to the later one (0 to 1).
+	 */
+	public void applySnapshot(float[] from, float[] to, int offset, float alpha) {
+		float[] v = interpolated;
+		for (int i=0; i<SNAPSHOT_SIZE; i++) {
+			// Values 1 to 6 are angles
+			v[i] = (i >= 1 && i <= 6) ? Simulation.lerpAngle(from[offset+i], to[offset+i], alpha)
+			                          : Simulation.lerp(from[offset+i], to[offset+i], alpha);
+		}
+		if (v[0] != applied[0]) translateBase.setTransform(Mat4Transform.translate(0,v[0],0));
+		if (v[1] != applied[1]) rotateBase.setTransform(Mat4Transform.rotateAroundY(v[1]));
+		if (v[2] != applied[2]) rotateBodyPiece1.setTransform(Mat4Transform.rotateAroundX(v[2]));
+		if (v[3] != applied[3]) rotateBodyPiece2.setTransform(Mat4Transform.rotateAroundZ(v[3]));
+		if (v[4] != applied[4]) rotateBodyPiece3.setTransform(Mat4Transform.rotateAroundY(v[4]));
+		if (v[5] != applied[5]) rotateArm1.setTransform(Mat4Transform.rotateAroundX(v[5]));
+		if (v[6] != applied[6]) rotateArm2.setTransform(Mat4Transform.rotateAroundX(v[6]));
+		if (v[7] != applied[7]) scaleHead.setTransform(Mat4Transform.scale(v[7],v[7],v[7]));
+		robotHierarchy.update();
+		System.arraycopy(v, 0, applied, 0, SNAPSHOT_SIZE);
+	}
 
-		robotGraph.draw(gl);
+	/**
+	 * Render robot 1 in the world.
+	 * 
+	 * @param gl The OpenGL context used for rendering.
+	 */
+	public void render(GL3 gl) {
+		robotHierarchy.draw(gl, camera.getFrustum());
+	}
+
+	/**
+	 * Make every part of robot 1 cast shadows.
+	 * 
+	 * @param shadowRenderer The renderer of the shadow maps.
+	 */
+	public void addShadowCasters(ShadowRenderer shadowRenderer) {
+		shadowRenderer.addCasters(robotHierarchy);
 	}
 
 	/**
@@ -393,7 +492,8 @@ public class Robot1 {
 							appendage3Branch.addChild(translateToFrontAppendage);
 								translateToFrontAppendage.addChild(eye2Branch);
 
-		robotGraph.update();
+		robotHierarchy = new TransformHierarchy(robotGraph);
+		robotHierarchy.update();
 	}
 
 	/**
@@ -410,22 +510,12 @@ public class Robot1 {
 		rotateArm1Angle = rotateArm1AngleStart*(float)elapsedTime*3.0f;
 		rotateArm2Angle = rotateArm2AngleStart*(float)elapsedTime*3.0f;
 		scaleHeadSize = 2.0f+scaleHeadSizeStart*(float)Math.sin(elapsedTime);
-
-		translateBase.setTransform(Mat4Transform.translate(0,translateBaseDistance,0));
-		rotateBase.setTransform(Mat4Transform.rotateAroundY(rotateBaseAngle));
-		rotateBodyPiece1.setTransform(Mat4Transform.rotateAroundX(rotateBodyPiece1Angle));
-		rotateBodyPiece2.setTransform(Mat4Transform.rotateAroundZ(rotateBodyPiece2Angle));
-		rotateBodyPiece3.setTransform(Mat4Transform.rotateAroundY(rotateBodyPiece3Angle));
-		rotateArm1.setTransform(Mat4Transform.rotateAroundX(rotateArm1Angle));
-		rotateArm2.setTransform(Mat4Transform.rotateAroundX(rotateArm2Angle));
-		scaleHead.setTransform(Mat4Transform.scale(scaleHeadSize,scaleHeadSize,scaleHeadSize));
-		robotGraph.update();
 	}
 
 	/**
 	 * Set whether or not the robot's dancing is caused by robot 2's proximity or the user's input.
 	 */
-	public void setRobotDancing() {
+	public synchronized void setRobotDancing() {
 		// Manually flip the dancing state of the robot
 		robotDancingManual = !robotDancingManual;
 		if (robotDancingManual)
@@ -437,7 +527,7 @@ public class Robot1 {
 	 * 
 	 * @param distance The new value for the distance threshold.
 	 */
-	public void setDistanceThreshold(float distance) {
+	public synchronized void setDistanceThreshold(float distance) {
 		distanceThreshold = distance;
 	}
 
@@ -456,11 +546,11 @@ public class Robot1 {
 	}
 
 	/**
-	 * Get the current time in seconds.
+	 * Get the simulation time in seconds (the number of ticks run times the length of a tick).
 	 * 
-	 * @return The current time in seconds in a double format.
+	 * @return The simulation time in seconds in a double format.
 	 */
     private double getSeconds() {
-    	return System.currentTimeMillis()/1000.0;
+    	return simulationTime;
   	}
 }
\ No newline at end of file
@@ -1,5 +1,6 @@
 import gmaths.*;
 import java.nio.*;
+import java.util.Arrays;
 import com.jogamp.common.nio.*;
 import com.jogamp.opengl.*;
 import com.jogamp.opengl.util.*;
@@ -17,12 +18,22 @@ import com.jogamp.opengl.util.texture.*;
  * 
  * Changes made:
  * - A new class for creating/updating robot 2
+ * - Movement is advanced by step() on the simulation thread at a fixed tick rate, timed by the
+ *   simulation's tick count; the render thread applies interpolated snapshots of the movement
+ *   with applySnapshot()
+ * - Every texture of the robot is a layer of one texture array, so parts sharing a shape are drawn
+ *   in one instanced batch whatever their texture
  */
 public class Robot2 {
+    // Number of values written by writeSnapshot
+    public static final int SNAPSHOT_SIZE = 11;
+
     private ModelMultipleLights[] robot;
     private Camera camera;
 	private Light[] lights;
-    private Texture bodyTexture, eyeTexture, antennaTexture, casingTexture;
+    // Texture array holding every texture of the robot, and the layer of each texture in it
+    private Texture materials;
+    private int bodyLayer, eyeLayer, antennaLayer, casingLayer;
     private int noObjects = 5;
 
     // Attributes relating to robot 2's movement
@@ -37,6 +48,7 @@ public class Robot2 {
 
     // Attributes relating to updating values in the scene graph of robot 2
     private SGNode robotGraph;
+    private TransformHierarchy robotHierarchy;
     private TransformNode translateAll, rotateAll, rotateCasing;
     private float translateAllDistanceXStart = trackLength/2, translateAllDistanceX = translateAllDistanceXStart;
     private float translateAllDistanceYStart = 0, translateAllDistanceY = translateAllDistanceYStart;
@@ -44,6 +56,17 @@ public class Robot2 {
     private float rotateAllAngleStart = 360, rotateAllAngle = rotateAllAngleStart;
     private float rotateCasingAngleStart = 0, rotateCasingAngle = rotateCasingAngleStart;
     private double startTime;
+    // Simulation time of the last tick (see step)
+    private double simulationTime = 0;
+
+    // Spotlight position/direction calculated by the simulation
+    private float spotlightX, spotlightY, spotlightZ;
+    private float spotlightDirectionX, spotlightDirectionY, spotlightDirectionZ;
+
+    // Values last applied to the scene graph by the render thread (NaN until first applied)
+    private float[] applied = new float[SNAPSHOT_SIZE];
+    private float[] interpolated = new float[SNAPSHOT_SIZE];
+    private Vec3 spotlightDirection = new Vec3();
 
     // Attributes denoting the size of certain models in robot 2
     private float bodySize = 1.0f;
@@ -57,18 +80,22 @@ public class Robot2 {
 	 * @param gl The OpenGL context used for rendering.
 	 * @param c The camera object in the world.
 	 * @param l The light sources in the world (as an array).
-	 * @param t The array of all textures to be used for this specific object.
+	 * @param t The texture array holding all textures to be used for this specific object.
+	 * @param layers The layers of the robot's textures within the texture array (body, eye,
+	 *               antenna, casing).
 	 */
-    public Robot2(GL3 gl, Camera c, Light[] l, Texture[] t) {
+    public Robot2(GL3 gl, Camera c, Light[] l, Texture t, int[] layers) {
         camera = c;
 		lights = l;
-		this.bodyTexture = t[0];
-		this.eyeTexture = t[1];
-		this.antennaTexture = t[2];
-        this.casingTexture = t[3];
+		this.materials = t;
+		this.bodyLayer = layers[0];
+		this.eyeLayer = layers[1];
+		this.antennaLayer = layers[2];
+        this.casingLayer = layers[3];
         robot = new ModelMultipleLights[noObjects];
-        Shader shaderTexture = new Shader(
-            gl, "assets/shaders/vs_standard.txt", "assets/shaders/fs_standard_m_1t.txt");
+        Shader shaderTexture = ShaderCache.get(
+            gl, "assets/shaders/vs_standard.txt", "assets/shaders/fs_standard_m_1t.txt",
+            TextureLibrary.ARRAY_DEFINE);
 		Material material = new Material(
             new Vec3(0.5f, 0.5f, 0.5f), 
             new Vec3(0.5f, 0.5f, 0.5f), 
@@ -81,7 +108,8 @@ public class Robot2 {
 						               material,
 						               modelMatrix,
 						               shaderTexture,
-						               new Texture[] {bodyTexture},
+						               new Texture[] {materials},
+						               new int[] {bodyLayer},
                                        lights,
                                        camera,
                                        "cube");
@@ -91,7 +119,8 @@ public class Robot2 {
 						               material,
 						               modelMatrix,
 						               shaderTexture,
-						               new Texture[] {eyeTexture},
+						               new Texture[] {materials},
+						               new int[] {eyeLayer},
                                        lights,
                                        camera,
                                        "sphere");
@@ -101,7 +130,8 @@ public class Robot2 {
 						               material,
 						               modelMatrix,
 						               shaderTexture,
-						               new Texture[] {eyeTexture},
+						               new Texture[] {materials},
+						               new int[] {eyeLayer},
                                        lights,
                                        camera,
                                        "sphere");
@@ -111,7 +141,8 @@ public class Robot2 {
 						               material,
 						               modelMatrix,
 						               shaderTexture,
-						               new Texture[] {antennaTexture},
+						               new Texture[] {materials},
+						               new int[] {antennaLayer},
                                        lights,
                                        camera,
                                        "sphere");
@@ -121,25 +152,110 @@ public class Robot2 {
 						               material,
 						               modelMatrix,
 						               shaderTexture,
-						               new Texture[] {casingTexture},
+						               new Texture[] {materials},
+						               new int[] {casingLayer},
                                        lights,
                                        camera,
                                        "sphere");
 
+        Vec3 position = lights[1].getPosition();
+        Vec3 direction = lights[1].getDirection();
+        spotlightX = position.x;
+        spotlightY = position.y;
+        spotlightZ = position.z;
+        spotlightDirectionX = direction.x;
+        spotlightDirectionY = direction.y;
+        spotlightDirectionZ = direction.z;
+
+        Arrays.fill(applied, Float.NaN);
+
         startTime = getSeconds();
         createRobotSceneGraph();
     }
 
+    /**
+     * Advance robot 2's movement (as well as the spotlight seen on top of its antenna) by one
+     * simulation tick. Called on the simulation thread.
+     * 
+     * @param time The simulation time of the tick in seconds.
+     */
+    public synchronized void step(double time) {
+        simulationTime = time;
+        updateTransforms();
+        updateSpotlight();
+    }
+
+    /**
+     * Write the values that change as robot 2 moves into a snapshot. Called on the simulation 
+     * thread.
+     * 
+     * @param snapshot The array to write to.
+     * @param offset The index of the first value in the array.
+     */
+    public synchronized void writeSnapshot(float[] snapshot, int offset) {
+        snapshot[offset] = translateAllDistanceX;
+        snapshot[offset+1] = translateAllDistanceY;
+        snapshot[offset+2] = translateAllDistanceZ;
+        snapshot[offset+3] = rotateAllAngle;
+        snapshot[offset+4] = rotateCasingAngle;
+        snapshot[offset+5] = spotlightX;
+        snapshot[offset+6] = spotlightY;
+        snapshot[offset+7] = spotlightZ;
+        snapshot[offset+8] = spotlightDirectionX;
+        snapshot[offset+9] = spotlightDirectionY;
+        snapshot[offset+10] = spotlightDirectionZ;
+    }
+
+    /**
+     * Move robot 2 and the spotlight to a point between two snapshots. Called on the render 
+     * thread before the per-frame data is written so that every model is lit by the spotlight's
+     * current position. Transforms are only set if their values have changed.
+     * 
+     * @param from The earlier snapshot.
+     * @param to The later snapshot.
+     * @param offset The index of robot 2's first value in the snapshots.
+     * @param alpha How far to move from the earlier snapshot to the later one (0 to 1).
+     */
+    public void applySnapshot(float[] from, float[] to, int offset, float alpha) {
+        float[] v = interpolated;
+        for (int i=0; i<SNAPSHOT_SIZE; i++) {
+            // Values 3 and 4 are angles
+            v[i] = (i == 3 || i == 4) ? Simulation.lerpAngle(from[offset+i], to[offset+i], alpha)
+                                      : Simulation.lerp(from[offset+i], to[offset+i], alpha);
+        }
+        if (v[0] != applied[0] || v[1] != applied[1] || v[2] != applied[2]) {
+            translateAll.setTransform(Mat4Transform.translate(v[0], v[1], v[2]));
+        }
+        if (v[3] != applied[3]) rotateAll.setTransform(Mat4Transform.rotateAroundY(v[3]));
+        if (v[4] != applied[4]) rotateCasing.setTransform(Mat4Transform.rotateAroundY(v[4]));
+        robotHierarchy.update();
+
+        lights[1].setPosition(v[5], v[6], v[7]);
+        spotlightDirection.x = v[8];
+        spotlightDirection.y = v[9];
+        spotlightDirection.z = v[10];
+        lights[1].setDirection(spotlightDirection);
+        System.arraycopy(v, 0, applied, 0, SNAPSHOT_SIZE);
+    }
+
 	/**
-	 * Render robot 2 in the world and update its transforms over time (as well as the spotlight
-     * seen on top of its antenna).
+	 * Render robot 2 in the world (the marker of the spotlight on top of its antenna is drawn by
+	 * the LightManager).
 	 * 
 	 * @param gl The OpenGL context used for rendering.
 	 */
     public void render(GL3 gl) {
-        updateTransforms();
-        updateSpotlight(gl);
-        robotGraph.draw(gl);
+        robotHierarchy.draw(gl, camera.getFrustum());
+    }
+
+	/**
+	 * Make every part of robot 2 cast shadows (the casing around its spotlight is skipped by the
+	 * ShadowRenderer, as the light is inside it).
+	 * 
+	 * @param shadowRenderer The renderer of the shadow maps.
+	 */
+    public void addShadowCasters(ShadowRenderer shadowRenderer) {
+        shadowRenderer.addCasters(robotHierarchy);
     }
 
 	/**
@@ -211,7 +327,8 @@ public class Robot2 {
                 rotateCasing.addChild(translateToTopAntenna);
                     translateToTopAntenna.addChild(casingBranch);
 
-        robotGraph.update();
+        robotHierarchy = new TransformHierarchy(robotGraph);
+        robotHierarchy.update();
     }
 
     /**
@@ -281,7 +398,6 @@ public class Robot2 {
         if (turning) {
             translateAllDistanceY = 2*Math.abs((float)Math.sin(Math.toRadians(rotateAllAngle)*2));
             rotateAllAngle -= rotateSpeed;
-            rotateAll.setTransform(Mat4Transform.rotateAroundY(rotateAllAngle));
             if (Math.abs(rotateAllAngle - ((preTurnAngle-90)%360)) <= 0) {
                 rotateAllAngle = (preTurnAngle-90)%360;
                 preTurnAngle = (preTurnAngle-90)%360;
@@ -301,20 +417,13 @@ public class Robot2 {
                 Math.sin(elapsedTime),
                 Math.cos(elapsedTime)
             ));
-            rotateCasing.setTransform(Mat4Transform.rotateAroundY(rotateCasingAngle));
         }
-
-        translateAll.setTransform(Mat4Transform.translate(
-            translateAllDistanceX, 
-            translateAllDistanceY, 
-            translateAllDistanceZ));
-        robotGraph.update();
     }
 
     /**
      * Set whether or not robot 2 is currently moving via user interaction.
      */
-    public void setRobotMoving() {
+    public synchronized void setRobotMoving() {
         // Movement speed is reduced to zero/restored to normal for robot movement and turning
 		if (moveSpeed == 0.05f)
             moveSpeed = 0;
@@ -330,25 +439,19 @@ public class Robot2 {
 	}
 
     /**
-     * Update the spotlight following the robot to new positions/directions when robot 2 is moving 
-     * and subsequently render the spotlight.
-     * 
-     * @param gl The OpenGL context used for rendering.
+     * Update the spotlight following the robot to new positions/directions when robot 2 is moving.
      */
-    private void updateSpotlight(GL3 gl) {
+    private void updateSpotlight() {
         double elapsedTime = getSeconds()-startTime;
         // Only update light position and direction if robot 2 is moving
         if (moveSpeed != 0) {
-            lights[1].setPosition(
-                translateAllDistanceX + 0.25f*(float)Math.sin(elapsedTime), 
-                translateAllDistanceY + bodySize + antennaSize + casingSize/3, 
-                translateAllDistanceZ + 0.25f*(float)Math.cos(elapsedTime));
-            lights[1].setDirection(
-                new Vec3(1.5f*(float)Math.sin(elapsedTime), 
-                -1.0f, 
-                1.5f*(float)Math.cos(elapsedTime)));
+            spotlightX = translateAllDistanceX + 0.25f*(float)Math.sin(elapsedTime);
+            spotlightY = translateAllDistanceY + bodySize + antennaSize + casingSize/3;
+            spotlightZ = translateAllDistanceZ + 0.25f*(float)Math.cos(elapsedTime);
+            spotlightDirectionX = 1.5f*(float)Math.sin(elapsedTime);
+            spotlightDirectionY = -1.0f;
+            spotlightDirectionZ = 1.5f*(float)Math.cos(elapsedTime);
         }
-        lights[1].render(gl);
     }
 
     /**
@@ -356,16 +459,16 @@ public class Robot2 {
      * 
      * @return The position of robot 2 as an array of x,y,z.
      */
-    public float[] getPosition() {
+    public synchronized float[] getPosition() {
         return new float[] {translateAllDistanceX, translateAllDistanceY, translateAllDistanceZ};
     }
 
 	/**
-	 * Get the current time in seconds.
+	 * Get the simulation time in seconds (the number of ticks run times the length of a tick).
 	 * 
-	 * @return The current time in seconds in a double format.
+	 * @return The simulation time in seconds in a double format.
 	 */
     private double getSeconds() {
-    	return System.currentTimeMillis()/1000.0;
+    	return simulationTime;
   	}
 }
\ No newline at end of file
@@ -17,13 +17,17 @@ import com.jogamp.opengl.util.texture.*;
  * 
  * Changes made:
  * - A new class for creating the room and its individual components
+ * - Every texture of the room is a layer of one texture array, so walls sharing a shape are drawn
+ *   in one instanced batch
  */
 public class Room {
 	private ModelMultipleLights[] wall;
 	private Camera camera;
 	private Light[] lights;
-	private Texture floorTexture, ceilingTexture, bWallDiffuseTexture, bWallSpecularTexture, 
-		lWallTexture1, lWallTexture2, lWallTexture3, windowPiece, rWallTexture;
+	// Texture array holding every texture of the room, and the layer of each texture in it
+	private Texture materials;
+	private int floorLayer, ceilingLayer, bWallDiffuseLayer, bWallSpecularLayer, 
+		lWallLayer1, lWallLayer2, lWallLayer3, windowPieceLayer, rWallLayer;
 	private float size = 16f;
 	private int noObjects = 12;
 
@@ -33,25 +37,30 @@ public class Room {
 	 * @param gl The OpenGL context used for rendering.
 	 * @param c The camera object in the world.
 	 * @param l The light sources in the world (as an array).
-	 * @param t The array of all textures to be used for the room.
+	 * @param t The texture array holding all textures to be used for the room.
+	 * @param layers The layers of the room's textures within the texture array (floor, ceiling,
+	 *               back wall diffuse and specular, left wall 1-3, window piece, right wall).
 	 */
-	public Room(GL3 gl, Camera c, Light[] l, Texture[] t) {
+	public Room(GL3 gl, Camera c, Light[] l, Texture t, int[] layers) {
 		camera = c;
 		lights = l;
-		this.floorTexture = t[0];
-		this.ceilingTexture = t[1];
-		this.bWallDiffuseTexture = t[2];
-		this.bWallSpecularTexture = t[3];
-		this.lWallTexture1 = t[4];
-		this.lWallTexture2 = t[5];
-		this.lWallTexture3 = t[6];
-		this.windowPiece = t[7];
-		this.rWallTexture = t[8];
+		this.materials = t;
+		this.floorLayer = layers[0];
+		this.ceilingLayer = layers[1];
+		this.bWallDiffuseLayer = layers[2];
+		this.bWallSpecularLayer = layers[3];
+		this.lWallLayer1 = layers[4];
+		this.lWallLayer2 = layers[5];
+		this.lWallLayer3 = layers[6];
+		this.windowPieceLayer = layers[7];
+		this.rWallLayer = layers[8];
 		wall = new ModelMultipleLights[noObjects];
-		Shader shaderTexture = new Shader(
-			gl, "assets/shaders/vs_standard.txt", "assets/shaders/fs_standard_m_1t.txt");
-		Shader shaderTextures = new Shader(
-			gl, "assets/shaders/vs_standard.txt", "assets/shaders/fs_standard_m_2t.txt");
+		Shader shaderTexture = ShaderCache.get(
+			gl, "assets/shaders/vs_standard.txt", "assets/shaders/fs_standard_m_1t.txt",
+			TextureLibrary.ARRAY_DEFINE);
+		Shader shaderTextures = ShaderCache.get(
+			gl, "assets/shaders/vs_standard.txt", "assets/shaders/fs_standard_m_2t.txt",
+			TextureLibrary.ARRAY_DEFINE);
 		Material material = new Material(
 			new Vec3(0.5f, 0.5f, 0.5f), 
 			new Vec3(0.5f, 0.5f, 0.5f), 
@@ -65,7 +74,8 @@ public class Room {
 						   			  material,
 						   			  modelMatrix,
 						   			  shaderTexture,
-						   			  new Texture[] {floorTexture},
+						   			  new Texture[] {materials},
+						   			  new int[] {floorLayer},
 						   			  lights,
 						   			  camera,
 						   			  "two triangles");
@@ -77,7 +87,8 @@ public class Room {
 						   			  material,
 						   			  modelMatrix,
 						   			  shaderTextures,
-						   			  new Texture[] {bWallDiffuseTexture, bWallSpecularTexture},
+						   			  new Texture[] {materials, materials},
+						   			  new int[] {bWallDiffuseLayer, bWallSpecularLayer},
 						   			  lights,
 						   			  camera,
 						   			  "two triangles");
@@ -92,7 +103,8 @@ public class Room {
 						   			  material,
 						   			  modelMatrix,
 						   			  shaderTexture,
-						   			  new Texture[] {lWallTexture1},
+						   			  new Texture[] {materials},
+						   			  new int[] {lWallLayer1},
 						   			  lights,
 						   			  camera,
 						   			  "two triangles");
@@ -106,7 +118,8 @@ public class Room {
 						   			  material,
 						   			  modelMatrix,
 						   			  shaderTexture,
-						   			  new Texture[] {lWallTexture1},
+						   			  new Texture[] {materials},
+						   			  new int[] {lWallLayer1},
 						   			  lights,
 						   			  camera,
 						   			  "two triangles");
@@ -120,7 +133,8 @@ public class Room {
 						   			  material,
 						   			  modelMatrix,
 						   			  shaderTexture,
-						   			  new Texture[] {lWallTexture3},
+						   			  new Texture[] {materials},
+						   			  new int[] {lWallLayer3},
 						   			  lights,
 						   			  camera,
 						   			  "two triangles");
@@ -134,7 +148,8 @@ public class Room {
 						   			  material,
 						   			  modelMatrix,
 						   			  shaderTexture,
-						   			  new Texture[] {lWallTexture2},
+						   			  new Texture[] {materials},
+						   			  new int[] {lWallLayer2},
 						   			  lights,
 						   			  camera,
 						   			  "two triangles");
@@ -149,7 +164,8 @@ public class Room {
 						   			  material,
 						   			  modelMatrix,
 						   			  shaderTexture,
-						   			  new Texture[] {windowPiece},
+						   			  new Texture[] {materials},
+						   			  new int[] {windowPieceLayer},
 						   			  lights,
 						   			  camera,
 						   			  "triangle");
@@ -163,7 +179,8 @@ public class Room {
 									  material,
 									  modelMatrix,
 									  shaderTexture,
-									  new Texture[] {windowPiece},
+									  new Texture[] {materials},
+									  new int[] {windowPieceLayer},
 									  lights,
 									  camera,
 									  "triangle");
@@ -177,7 +194,8 @@ public class Room {
 									  material,
 									  modelMatrix,
 									  shaderTexture,
-									  new Texture[] {windowPiece},
+									  new Texture[] {materials},
+									  new int[] {windowPieceLayer},
 									  lights,
 									  camera,
 									  "triangle");
@@ -191,7 +209,8 @@ public class Room {
 									  material,
 									  modelMatrix,
 									  shaderTexture,
-									  new Texture[] {windowPiece},
+									  new Texture[] {materials},
+									  new int[] {windowPieceLayer},
 									  lights,
 									  camera,
 									  "triangle");
@@ -203,7 +222,8 @@ public class Room {
 									   material,
 									   modelMatrix,
 									   shaderTexture,
-									   new Texture[] {rWallTexture},
+									   new Texture[] {materials},
+									   new int[] {rWallLayer},
 									   lights,
 									   camera,
 									   "two triangles (loop texture)");
@@ -215,7 +235,8 @@ public class Room {
 									   material,
 									   modelMatrix,
 									   shaderTexture,
-									   new Texture[] {ceilingTexture},
+									   new Texture[] {materials},
+									   new int[] {ceilingLayer},
 									   lights,
 									   camera,
 									   "two triangles");
@@ -251,13 +272,32 @@ public class Room {
 	}
 
 	/**
-	 * Draw all of the parts of the room.
+	 * Draw all of the parts of the room that are inside the camera's view.
 	 * 
 	 * @param gl The OpenGL context used for rendering.
 	 */
 	public void render(GL3 gl) {
+		Frustum frustum = camera.getFrustum();
 		for (int i=0; i<noObjects; i++) {
-			wall[i].render(gl);
+			// Parts outside the camera's view are skipped
+			if (frustum.isVisible(wall[i].getModelMatrix(), wall[i].getMesh())) {
+				Frustum.countVisible();
+				wall[i].render(gl);
+			}
+			else {
+				Frustum.countCulled();
+			}
+		}
+	}
+
+	/**
+	 * Make every part of the room cast shadows.
+	 * 
+	 * @param shadowRenderer The renderer of the shadow maps.
+	 */
+	public void addShadowCasters(ShadowRenderer shadowRenderer) {
+		for (int i=0; i<noObjects; i++) {
+			shadowRenderer.addCaster(wall[i]);
 		}
 	}
 
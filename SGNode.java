@@ -4,11 +4,20 @@ import com.jogamp.opengl.*;
 
 /**
  * Class for a node within the scene graph to store its children and associated transforms.
+ * World transforms are updated incrementally: changing a transform marks the path from its node
+ * up to the root as dirty, and update only visits dirty paths (recomputing the subtree below the
+ * changed transform).
  */
 public class SGNode {
 	protected String name;
 	protected ArrayList<SGNode> children;
 	protected Mat4 worldTransform;
+	protected SGNode parent;
+	// True if this node or one of its descendants needs its world transform recomputing
+	protected boolean dirty = true;
+
+	// Number of transforms recomputed since the count was last reset
+	protected static int recomputedCount = 0;
 
 	/**
 	 * Constructor. Initialise the node's children and set its name.
@@ -28,25 +37,68 @@ public class SGNode {
 	 */
 	public void addChild(SGNode child) {
 		children.add(child);
+		child.parent = this;
+		// New nodes start dirty, so the path above them must be marked from this node
+		markDirty();
+	}
+
+	/**
+	 * Mark this node, and every ancestor up to the root, as needing an update.
+	 */
+	protected void markDirty() {
+		// Ancestors of a dirty node are always dirty, so stop at the first one found
+		for (SGNode node = this; node != null && !node.dirty; node = node.parent) {
+			node.dirty = true;
+		}
 	}
 	
 	/**
-	 * Update the world transform for this node and its children.
+	 * Update the world transform for this node and any of its children that have changed.
 	 */
 	public void update() {
-		update(worldTransform);
+		update(worldTransform, false);
 	}
 	
 	/**
-	 * Update the world transform for this node and its children recursively.
+	 * Update the world transform for this node and its children recursively, skipping any child
+	 * whose subtree has not changed.
 	 * 
 	 * @param t The transformation to apply to all child nodes.
+	 * @param changed Whether or not t has changed since the last update.
 	 */
-	protected void update(Mat4 t) {
+	protected void update(Mat4 t, boolean changed) {
 		worldTransform = t;
+		updateChildren(t, changed);
+	}
+
+	/**
+	 * Update each child that is dirty, or every child if the transform passed to them has changed.
+	 * 
+	 * @param t The transformation to apply to all child nodes.
+	 * @param changed Whether or not t has changed since the last update.
+	 */
+	protected void updateChildren(Mat4 t, boolean changed) {
 		for (int i=0; i<children.size(); i++) {
-			children.get(i).update(t);
+			SGNode child = children.get(i);
+			if (changed || child.dirty) child.update(t, changed);
 		}
+		dirty = false;
+	}
+
+	/**
+	 * Get the number of transforms recomputed by updates since the count was last reset.
+	 * 
+	 * @return The number of recomputed transforms.
+	 */
+	public static int getRecomputedCount() {
+		return recomputedCount;
+	}
+
+	/**
+	 * Set the count of recomputed transforms back to zero (done at the start of each frame).
+	 */
+	public static void resetRecomputedCount() {
+		recomputedCount = 0;
 	}
 
 	/**
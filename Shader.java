@@ -3,28 +3,42 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
 import com.jogamp.opengl.*;
 import com.jogamp.opengl.util.glsl.*;  
 
 /**
  * Class for loading/linking/compiling shader files and setting their associated uniform variables.
+ * Uniform locations are looked up once after linking and cached by name. Shaders should normally be
+ * obtained from the ShaderCache, which shares them and loads saved program binaries.
  */
 public class Shader {
     private static final boolean DISPLAY_SHADERS = false;
     
     private int ID;
+    private String vertexPath;
+    private String fragmentPath;
+    private String[] defines;
     private String vertexShaderSource;
     private String fragmentShaderSource;
+    private Map<String,Integer> uniformLocations = new HashMap<String,Integer>();
     
     /** 
 	 * Constructor. Determine the path of the vertex and fragment shaders and try to compile and
 	 * link them.
 	 * 
+	 * If a binary of the same program was saved by the ShaderCache, it is loaded instead.
+	 * 
 	 * @param gl The OpenGL context used for rendering.
 	 * @param vertexPath The file path of the vertex shader.
 	 * @param fragmentPath The file path of the fragment shader.
+	 * @param defines Names to #define at the top of both shaders (may be empty).
 	*/
-    public Shader(GL3 gl, String vertexPath, String fragmentPath) {
+    public Shader(GL3 gl, String vertexPath, String fragmentPath, String... defines) {
+		this.vertexPath = vertexPath;
+		this.fragmentPath = fragmentPath;
+		this.defines = defines.clone();
 		try {
 			vertexShaderSource = new String(Files.readAllBytes(Paths.get(vertexPath)), Charset.defaultCharset());
 			fragmentShaderSource = new String(Files.readAllBytes(Paths.get(fragmentPath)), Charset.defaultCharset());
@@ -32,8 +46,16 @@ public class Shader {
 		catch (IOException e) {
 			e.printStackTrace();
 		}
+		vertexShaderSource = addDefines(vertexShaderSource, defines);
+		fragmentShaderSource = addDefines(fragmentShaderSource, defines);
 		if (DISPLAY_SHADERS) display();
+		ID = ShaderCache.loadProgram(gl, vertexShaderSource, fragmentShaderSource);
+		if (ID == 0) {
 			ID = compileAndLink(gl);
+			ShaderCache.saveProgram(gl, ID, vertexShaderSource, fragmentShaderSource);
+		}
+		cacheUniformLocations(gl);
+		bindUniformBlocks(gl);
     }
     
 	/**
@@ -45,6 +67,33 @@ public class Shader {
 		return ID;
     }
     
+	/**
+	 * Get the file path of the vertex shader.
+	 * 
+	 * @return The file path of the vertex shader.
+	 */
+    public String getVertexPath() {
+		return vertexPath;
+    }
+
+	/**
+	 * Get the file path of the fragment shader.
+	 * 
+	 * @return The file path of the fragment shader.
+	 */
+    public String getFragmentPath() {
+		return fragmentPath;
+    }
+
+	/**
+	 * Get the names defined at the top of the shader sources.
+	 * 
+	 * @return A copy of the defined names (empty if there are none).
+	 */
+    public String[] getDefines() {
+		return defines.clone();
+    }
+    
 	/**
 	 * Specifically activate this shader in the OpenGL context.
 	 * 
@@ -53,6 +102,29 @@ public class Shader {
     public void use(GL3 gl) {
 		gl.glUseProgram(ID);
     }
+
+	/**
+	 * Get the location of a uniform variable from the cache built after linking. Inactive or
+	 * unknown uniforms give -1, which OpenGL silently ignores (as glGetUniformLocation would).
+	 * 
+	 * @param name The name of the uniform variable.
+	 * @return The location of the uniform variable.
+	 */
+    public int getUniformLocation(String name) {
+		Integer location = uniformLocations.get(name);
+		return (location == null) ? -1 : location;
+    }
+
+	/**
+	 * Get a handle to a uniform variable so that it can be set repeatedly (e.g. every frame) 
+	 * without any name lookups.
+	 * 
+	 * @param name The name of the uniform variable.
+	 * @return The handle for the uniform variable.
+	 */
+    public UniformHandle getUniform(String name) {
+		return new UniformHandle(getUniformLocation(name));
+    }
     
 	/**
 	 * Set an integer value for a uniform variable.
@@ -62,7 +134,7 @@ public class Shader {
 	 * @param value The integer value to set the uniform to.
 	 */
     public void setInt(GL3 gl, String name, int value) {
-		int location = gl.glGetUniformLocation(ID, name);
+		int location = getUniformLocation(name);
 		gl.glUniform1i(location, value);
     }
     
@@ -74,7 +146,7 @@ public class Shader {
 	 * @param value The float value to set the uniform to.
 	 */
     public void setFloat(GL3 gl, String name, float value) {
-		int location = gl.glGetUniformLocation(ID, name);
+		int location = getUniformLocation(name);
 		gl.glUniform1f(location, value);
     }
     
@@ -87,7 +159,7 @@ public class Shader {
 	 * @param f2 The second float value of the 2D vector.
 	 */
     public void setFloat(GL3 gl, String name, float f1, float f2) {
-		int location = gl.glGetUniformLocation(ID, name);
+		int location = getUniformLocation(name);
 		gl.glUniform2f(location, f1, f2);
     }
     
@@ -101,7 +173,7 @@ public class Shader {
 	 * @param f3 The third float value of the 3D vector.
 	 */
     public void setFloat(GL3 gl, String name, float f1, float f2, float f3) {
-		int location = gl.glGetUniformLocation(ID, name);
+		int location = getUniformLocation(name);
 		gl.glUniform3f(location, f1, f2, f3);
     }
     
@@ -116,7 +188,7 @@ public class Shader {
 	 * @param f4 The fourth float value of the 4D vector.
 	 */
     public void setFloat(GL3 gl, String name, float f1, float f2, float f3, float f4) {
-		int location = gl.glGetUniformLocation(ID, name);
+		int location = getUniformLocation(name);
 		gl.glUniform4f(location, f1, f2, f3, f4);
     }
     
@@ -128,7 +200,7 @@ public class Shader {
 	 * @param f The array of float values (representing the 4x4 matrix).
 	 */
     public void setFloatArray(GL3 gl, String name, float[] f) {
-		int location = gl.glGetUniformLocation(ID, name);
+		int location = getUniformLocation(name);
 		gl.glUniformMatrix4fv(location, 1, false, f, 0);
     }
     
@@ -140,10 +212,73 @@ public class Shader {
 	 * @param v The Vec3 representing the vector of values.
 	 */
     public void setVec3(GL3 gl, String name, Vec3 v) {
-		int location = gl.glGetUniformLocation(ID, name);
+		int location = getUniformLocation(name);
 		gl.glUniform3f(location, v.x, v.y, v.z);
     }
     
+	/**
+	 * Query every active uniform of the linked program once and store its location by name. 
+	 * Arrays are stored under each element's name (e.g. "values[2]") as well as the base name.
+	 * 
+	 * @param gl The OpenGL context used for rendering.
+	 */
+    private void cacheUniformLocations(GL3 gl) {
+		int[] count = new int[1];
+		int[] maxLength = new int[1];
+		gl.glGetProgramiv(ID, GL3.GL_ACTIVE_UNIFORMS, count, 0);
+		gl.glGetProgramiv(ID, GL3.GL_ACTIVE_UNIFORM_MAX_LENGTH, maxLength, 0);
+		byte[] nameBytes = new byte[Math.max(maxLength[0], 1)];
+		int[] length = new int[1];
+		int[] size = new int[1];
+		int[] type = new int[1];
+		for (int i=0; i<count[0]; i++) {
+			gl.glGetActiveUniform(ID, i, nameBytes.length, length, 0, size, 0, type, 0, nameBytes, 0);
+			String name = new String(nameBytes, 0, length[0]);
+			int location = gl.glGetUniformLocation(ID, name);
+			// Uniforms inside uniform blocks have no location of their own
+			if (location == -1) continue;
+			uniformLocations.put(name, location);
+			if (name.endsWith("[0]")) {
+				String baseName = name.substring(0, name.length()-3);
+				uniformLocations.put(baseName, location);
+				for (int j=1; j<size[0]; j++) {
+					String elementName = baseName + "[" + j + "]";
+					uniformLocations.put(elementName, gl.glGetUniformLocation(ID, elementName));
+				}
+			}
+		}
+    }
+    
+	/**
+	 * Attach the program's FrameData uniform block (if it has one) to the binding point that the
+	 * per-frame uniform buffer is bound to.
+	 * 
+	 * @param gl The OpenGL context used for rendering.
+	 */
+    private void bindUniformBlocks(GL3 gl) {
+		int blockIndex = gl.glGetUniformBlockIndex(ID, FrameData.BLOCK_NAME);
+		if (blockIndex != GL3.GL_INVALID_INDEX)
+			gl.glUniformBlockBinding(ID, blockIndex, FrameData.BINDING_POINT);
+    }
+    
+	/**
+	 * Add a #define for each name to a shader's source, straight after its #version line (which
+	 * must come first).
+	 * 
+	 * @param source The source of the shader.
+	 * @param defines The names to define.
+	 * @return The source with the defines added.
+	 */
+    private static String addDefines(String source, String[] defines) {
+		if (defines.length == 0) return source;
+		StringBuilder lines = new StringBuilder();
+		for (String define : defines) {
+			lines.append("#define ").append(define).append('\n');
+		}
+		int versionEnd = source.startsWith("#version") ? source.indexOf('\n') + 1 : 0;
+		return source.substring(0, versionEnd) + lines + source.substring(versionEnd);
+    }
+
 	/**
 	 * Display the source code of the vertex and fragment shaders.
 	 */
@@ -174,10 +309,15 @@ public class Shader {
 			System.err.println("[error] Unable to compile fragment shader: " + sources);
 		ShaderProgram program = new ShaderProgram();
 		program.init(gl);
+		// Lets the ShaderCache save the linked program's binary
+		if (ShaderCache.binariesSupported(gl))
+			gl.glProgramParameteri(program.program(), GL3.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL.GL_TRUE);
 		program.add(vertexShaderCode);
 		program.add(fragmentShaderCode);
-		program.link(gl, System.out);
-		if (!program.validateProgram(gl, System.out))
+		/* Only the link result is checked: validation depends on the current state, and fails
+		   for programs with samplers of different types (e.g. sampler2D and samplerBuffer) until
+		   they have been given their texture units */
+		if (!program.link(gl, System.out))
 			System.err.println("[error] Unable to link program");
 		return program.program();
     }
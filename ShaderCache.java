@@ -0,0 +1,216 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import com.jogamp.common.nio.Buffers;
+import com.jogamp.opengl.*;
+
+/**
+ * Class for sharing one linked shader program per combination of vertex shader, fragment shader
+ * and defines between every object that uses it, instead of each object compiling its own copy.
+ *
+ * Linked programs are also saved to disk as driver program binaries (glGetProgramBinary), so later
+ * launches can load them with glProgramBinary instead of compiling. Binaries are only valid for
+ * the driver that made them, so the cache files are keyed by the GL vendor, renderer and version
+ * as well as the exact shader sources. If the driver cannot provide or accept a binary, the
+ * program is compiled from source as normal.
+ *
+ * Defines can also be set for every shader (see setGlobalDefines), e.g. to switch every model's
+ * shader to the deferred shading path.
+ */
+public final class ShaderCache {
+	public static final String DEFAULT_DIRECTORY = ".shader_cache";
+	private static final String EXTENSION = ".bin";
+
+	private static final Map<String,Shader> shaders = new HashMap<String,Shader>();
+	private static File directory = new File(DEFAULT_DIRECTORY);
+	private static String[] globalDefines = new String[0];
+	private static String driverKey = null;
+	private static boolean binariesSupported = false;
+	private static int binaryLoads = 0;
+
+	/**
+	 * Get the shared shader for a vertex and fragment shader pair, compiling (or loading) it if it
+	 * has not been used yet. The shader is shared, so it must not be deleted by its users (see
+	 * disposeAll).
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param vertexPath The file path of the vertex shader.
+	 * @param fragmentPath The file path of the fragment shader.
+	 * @param defines Names to #define at the top of both shaders (may be empty), as well as the
+	 *                global defines.
+	 * @return The shared shader.
+	 */
+	public static Shader get(GL3 gl, String vertexPath, String fragmentPath, String... defines) {
+		if (globalDefines.length > 0) {
+			// A set, so a shader's own defines (e.g. passed on by InstancedBatch) are not repeated
+			LinkedHashSet<String> all = new LinkedHashSet<String>(Arrays.asList(defines));
+			all.addAll(Arrays.asList(globalDefines));
+			defines = all.toArray(new String[0]);
+		}
+		String key = vertexPath + "|" + fragmentPath + "|" + String.join(",", defines);
+		Shader shader = shaders.get(key);
+		if (shader == null) {
+			shader = new Shader(gl, vertexPath, fragmentPath, defines);
+			shaders.put(key, shader);
+		}
+		return shader;
+	}
+
+	/**
+	 * Set names to #define in every shader. Must be called before any shaders are loaded.
+	 *
+	 * @param defines The names to define.
+	 */
+	public static void setGlobalDefines(String... defines) {
+		globalDefines = defines.clone();
+	}
+
+	/**
+	 * Use a different directory for the program binaries.
+	 *
+	 * @param path The path of the directory.
+	 */
+	public static void setDirectory(String path) {
+		directory = new File(path);
+	}
+
+	/**
+	 * Get the number of programs loaded from binaries rather than compiled.
+	 *
+	 * @return The number of programs loaded from binaries.
+	 */
+	public static int getBinaryLoads() {
+		return binaryLoads;
+	}
+
+	/**
+	 * Delete every shared program (e.g. when closing the window).
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 */
+	public static void disposeAll(GL3 gl) {
+		for (Shader shader : shaders.values()) {
+			gl.glDeleteProgram(shader.getID());
+		}
+		shaders.clear();
+	}
+
+	/**
+	 * Try to create a program from a saved binary of the given sources.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param vertexSource The source of the vertex shader.
+	 * @param fragmentSource The source of the fragment shader.
+	 * @return The ID of the linked program, or 0 if there is no usable binary.
+	 */
+	static int loadProgram(GL3 gl, String vertexSource, String fragmentSource) {
+		File file = binaryFile(gl, vertexSource, fragmentSource);
+		if (file == null || !file.isFile()) return 0;
+		try {
+			ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+			int format = contents.getInt();
+			ByteBuffer binary = Buffers.newDirectByteBuffer(contents.remaining());
+			binary.put(contents);
+			binary.flip();
+
+			int program = gl.glCreateProgram();
+			gl.glProgramBinary(program, format, binary, binary.remaining());
+			int[] linked = new int[1];
+			gl.glGetProgramiv(program, GL3.GL_LINK_STATUS, linked, 0);
+			if (linked[0] == GL.GL_TRUE) {
+				binaryLoads++;
+				return program;
+			}
+			// Rejected (e.g. the driver was updated without changing its version string)
+			gl.glDeleteProgram(program);
+			file.delete();
+		}
+		catch (IOException | RuntimeException e) {
+			file.delete();
+		}
+		return 0;
+	}
+
+	/**
+	 * Save the binary of a linked program so that later launches can load it.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param program The ID of the linked program.
+	 * @param vertexSource The source of the vertex shader.
+	 * @param fragmentSource The source of the fragment shader.
+	 */
+	static void saveProgram(GL3 gl, int program, String vertexSource, String fragmentSource) {
+		File file = binaryFile(gl, vertexSource, fragmentSource);
+		if (file == null) return;
+		int[] length = new int[1];
+		gl.glGetProgramiv(program, GL3.GL_PROGRAM_BINARY_LENGTH, length, 0);
+		if (length[0] <= 0) return;
+		ByteBuffer binary = Buffers.newDirectByteBuffer(length[0]);
+		int[] written = new int[1];
+		int[] format = new int[1];
+		gl.glGetProgramBinary(program, length[0], written, 0, format, 0, binary);
+		if (written[0] <= 0) return;
+		binary.limit(written[0]);
+
+		ByteBuffer contents = ByteBuffer.allocate(4 + written[0]);
+		contents.putInt(format[0]).put(binary);
+		try {
+			Files.createDirectories(directory.toPath());
+			// Written to a temporary file first, so a half-written binary is never loaded
+			File temp = File.createTempFile("program", ".tmp", directory);
+			Files.write(temp.toPath(), contents.array());
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+			           StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e) {
+			System.out.println("Could not save shader program binary: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Get whether program binaries can be retrieved and loaded with this driver.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @return True if program binaries are supported.
+	 */
+	static boolean binariesSupported(GL3 gl) {
+		identifyDriver(gl);
+		return binariesSupported;
+	}
+
+	/**
+	 * Get the cache file for a program.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param vertexSource The source of the vertex shader.
+	 * @param fragmentSource The source of the fragment shader.
+	 * @return The cache file, or null if the driver does not support program binaries.
+	 */
+	private static File binaryFile(GL3 gl, String vertexSource, String fragmentSource) {
+		if (!binariesSupported(gl)) return null;
+		return new File(directory, Fnv1aHash.toFileName(driverKey) + "-"
+			+ Fnv1aHash.toFileName(vertexSource + "\u0000" + fragmentSource) + EXTENSION);
+	}
+
+	/**
+	 * Record which driver is in use and whether it supports program binaries (done once).
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 */
+	private static void identifyDriver(GL3 gl) {
+		if (driverKey != null) return;
+		driverKey = gl.glGetString(GL.GL_VENDOR) + "|" + gl.glGetString(GL.GL_RENDERER) + "|"
+			+ gl.glGetString(GL.GL_VERSION);
+		// Only queried when supported, as otherwise the query leaves a GL error behind
+		binariesSupported = false;
+		if (gl.isGL4() || gl.isExtensionAvailable("GL_ARB_get_program_binary")) {
+			int[] formats = new int[1];
+			gl.glGetIntegerv(GL3.GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0);
+			binariesSupported = formats[0] > 0;
+		}
+	}
+}
@@ -0,0 +1,399 @@
+import gmaths.*;
+import java.util.ArrayList;
+import com.jogamp.opengl.*;
+
+/**
+ * Class for the shadow maps of the spotlights. Each shadowed light has a layer of one depth
+ * texture array, drawn from the light's point of view with a depth-only shader that reads only
+ * the positions of the meshes. The casters are every model added with addCasters that is inside
+ * the light's own frustum (whether or not the camera can see it, so shadows cast from outside the
+ * view still fall into it), except any whose bounding sphere contains the light (such as the
+ * casing around robot 2's spotlight).
+ *
+ * Maps are cached: each frame a signature of the light's view-projection matrix and of every
+ * caster inside the light's frustum (its mesh and world transformation) is calculated, and the
+ * map is only drawn again when the signature changes. A still light over still models costs no
+ * GPU work. Each light can also be limited to one redraw every few frames, and the number of
+ * maps redrawn in one frame can be capped, with the remaining maps kept until a later frame.
+ */
+public class ShadowRenderer {
+	// Texture unit of the shadow map array (after the material textures, light buffers and G-buffer)
+	public static final int SHADOW_MAP_UNIT = 10;
+	// Number of layers in the shadow map array (must match the shaders' use of it)
+	public static final int MAX_SHADOW_MAPS = 4;
+	public static final int DEFAULT_RESOLUTION = 1024;
+	private static final float NEAR = 0.1f;
+	// The far plane is at the light's range, up to this distance
+	private static final float MAX_FAR = 50f;
+	// Degrees added to the spotlight's cone, so the soft edge is not cut off
+	private static final float FOV_MARGIN = 2f;
+	// Slope-scaled depth offset applied while drawing the maps (against shadow acne)
+	private static final float OFFSET_FACTOR = 2f, OFFSET_UNITS = 4f;
+
+	private static int updateCount = 0;
+
+	private final int resolution;
+	private int[] textureId = new int[1];
+	private int[] framebufferId = new int[1];
+	private Shader depthShader;
+	private UniformHandle modelUniform, lightViewProjectionUniform;
+	private final ArrayList<ShadowMap> maps = new ArrayList<ShadowMap>();
+	// Scene graphs and separate models that cast shadows
+	private final ArrayList<TransformHierarchy> casterHierarchies =
+		new ArrayList<TransformHierarchy>();
+	private final ArrayList<ModelMultipleLights> casterModels =
+		new ArrayList<ModelMultipleLights>();
+	private int maxUpdatesPerFrame = MAX_SHADOW_MAPS;
+	// Map checked first next frame, so a capped number of redraws is shared between the lights
+	private int nextMap = 0;
+
+	private final Frustum frustum = new Frustum();
+	private final CasterVisitor casters = new CasterVisitor();
+	private final int[] viewport = new int[4];
+	private final Vec3 up = new Vec3();
+	private final Vec3 target = new Vec3();
+
+	/**
+	 * Constructor. Create the shadow map texture array and the framebuffer its layers are drawn
+	 * into, and load the depth-only shader.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param resolution The width and height of each shadow map in pixels.
+	 */
+	public ShadowRenderer(GL3 gl, int resolution) {
+		this.resolution = resolution;
+		gl.glGenTextures(1, textureId, 0);
+		gl.glBindTexture(GL3.GL_TEXTURE_2D_ARRAY, textureId[0]);
+		gl.glTexImage3D(GL3.GL_TEXTURE_2D_ARRAY, 0, GL.GL_DEPTH_COMPONENT24, resolution, resolution,
+		                MAX_SHADOW_MAPS, 0, GL3.GL_DEPTH_COMPONENT, GL.GL_UNSIGNED_INT, null);
+		// Compared against in the shaders, with linear filtering blending four comparisons
+		gl.glTexParameteri(GL3.GL_TEXTURE_2D_ARRAY, GL.GL_TEXTURE_MIN_FILTER, GL.GL_LINEAR);
+		gl.glTexParameteri(GL3.GL_TEXTURE_2D_ARRAY, GL.GL_TEXTURE_MAG_FILTER, GL.GL_LINEAR);
+		gl.glTexParameteri(GL3.GL_TEXTURE_2D_ARRAY, GL.GL_TEXTURE_WRAP_S, GL.GL_CLAMP_TO_EDGE);
+		gl.glTexParameteri(GL3.GL_TEXTURE_2D_ARRAY, GL.GL_TEXTURE_WRAP_T, GL.GL_CLAMP_TO_EDGE);
+		gl.glTexParameteri(GL3.GL_TEXTURE_2D_ARRAY, GL3.GL_TEXTURE_COMPARE_MODE,
+		                   GL3.GL_COMPARE_REF_TO_TEXTURE);
+		gl.glTexParameteri(GL3.GL_TEXTURE_2D_ARRAY, GL3.GL_TEXTURE_COMPARE_FUNC, GL.GL_LEQUAL);
+		gl.glBindTexture(GL3.GL_TEXTURE_2D_ARRAY, 0);
+
+		gl.glGenFramebuffers(1, framebufferId, 0);
+		gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, framebufferId[0]);
+		// Depth only
+		gl.glDrawBuffer(GL.GL_NONE);
+		gl.glReadBuffer(GL.GL_NONE);
+		gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, gl.getDefaultDrawFramebuffer());
+
+		depthShader = ShaderCache.get(
+			gl, "assets/shaders/vs_shadow.txt", "assets/shaders/fs_shadow.txt");
+		modelUniform = depthShader.getUniform("model");
+		lightViewProjectionUniform = depthShader.getUniform("lightViewProjection");
+	}
+
+	/**
+	 * Give a spotlight a shadow map.
+	 *
+	 * @param light The light.
+	 * @return False if every layer of the shadow map array is already in use.
+	 */
+	public boolean add(Light light) {
+		if (maps.size() == MAX_SHADOW_MAPS) return false;
+		maps.add(new ShadowMap(light, maps.size()));
+		return true;
+	}
+
+	/**
+	 * Make every model in a compiled scene graph cast shadows.
+	 *
+	 * @param hierarchy The compiled scene graph.
+	 */
+	public void addCasters(TransformHierarchy hierarchy) {
+		casterHierarchies.add(hierarchy);
+	}
+
+	/**
+	 * Make a model outside any scene graph cast shadows (drawn with its own model matrix).
+	 *
+	 * @param model The model.
+	 */
+	public void addCaster(ModelMultipleLights model) {
+		casterModels.add(model);
+	}
+
+	/**
+	 * Limit how often a light's shadow map can be redrawn (its update budget). While the map is
+	 * waiting, the light's shadows stay as they were when it was last drawn.
+	 *
+	 * @param light The light (which must have been added).
+	 * @param frames The least number of frames between redraws (1 to redraw whenever it changes).
+	 */
+	public void setUpdateInterval(Light light, int frames) {
+		for (ShadowMap map : maps) {
+			if (map.light == light) map.updateInterval = Math.max(1, frames);
+		}
+	}
+
+	/**
+	 * Cap the number of shadow maps redrawn in one frame. Maps that changed but went over the cap
+	 * are redrawn in a later frame.
+	 *
+	 * @param updates The most shadow maps redrawn per frame.
+	 */
+	public void setMaxUpdatesPerFrame(int updates) {
+		maxUpdatesPerFrame = updates;
+	}
+
+	/**
+	 * Get the width and height of each shadow map.
+	 *
+	 * @return The resolution in pixels.
+	 */
+	public int getResolution() {
+		return resolution;
+	}
+
+	/**
+	 * Redraw the shadow maps whose light or casters have changed (within each light's update
+	 * budget), then bind the shadow map array to its texture unit. Called once per frame after
+	 * the animation has been applied and before the lights are written for the frame (so each
+	 * light is given the matrix its map was last drawn with).
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 */
+	public void update(GL3 gl) {
+		int updatesLeft = maxUpdatesPerFrame;
+		boolean drawn = false;
+		int count = maps.size();
+		int next = nextMap;
+		for (int n=0; n<count; n++) {
+			int index = (nextMap + n) % count;
+			ShadowMap map = maps.get(index);
+			map.framesSinceUpdate++;
+			map.updateMatrix();
+			long signature = signature(map);
+			if (map.drawn && signature == map.signature) continue;
+			if (map.framesSinceUpdate < map.updateInterval || updatesLeft == 0) continue;
+
+			if (!drawn) {
+				gl.glGetIntegerv(GL.GL_VIEWPORT, viewport, 0);
+				gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, framebufferId[0]);
+				gl.glViewport(0, 0, resolution, resolution);
+				gl.glEnable(GL.GL_POLYGON_OFFSET_FILL);
+				gl.glPolygonOffset(OFFSET_FACTOR, OFFSET_UNITS);
+				depthShader.use(gl);
+				drawn = true;
+			}
+			draw(gl, map);
+			map.signature = signature;
+			map.drawn = true;
+			map.framesSinceUpdate = 0;
+			map.light.setShadowMatrix(map.matrix);
+			map.light.setShadowLayer(map.layer);
+			updatesLeft--;
+			updateCount++;
+			next = (index + 1) % count;
+		}
+		nextMap = next;
+		if (drawn) {
+			gl.glDisable(GL.GL_POLYGON_OFFSET_FILL);
+			gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, gl.getDefaultDrawFramebuffer());
+			gl.glViewport(viewport[0], viewport[1], viewport[2], viewport[3]);
+		}
+
+		gl.glActiveTexture(GL.GL_TEXTURE0 + SHADOW_MAP_UNIT);
+		gl.glBindTexture(GL3.GL_TEXTURE_2D_ARRAY, textureId[0]);
+		gl.glActiveTexture(GL.GL_TEXTURE0);
+		// The program, vertex array and active texture unit were changed behind the render
+		// state's back
+		RenderState.invalidate();
+	}
+
+	/**
+	 * Calculate the signature of a shadow map's light matrix and the casters inside its frustum.
+	 *
+	 * @param map The shadow map.
+	 * @return The signature.
+	 */
+	private long signature(ShadowMap map) {
+		casters.begin(map, null);
+		casters.add(map.matrix.toFloatArrayForGLSL(), 0, 16);
+		visitCasters();
+		return casters.hash;
+	}
+
+	/**
+	 * Visit every caster (with the visitor already begun for a shadow map).
+	 */
+	private void visitCasters() {
+		for (int i=0; i<casterHierarchies.size(); i++) {
+			casterHierarchies.get(i).visitModels(frustum, casters);
+		}
+		for (int i=0; i<casterModels.size(); i++) {
+			ModelMultipleLights model = casterModels.get(i);
+			if (model.getMesh() != null) {
+				casters.visit(model.getMesh(), model.getModelMatrix().toFloatArrayForGLSL(), 0);
+			}
+		}
+	}
+
+	/**
+	 * Draw the casters inside a shadow map's frustum into its layer.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param map The shadow map.
+	 */
+	private void draw(GL3 gl, ShadowMap map) {
+		gl.glFramebufferTextureLayer(GL.GL_FRAMEBUFFER, GL.GL_DEPTH_ATTACHMENT, textureId[0], 0,
+		                             map.layer);
+		gl.glClear(GL.GL_DEPTH_BUFFER_BIT);
+		lightViewProjectionUniform.setFloatArray(gl, map.matrix.toFloatArrayForGLSL());
+		casters.begin(map, gl);
+		visitCasters();
+	}
+
+	/**
+	 * Get the number of shadow maps drawn since the count was last reset.
+	 *
+	 * @return The number of shadow maps drawn.
+	 */
+	public static int getUpdateCount() {
+		return updateCount;
+	}
+
+	/**
+	 * Reset the number of shadow maps drawn (called at the start of each frame).
+	 */
+	public static void resetCounts() {
+		updateCount = 0;
+	}
+
+	/**
+	 * Delete the shadow map array and its framebuffer.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 */
+	public void dispose(GL3 gl) {
+		gl.glDeleteFramebuffers(1, framebufferId, 0);
+		gl.glDeleteTextures(1, textureId, 0);
+	}
+
+	/**
+	 * Class for the shadow map of one light.
+	 */
+	private final class ShadowMap {
+		private final Light light;
+		private final int layer;
+		private final Mat4 view = new Mat4(1);
+		private Mat4 projection = new Mat4(1);
+		private final Mat4 matrix = new Mat4(1);
+		// Field of view and far plane the projection was made with
+		private float fov = -1, far = -1;
+		private long signature = 0;
+		private boolean drawn = false;
+		private int updateInterval = 1;
+		private int framesSinceUpdate = 0;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param light The light casting the shadows.
+		 * @param layer The layer of the shadow map array used by the light.
+		 */
+		private ShadowMap(Light light, int layer) {
+			this.light = light;
+			this.layer = layer;
+		}
+
+		/**
+		 * Calculate the light's current view-projection matrix (a perspective covering its cone).
+		 */
+		private void updateMatrix() {
+			float newFov = Math.min(170f, 2*(float)Math.toDegrees(Math.acos(light.getOuterCutOff()))
+			                              + FOV_MARGIN);
+			float newFar = Math.max(NEAR*2, Math.min(light.getRange(), MAX_FAR));
+			// Only made again when the cone or range changes, as it allocates
+			if (newFov != fov || newFar != far) {
+				fov = newFov;
+				far = newFar;
+				projection = Mat4Transform.perspective(fov, 1, NEAR, far);
+			}
+			Vec3 p = light.getPosition(), d = light.getDirection();
+			target.x = p.x + d.x;
+			target.y = p.y + d.y;
+			target.z = p.z + d.z;
+			// Any up direction not along the light's direction will do
+			float length = (float)Math.sqrt(d.x*d.x + d.y*d.y + d.z*d.z);
+			boolean vertical = Math.abs(d.y) > 0.99f*length;
+			up.x = 0;
+			up.y = vertical ? 0 : 1;
+			up.z = vertical ? 1 : 0;
+			Mat4Transform.lookAtInto(p, target, up, view);
+			Mat4.multiplyInto(projection, view, matrix);
+		}
+	}
+
+	/**
+	 * Class that visits the casters to find those inside a shadow map's frustum, and either folds
+	 * them into a signature or draws them.
+	 */
+	private final class CasterVisitor implements TransformHierarchy.ModelVisitor {
+		private final float[] sphere = new float[4];
+		private final float[] model = new float[16];
+		private Vec3 lightPosition;
+		// Context to draw the casters with, or null to only calculate the signature
+		private GL3 gl;
+		private long hash;
+
+		/**
+		 * Start a visit for a shadow map.
+		 *
+		 * @param map The shadow map.
+		 * @param gl The OpenGL context to draw the casters with, or null to only calculate the
+		 *           signature.
+		 */
+		private void begin(ShadowMap map, GL3 gl) {
+			frustum.set(map.matrix);
+			lightPosition = map.light.getPosition();
+			this.gl = gl;
+			hash = Fnv1aHash.OFFSET_BASIS;
+		}
+
+		/**
+		 * Fold floats into the signature.
+		 *
+		 * @param values The array holding the floats.
+		 * @param offset The index of the first float.
+		 * @param length The number of floats.
+		 */
+		private void add(float[] values, int offset, int length) {
+			hash = Fnv1aHash.add(hash, values, offset, length);
+		}
+
+		/**
+		 * Visit one caster, skipping it unless it is inside the frustum.
+		 *
+		 * @param mesh The caster's mesh.
+		 * @param matrix The array holding the world transformation (column-major).
+		 * @param offset The index of the world transformation in matrix.
+		 */
+		public void visit(Mesh mesh, float[] matrix, int offset) {
+			Frustum.transformSphere(matrix, offset, mesh, sphere, 0);
+			if (frustum.classifySphere(sphere[0], sphere[1], sphere[2], sphere[3])
+			    == Frustum.OUTSIDE) return;
+			// Models around the light (e.g. its housing) would shadow everything
+			float dx = sphere[0] - lightPosition.x;
+			float dy = sphere[1] - lightPosition.y;
+			float dz = sphere[2] - lightPosition.z;
+			if (dx*dx + dy*dy + dz*dz < sphere[3]*sphere[3]) return;
+
+			if (gl == null) {
+				hash = Fnv1aHash.add(hash, mesh.getVertexArrayId());
+				add(matrix, offset, 16);
+			}
+			else {
+				System.arraycopy(matrix, offset, model, 0, 16);
+				modelUniform.setFloatArray(gl, model);
+				mesh.drawPositions(gl);
+			}
+		}
+	}
+}
@@ -0,0 +1,216 @@
+/**
+ * Class for running the animation of the globe and robots on their own thread at a fixed tick
+ * rate, separately from rendering. After every tick the animated values are written into a
+ * snapshot; the render thread keeps the last two snapshots and interpolates between them, so
+ * animation speed no longer depends on the frame rate and the simulation work is moved off the GL
+ * thread.
+ *
+ * Each object packs its animated values into its own range of a shared float array (see the
+ * objects' writeSnapshot and applySnapshot methods).
+ */
+public class Simulation implements Runnable {
+	public static final int TICKS_PER_SECOND = 60;
+	private static final long TICK_NANOS = 1000000000L/TICKS_PER_SECOND;
+	// If the simulation falls this many ticks behind, it skips ahead rather than catching up
+	private static final int MAX_TICKS_BEHIND = 5;
+
+	private final Globe globe;
+	private final Robot1 robot1;
+	private final Robot2 robot2;
+	private final int robot1Offset;
+	private final int robot2Offset;
+
+	// Values being written by the simulation thread
+	private final float[] working;
+	// The two most recently published snapshots and the times they were published (guarded by lock)
+	private float[] previous, latest;
+	private long previousTime, latestTime;
+	private final Object lock = new Object();
+
+	// Copies of the snapshots taken by the render thread
+	private final float[] renderPrevious, renderLatest;
+
+	private Thread thread;
+	private volatile boolean running = false;
+	private long nextTick;
+	// Number of ticks run, from which the animation time is derived (only used by the ticking thread)
+	private long tickCount = 0;
+
+	/**
+	 * Constructor. Take an initial snapshot of every object, so there is something to draw before
+	 * the first tick.
+	 *
+	 * @param globe The globe in the scene.
+	 * @param robot1 Robot 1 in the scene.
+	 * @param robot2 Robot 2 in the scene.
+	 */
+	public Simulation(Globe globe, Robot1 robot1, Robot2 robot2) {
+		this.globe = globe;
+		this.robot1 = robot1;
+		this.robot2 = robot2;
+		robot1Offset = Globe.SNAPSHOT_SIZE;
+		robot2Offset = robot1Offset + Robot1.SNAPSHOT_SIZE;
+		int size = robot2Offset + Robot2.SNAPSHOT_SIZE;
+		working = new float[size];
+		previous = new float[size];
+		latest = new float[size];
+		renderPrevious = new float[size];
+		renderLatest = new float[size];
+
+		writeSnapshot(working);
+		System.arraycopy(working, 0, previous, 0, size);
+		System.arraycopy(working, 0, latest, 0, size);
+		previousTime = latestTime = Clock.nanoTime();
+		nextTick = latestTime + TICK_NANOS;
+	}
+
+	/**
+	 * Start the simulation thread.
+	 */
+	public void start() {
+		running = true;
+		thread = new Thread(this, "Simulation");
+		// The simulation should never keep the program open by itself
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop the simulation thread and wait for it to finish its current tick.
+	 */
+	public void stop() {
+		running = false;
+		if (thread == null) return;
+		thread.interrupt();
+		try {
+			thread.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		thread = null;
+	}
+
+	/**
+	 * Run ticks at the fixed rate until the simulation is stopped.
+	 */
+	public void run() {
+		nextTick = Clock.nanoTime() + TICK_NANOS;
+		while (running) {
+			long wait = nextTick - Clock.nanoTime();
+			if (wait > 0) {
+				try {
+					Thread.sleep(wait/1000000, (int)(wait%1000000));
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+			}
+			tick(Clock.nanoTime());
+			nextTick += TICK_NANOS;
+			if (Clock.nanoTime() - nextTick > MAX_TICKS_BEHIND*TICK_NANOS) {
+				nextTick = Clock.nanoTime() + TICK_NANOS;
+			}
+		}
+	}
+
+	/**
+	 * Run every tick that is due, on the calling thread. Used instead of start() when the
+	 * simulation should run in step with rendering (e.g. with a manual Clock, so that every run
+	 * animates identically).
+	 */
+	public void catchUp() {
+		while (Clock.nanoTime() >= nextTick) {
+			tick(nextTick);
+			nextTick += TICK_NANOS;
+		}
+	}
+
+	/**
+	 * Advance every object by one tick and publish the result. The objects are animated by the
+	 * simulation time (the tick count times the length of a tick) rather than the clock, so they
+	 * reach the same state after the same number of ticks whatever the frame rate.
+	 *
+	 * @param time The time of the tick in nanoseconds, used to interpolate between snapshots.
+	 */
+	private void tick(long time) {
+		tickCount++;
+		double seconds = (double)tickCount/TICKS_PER_SECOND;
+		// Robot 1 dances depending on how close robot 2 is, so robot 2 moves first
+		robot2.step(seconds);
+		robot1.step(seconds, robot2.getPosition());
+		globe.step(seconds);
+
+		writeSnapshot(working);
+		synchronized (lock) {
+			float[] oldest = previous;
+			previous = latest;
+			previousTime = latestTime;
+			latest = oldest;
+			System.arraycopy(working, 0, latest, 0, working.length);
+			latestTime = time;
+		}
+	}
+
+	/**
+	 * Write every object's animated values into a snapshot.
+	 *
+	 * @param snapshot The array to write to.
+	 */
+	private void writeSnapshot(float[] snapshot) {
+		globe.writeSnapshot(snapshot, 0);
+		robot1.writeSnapshot(snapshot, robot1Offset);
+		robot2.writeSnapshot(snapshot, robot2Offset);
+	}
+
+	/**
+	 * Apply the animation to every object for the current frame by interpolating between the two
+	 * most recent snapshots. Called by the render thread before the scene is drawn. The result
+	 * trails the simulation by up to one tick, so there is always a later snapshot to move towards.
+	 */
+	public void apply() {
+		long previousTick, latestTick;
+		synchronized (lock) {
+			System.arraycopy(previous, 0, renderPrevious, 0, previous.length);
+			System.arraycopy(latest, 0, renderLatest, 0, latest.length);
+			previousTick = previousTime;
+			latestTick = latestTime;
+		}
+		float alpha = 1;
+		if (latestTick != previousTick) {
+			alpha = (float)(Clock.nanoTime() - latestTick)/TICK_NANOS;
+			alpha = Math.max(0, Math.min(1, alpha));
+		}
+		globe.applySnapshot(renderPrevious, renderLatest, 0, alpha);
+		robot1.applySnapshot(renderPrevious, renderLatest, robot1Offset, alpha);
+		robot2.applySnapshot(renderPrevious, renderLatest, robot2Offset, alpha);
+	}
+
+	/**
+	 * Interpolate linearly between two values.
+	 *
+	 * @param from The value at the start.
+	 * @param to The value at the end.
+	 * @param alpha How far to move from the start to the end (0 to 1).
+	 * @return The interpolated value.
+	 */
+	public static float lerp(float from, float to, float alpha) {
+		return from + (to-from)*alpha;
+	}
+
+	/**
+	 * Interpolate between two angles the shortest way round, so an angle that wraps around (e.g.
+	 * from 0 back to 360) does not spin the wrong way for one frame.
+	 *
+	 * @param from The angle at the start in degrees.
+	 * @param to The angle at the end in degrees.
+	 * @param alpha How far to move from the start to the end (0 to 1).
+	 * @return The interpolated angle in degrees.
+	 */
+	public static float lerpAngle(float from, float to, float alpha) {
+		float difference = (to-from) % 360;
+		if (difference > 180) difference -= 360;
+		else if (difference < -180) difference += 360;
+		return from + difference*alpha;
+	}
+}
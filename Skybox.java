@@ -26,6 +26,8 @@ public class Skybox {
     private int numTexFloats = 2;
     private int[] vertexBufferId = new int[1];
 	private int[] vertexArrayId = new int[1];
+    private Mat4 viewMatrix = new Mat4(1);
+    private Mat4 mvpMatrix = new Mat4(1);
 
     float skyboxVertices[] = {
         // x,y,z,s,t
@@ -89,7 +91,7 @@ public class Skybox {
      */
     public Skybox(GL3 gl, Camera c, Texture s, Texture t) {
         this.camera = c;
-        shader = new Shader(gl, "assets/shaders/vs_skybox.txt", "assets/shaders/fs_skybox.txt");
+        shader = ShaderCache.get(gl, "assets/shaders/vs_skybox.txt", "assets/shaders/fs_skybox.txt");
         this.skyboxTexture = s;
         this.movingTexture = t;
         startTime = getSeconds();
@@ -117,11 +119,12 @@ public class Skybox {
     public void render(GL3 gl) {
         // Shader-related operations
         double elapsedTime = getSeconds() - startTime;
-        Mat4 viewMatrix = camera.getViewMatrix();
+        // Copied so that removing the translation does not alter the camera's own view matrix
+        viewMatrix.set(camera.getViewMatrix());
         viewMatrix.set(0,3,0);
         viewMatrix.set(1,3,0);
         viewMatrix.set(2,3,0);
-        Mat4 mvpMatrix = Mat4.multiply(camera.getPerspectiveMatrix(), viewMatrix);
+        Mat4.multiplyInto(camera.getPerspectiveMatrix(), viewMatrix, mvpMatrix);
         shader.use(gl);
         shader.setFloatArray(gl, "mvpMatrix", mvpMatrix.toFloatArrayForGLSL());
 
@@ -142,6 +145,7 @@ public class Skybox {
         gl.glActiveTexture(GL.GL_TEXTURE1);
         movingTexture.bind(gl);
 		gl.glDrawArrays(GL.GL_TRIANGLES, 0, skyboxVertices.length / 5);
+		RenderState.countDrawCall(skyboxVertices.length/5/3);
 		gl.glBindVertexArray(0);
         gl.glDepthFunc(GL3.GL_LESS);
     }
@@ -152,6 +156,6 @@ public class Skybox {
 	 * @return The current time in seconds in a double format.
 	 */
     private double getSeconds() {
-    	return System.currentTimeMillis()/1000.0;
+    	return Clock.getSeconds();
   	}
 }
\ No newline at end of file
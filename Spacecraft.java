@@ -19,6 +19,10 @@ import com.jogamp.opengl.util.FPSAnimator;
  * Changes made:
  * - setUpInteraction(): new function for all UI elements under the canvas
  * - stateChanged(): new function for handling slider elements
+ * - main(): runs the headless benchmark (HeadlessBenchmark) instead when given --headless, and
+ *   --profile-csv logs the time of each render pass to a CSV file
+ * - setUpInteraction(): shows the GPU/CPU time of each render pass (from the GpuProfiler)
+ * - main(): --deferred lights the scene with deferred shading instead of forward shading
  */
 public class Spacecraft extends JFrame implements ActionListener, ChangeListener {	
 	private static final int WIDTH = 1024;
@@ -26,20 +30,34 @@ public class Spacecraft extends JFrame implements ActionListener, ChangeListener
 	private static final Dimension dimension = new Dimension(WIDTH, HEIGHT);
 	private GLCanvas canvas;
 	private JPanel interaction;
+	private JTextArea profileText;
+	private Timer profileTimer;
 	private Spacecraft_GLEventListener glEventListener;
 	private final FPSAnimator animator; 
+	// Read from the command line before the window (and its listener) is created
+	private static boolean deferredShading = false;
 
 	/**
-	 * Creates the main window for seeing the newly-made Spacecraft object.
+	 * Creates the main window for seeing the newly-made Spacecraft object, or runs the headless 
+	 * benchmark if --headless is given.
 	 * 
-	 * @param args Command line arguments (unused; solely here for compiling purposes).
+	 * @param args Command line arguments (--headless and its options, or --profile-csv file and
+	 *             --deferred).
 	 */
 	public static void main(String[] args) {
+		if (java.util.Arrays.asList(args).contains("--headless")) {
+			HeadlessBenchmark.run(args);
+			return;
+		}
+		deferredShading = java.util.Arrays.asList(args).contains("--deferred");
 		Spacecraft b1 = new Spacecraft("Spacecraft");
 		b1.getContentPane().setPreferredSize(dimension);
 		b1.pack();
 		b1.setVisible(true);
 		b1.canvas.requestFocusInWindow();
+		for (int i=0; i<args.length-1; i++) {
+			if (args[i].equals("--profile-csv")) b1.glEventListener.setProfilerLog(args[i+1]);
+		}
 	}
 
 	/**
@@ -82,6 +100,7 @@ public class Spacecraft extends JFrame implements ActionListener, ChangeListener
 		Camera camera = new Camera(Camera.DEFAULT_POSITION,
 			Camera.DEFAULT_TARGET, Camera.DEFAULT_UP);
 		glEventListener = new Spacecraft_GLEventListener(camera);
+		glEventListener.setDeferredShading(deferredShading);
 		canvas.addGLEventListener(glEventListener);
 		canvas.addMouseMotionListener(new MyMouseInput(camera));
 		canvas.addKeyListener(new MyKeyboardInput(camera));
@@ -154,6 +173,14 @@ public class Spacecraft extends JFrame implements ActionListener, ChangeListener
 		button.addActionListener(this);
 		buttonPanel.add(button);
 		interaction.add(buttonPanel);
+
+		// Time taken by each render pass, refreshed twice a second
+		profileText = new JTextArea();
+		profileText.setEditable(false);
+		profileText.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 11));
+		interaction.add(profileText);
+		profileTimer = new Timer(500, e -> profileText.setText(glEventListener.getProfilerSummary()));
+		profileTimer.start();
 	}
 
 	/**
@@ -208,6 +235,7 @@ public class Spacecraft extends JFrame implements ActionListener, ChangeListener
 		 */
 		public void windowClosing(WindowEvent e) {
 			animator.stop();
+			profileTimer.stop();
 			remove(canvas);
 			dispose();
 			System.exit(0);
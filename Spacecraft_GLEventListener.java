@@ -1,5 +1,6 @@
 import gmaths.*;
 import java.nio.*;
+import java.util.Random;
 import com.jogamp.common.nio.*;
 import com.jogamp.opengl.*;
 import com.jogamp.opengl.util.*;
@@ -23,9 +24,30 @@ import com.jogamp.opengl.util.texture.spi.JPEGImage;
  * - changeDistanceThreshold(): process UI interaction for robot 1's dancing proximity distance
  * - startStopRobot1Movement(): process UI interaction for manually setting robot 1's dancing state
  * - startStopRobot2Movement(): process UI interaction for manually setting robot 2's movement
+ * - render(): the globe and robots are animated on a separate fixed-rate Simulation thread, and
+ *   the render thread applies interpolated snapshots of their state
+ * - render(): camera and light values are written once per frame into the FrameData uniform block
+ * - render(): queued models and instanced batches are sorted and drawn after every object has
+ *   been rendered
+ * - setThreadedSimulation(): the simulation can instead be run on the render thread each frame,
+ *   which together with a manual Clock makes every run identical (used by HeadlessBenchmark)
+ * - render(): each pass is timed on the GPU and CPU by a GpuProfiler (see getProfilerSummary() and
+ *   setProfilerLog())
+ * - render(): textures are decoded in the background and uploaded as they become ready (see
+ *   isLoadingTextures())
+ * - loadTextures(): the room and robot textures are packed into one texture array
+ * - render(): lights are held by a LightManager, which assigns the point lights and spotlights to
+ *   clusters each frame so that any number of them can light the scene (see setExtraPointLights())
+ * - render(): the scene can instead be lit with deferred shading by a DeferredRenderer (see
+ *   setDeferredShading())
+ * - render(): the spotlight casts shadows from a shadow map drawn by a ShadowRenderer, which is
+ *   only redrawn when the light or the models in its view move (see setShadowMapResolution(),
+ *   setShadowUpdateInterval() and setMaxShadowUpdatesPerFrame())
  */
 public class Spacecraft_GLEventListener implements GLEventListener {
 	private static final boolean DISPLAY_SHADERS = false;
+	// Width and height of each layer of the room and robot texture array
+	private static final int MATERIAL_LAYER_SIZE = 500;
 	private Camera camera;
 	
 	/**
@@ -39,6 +61,96 @@ public class Spacecraft_GLEventListener implements GLEventListener {
 		this.camera.setTarget(new Vec3(0f,4f,0f));
 	}
 	
+	/**
+	 * Set whether the simulation runs on its own thread (the default) or on the render thread at
+	 * the start of each frame. Must be called before the listener is initialised.
+	 * 
+	 * @param threaded True to run the simulation on its own thread.
+	 */
+	public void setThreadedSimulation(boolean threaded) {
+		threadedSimulation = threaded;
+	}
+
+	/**
+	 * Set whether the scene is lit with deferred shading (models are drawn into a G-buffer and lit
+	 * afterwards in screen space) rather than forward shading (the default). Must be called
+	 * before the listener is initialised.
+	 * 
+	 * @param deferred True to use deferred shading.
+	 */
+	public void setDeferredShading(boolean deferred) {
+		deferredShading = deferred;
+	}
+
+	/**
+	 * Set the width and height of the spotlight's shadow map in pixels. Must be called before the
+	 * listener is initialised.
+	 * 
+	 * @param resolution The resolution of the shadow map.
+	 */
+	public void setShadowMapResolution(int resolution) {
+		shadowMapResolution = resolution;
+	}
+
+	/**
+	 * Set the least number of frames between redraws of the spotlight's shadow map (1 to redraw
+	 * it whenever it changes). Must be called before the listener is initialised.
+	 * 
+	 * @param frames The number of frames.
+	 */
+	public void setShadowUpdateInterval(int frames) {
+		shadowUpdateInterval = frames;
+	}
+
+	/**
+	 * Set the most shadow maps that are redrawn in one frame. Must be called before the listener
+	 * is initialised.
+	 * 
+	 * @param updates The number of shadow maps.
+	 */
+	public void setMaxShadowUpdatesPerFrame(int updates) {
+		maxShadowUpdatesPerFrame = updates;
+	}
+
+	/**
+	 * Set the number of extra coloured point lights scattered around the room (used to test the
+	 * cost of many lights). Must be called before the listener is initialised.
+	 * 
+	 * @param count The number of extra point lights.
+	 */
+	public void setExtraPointLights(int count) {
+		extraPointLights = count;
+	}
+
+	/**
+	 * Start logging the time of every pass to a CSV file. The file is opened at the start of the
+	 * next frame, so this can be called from any thread.
+	 * 
+	 * @param path The path of the CSV file.
+	 */
+	public void setProfilerLog(String path) {
+		profilerLogPath = path;
+	}
+
+	/**
+	 * Return whether any texture is still being decoded (and is showing a placeholder).
+	 * 
+	 * @return True if some textures have not been uploaded yet.
+	 */
+	public boolean isLoadingTextures() {
+		return textures == null || textures.isLoading();
+	}
+
+	/**
+	 * Get the average GPU and CPU time of each pass over recent frames as text.
+	 * 
+	 * @return The times of each pass (empty before the first frame).
+	 */
+	public String getProfilerSummary() {
+		GpuProfiler p = profiler;
+		return p == null ? "" : p.getSummary();
+	}
+
 	// ***************************************************
 	/* METHODS DEFINED BY GLEventListener */
 
@@ -56,7 +168,6 @@ public class Spacecraft_GLEventListener implements GLEventListener {
 		gl.glDepthFunc(GL.GL_LESS);
 		gl.glFrontFace(GL.GL_CCW);
 		initialise(gl);
-		startTime = getSeconds();
 	}
 	
 	/**
@@ -73,6 +184,7 @@ public class Spacecraft_GLEventListener implements GLEventListener {
 		gl.glViewport(x, y, width, height);
 		float aspect = (float)width/(float)height;
 		camera.setPerspectiveMatrix(Mat4Transform.perspective(45, aspect));
+		if (deferredRenderer != null) deferredRenderer.resize(gl, width, height);
 	}
 
 	/**
@@ -92,12 +204,18 @@ public class Spacecraft_GLEventListener implements GLEventListener {
 	 */
 	public void dispose(GLAutoDrawable drawable) {
 		GL3 gl = drawable.getGL().getGL3();
+		simulation.stop();
+		profiler.dispose(gl);
 		room.dispose(gl);
 		globe.dispose(gl);
 		robot1.dispose(gl);
 		robot2.dispose(gl);
-		lights[0].dispose(gl);
-		lights[1].dispose(gl);
+		lightManager.dispose(gl);
+		if (deferredRenderer != null) deferredRenderer.dispose(gl);
+		shadowRenderer.dispose(gl);
+		frameData.dispose(gl);
+		InstancedBatch.disposeAll(gl);
+		ShaderCache.disposeAll(gl);
 		textures.destroy(gl);
 	}
 
@@ -169,10 +287,35 @@ public class Spacecraft_GLEventListener implements GLEventListener {
 	private Skybox skybox;
 
 	// Light-related variables
+	private LightManager lightManager;
 	private Light[] lights = new Light[2];
+	private int extraPointLights = 0;
+	// Null when the scene is drawn with forward shading
+	private DeferredRenderer deferredRenderer;
+	private boolean deferredShading = false;
+	private ShadowRenderer shadowRenderer;
+	private int shadowMapResolution = ShadowRenderer.DEFAULT_RESOLUTION;
+	private int shadowUpdateInterval = 1;
+	private int maxShadowUpdatesPerFrame = ShadowRenderer.MAX_SHADOW_MAPS;
 	private Material defaultGlobalLightIntensity;
 	private Material defaultSpotLightIntensity;
 
+	// Camera and light values shared by every shader (written once per frame)
+	private FrameData frameData;
+	private Simulation simulation;
+	// If false, the simulation is run on the render thread at the start of each frame
+	private boolean threadedSimulation = true;
+
+	// Passes timed by the profiler each frame (room, globe and the robots mostly queue their
+	// models, so their GPU work is timed as part of the shadows and queue passes)
+	private static final String[] PASSES = {"room", "globe", "robot1", "robot2", "shadows",
+	                                        "queue", "lighting", "lights", "skybox"};
+	private static final int PASS_ROOM = 0, PASS_GLOBE = 1, PASS_ROBOT1 = 2, PASS_ROBOT2 = 3,
+	                         PASS_SHADOWS = 4, PASS_QUEUE = 5, PASS_LIGHTING = 6, PASS_LIGHTS = 7,
+	                         PASS_SKYBOX = 8;
+	private volatile GpuProfiler profiler;
+	private volatile String profilerLogPath;
+
 	// Objects within the room
 	private Globe globe;
 	private Robot1 robot1;
@@ -185,35 +328,42 @@ public class Spacecraft_GLEventListener implements GLEventListener {
 	 */
 	private void loadTextures(GL3 gl) {
 		textures = new TextureLibrary();
-		textures.add(gl, "floor", "assets/textures/floor.jpg");
-		textures.add(gl, "ceiling", "assets/textures/ceiling.jpg");
-		textures.add(gl, "name_diffuse", "assets/textures/diffuse_ellis.jpg");
-		textures.add(gl, "name_specular", "assets/textures/specular_ellis.jpg");
-		textures.add(gl, "left_wall1", "assets/textures/left_wall1.jpg");
-		textures.add(gl, "left_wall2", "assets/textures/left_wall2.jpg");
-		textures.add(gl, "left_wall3", "assets/textures/left_wall3.jpg");
-		textures.add(gl, "window_piece", "assets/textures/window_piece.jpg");
-		textures.add(gl, "right_wall", "assets/textures/right_wall.jpg");
+		// The room and robot textures are packed into one texture array, so they share a binding
+		// (the smaller wall and window textures are resized to the size of the others)
+		String[] materialNames = {"floor", "ceiling", "name_diffuse", "name_specular", "left_wall1",
+		                          "left_wall2", "left_wall3", "window_piece", "right_wall",
+		                          "robot1_base", "robot1_body1", "robot1_body2", "robot1_body3",
+		                          "robot1_arm", "robot1_head", "robot1_eye", "robot1_appendage",
+		                          "robot2_body", "robot2_eye", "robot2_antenna", "robot2_casing"};
+		String[] materialFilenames = {"assets/textures/floor.jpg",
+		                              "assets/textures/ceiling.jpg",
+		                              "assets/textures/diffuse_ellis.jpg",
+		                              "assets/textures/specular_ellis.jpg",
+		                              "assets/textures/left_wall1.jpg",
+		                              "assets/textures/left_wall2.jpg",
+		                              "assets/textures/left_wall3.jpg",
+		                              "assets/textures/window_piece.jpg",
+		                              "assets/textures/right_wall.jpg",
+		                              "assets/textures/robot1_base.jpg",
+		                              "assets/textures/robot1_body1.jpg",
+		                              "assets/textures/robot1_body2.jpg",
+		                              "assets/textures/robot1_body3.jpg",
+		                              "assets/textures/robot1_arm.jpg",
+		                              "assets/textures/robot1_head.jpg",
+		                              "assets/textures/robot1_eye.jpg",
+		                              "assets/textures/robot1_appendage.jpg",
+		                              "assets/textures/robot2_body.jpg",
+		                              "assets/textures/robot2_eye.jpg",
+		                              "assets/textures/robot2_antenna.jpg",
+		                              "assets/textures/robot2_casing.jpg"};
+		textures.addArray(gl, "materials", MATERIAL_LAYER_SIZE, MATERIAL_LAYER_SIZE, materialNames,
+		                  materialFilenames);
 
 		textures.add(gl, "stand_diffuse", "assets/textures/diffuse_stand.jpg");
 		textures.add(gl, "stand_specular", "assets/textures/specular_stand.jpg");
 		textures.add(gl, "axis", "assets/textures/axis.jpg");
 		textures.add(gl, "earth", "assets/textures/earth_landmarks.jpg");
 
-		textures.add(gl, "robot1_base", "assets/textures/robot1_base.jpg");
-		textures.add(gl, "robot1_body1", "assets/textures/robot1_body1.jpg");
-		textures.add(gl, "robot1_body2", "assets/textures/robot1_body2.jpg");
-		textures.add(gl, "robot1_body3", "assets/textures/robot1_body3.jpg");
-		textures.add(gl, "robot1_arm", "assets/textures/robot1_arm.jpg");
-		textures.add(gl, "robot1_head", "assets/textures/robot1_head.jpg");
-		textures.add(gl, "robot1_eye", "assets/textures/robot1_eye.jpg");
-		textures.add(gl, "robot1_appendage", "assets/textures/robot1_appendage.jpg");
-		
-		textures.add(gl, "robot2_body", "assets/textures/robot2_body.jpg");
-		textures.add(gl, "robot2_eye", "assets/textures/robot2_eye.jpg");
-		textures.add(gl, "robot2_antenna", "assets/textures/robot2_antenna.jpg");
-		textures.add(gl, "robot2_casing", "assets/textures/robot2_casing.jpg");
-
 		String[] skyboxFilenames = {"assets/textures/skybox_right.jpg",
 									"assets/textures/skybox_left.jpg",
 									"assets/textures/skybox_top.jpg",
@@ -224,6 +374,26 @@ public class Spacecraft_GLEventListener implements GLEventListener {
 		textures.add(gl, "skybox_moving", "assets/textures/skybox_moving.jpg");
 	}
 
+	/**
+	 * Add the extra point lights to the light manager. Their positions and colours come from a
+	 * fixed seed, so every run has the same lights.
+	 */
+	private void addExtraPointLights() {
+		Random random = new Random(1);
+		for (int i=0; i<extraPointLights; i++) {
+			Light light = lightManager.add(new Light(Light.Type.POINT, null));
+			light.setPosition(new Vec3(random.nextFloat()*14-7, 0.5f + random.nextFloat()*6,
+			                           random.nextFloat()*14-7));
+			Vec3 colour = new Vec3(random.nextFloat(), random.nextFloat(), random.nextFloat());
+			Material material = new Material();
+			material.setAmbient(0f, 0f, 0f);
+			material.setDiffuse(colour.x*0.6f, colour.y*0.6f, colour.z*0.6f);
+			material.setSpecular(colour.x*0.3f, colour.y*0.3f, colour.z*0.3f);
+			light.setMaterial(material);
+			light.setAttenuation(1f, 0.7f, 1.8f);
+		}
+	}
+
 	/**
 	 * Set up each element of the scene in terms of model making, setting of positions/directions,
 	 * etc.
@@ -231,26 +401,30 @@ public class Spacecraft_GLEventListener implements GLEventListener {
 	 * @param gl The OpenGL context used for rendering.
 	 */
 	public void initialise(GL3 gl) {
+		// Every model's shader only writes its surface when drawing into the G-buffer
+		if (deferredShading) ShaderCache.setGlobalDefines(DeferredRenderer.DEFINE);
 		loadTextures(gl);
+		frameData = new FrameData(gl);
+		profiler = new GpuProfiler(gl, PASSES);
 
-		lights[0] = new Light(gl, "cube");
-		lights[0].setCamera(camera);
+		lightManager = new LightManager(gl);
+		lights[0] = lightManager.add(new Light(Light.Type.GLOBAL, "cube"));
 		lights[0].setPosition(new Vec3(0,8,-4));
 		defaultGlobalLightIntensity = lights[0].getMaterial();
-		lights[1] = new Light(gl, "sphere");
-		lights[1].setCamera(camera);
+		lights[1] = lightManager.add(new Light(Light.Type.SPOT, "sphere"));
 		defaultSpotLightIntensity = lights[1].getMaterial();
+		addExtraPointLights();
+		if (deferredShading) deferredRenderer = new DeferredRenderer(gl);
+		shadowRenderer = new ShadowRenderer(gl, shadowMapResolution);
+		shadowRenderer.add(lights[1]);
+		shadowRenderer.setUpdateInterval(lights[1], shadowUpdateInterval);
+		shadowRenderer.setMaxUpdatesPerFrame(maxShadowUpdatesPerFrame);
 
-		Texture[] roomTextures = {textures.get("floor"),
-								  textures.get("ceiling"),
-								  textures.get("name_diffuse"),
-								  textures.get("name_specular"),
-								  textures.get("left_wall1"),
-								  textures.get("left_wall2"),
-								  textures.get("left_wall3"),
-								  textures.get("window_piece"),
-								  textures.get("right_wall")};
-		room = new Room(gl, camera, lights, roomTextures);
+		Texture materials = textures.get("materials");
+		int[] roomLayers = textures.getLayers("floor", "ceiling", "name_diffuse", "name_specular",
+		                                      "left_wall1", "left_wall2", "left_wall3",
+		                                      "window_piece", "right_wall");
+		room = new Room(gl, camera, lights, materials, roomLayers);
 
 		Texture[] globeTextures = {textures.get("stand_diffuse"),
 								   textures.get("stand_specular"),
@@ -258,23 +432,25 @@ public class Spacecraft_GLEventListener implements GLEventListener {
 								   textures.get("earth")};
 		globe = new Globe(gl, camera, lights, globeTextures);
 
-		Texture[] robot1Textures = {textures.get("robot1_base"),
-									textures.get("robot1_body1"),
-									textures.get("robot1_body2"),
-									textures.get("robot1_body3"),
-									textures.get("robot1_arm"),
-									textures.get("robot1_head"),
-								    textures.get("robot1_eye"),
-									textures.get("robot1_appendage")};
-		robot1 = new Robot1(gl, camera, lights, robot1Textures);
-
-		Texture[] robot2Textures = {textures.get("robot2_body"),
-									textures.get("robot2_eye"),
-									textures.get("robot2_antenna"),
-									textures.get("robot2_casing")};
-		robot2 = new Robot2(gl, camera, lights, robot2Textures);
+		int[] robot1Layers = textures.getLayers("robot1_base", "robot1_body1", "robot1_body2",
+		                                        "robot1_body3", "robot1_arm", "robot1_head",
+		                                        "robot1_eye", "robot1_appendage");
+		robot1 = new Robot1(gl, camera, lights, materials, robot1Layers);
+
+		int[] robot2Layers = textures.getLayers("robot2_body", "robot2_eye", "robot2_antenna",
+		                                        "robot2_casing");
+		robot2 = new Robot2(gl, camera, lights, materials, robot2Layers);
+
+		room.addShadowCasters(shadowRenderer);
+		globe.addShadowCasters(shadowRenderer);
+		robot1.addShadowCasters(shadowRenderer);
+		robot2.addShadowCasters(shadowRenderer);
 
 		skybox = new Skybox(gl, camera, textures.get("skybox"), textures.get("skybox_moving"));
+
+		// Animation runs on its own thread at a fixed rate, independent of the frame rate
+		simulation = new Simulation(globe, robot1, robot2);
+		if (threadedSimulation) simulation.start();
 	}
 	
 	/**
@@ -284,26 +460,62 @@ public class Spacecraft_GLEventListener implements GLEventListener {
 	 */
 	public void render(GL3 gl) {
 		gl.glClear(GL.GL_COLOR_BUFFER_BIT | GL.GL_DEPTH_BUFFER_BIT);
+		textures.uploadCompleted(gl);
+		SGNode.resetRecomputedCount();
+		Frustum.resetCounts();
+		RenderState.resetCounters();
+		ShadowRenderer.resetCounts();
+		LodModelNode.resetCounts();
+
+		// Move everything to the latest simulated state
+		if (!threadedSimulation) simulation.catchUp();
+		simulation.apply();
 
-		lights[0].render(gl);
+		if (profilerLogPath != null) {
+			try {
+				profiler.setCsvLog(profilerLogPath);
+			}
+			catch (java.io.IOException e) {
+				System.err.println("Could not open profiler log: " + e.getMessage());
+			}
+			profilerLogPath = null;
+		}
+		profiler.beginFrame(gl);
+		profiler.begin(gl, PASS_ROOM);
 		room.render(gl);
+		profiler.end(gl, PASS_ROOM);
+		profiler.begin(gl, PASS_GLOBE);
 		globe.render(gl);
-		robot1.render(gl, robot2.getPosition());
+		profiler.end(gl, PASS_GLOBE);
+		profiler.begin(gl, PASS_ROBOT1);
+		robot1.render(gl);
+		profiler.end(gl, PASS_ROBOT1);
+		profiler.begin(gl, PASS_ROBOT2);
 		robot2.render(gl);
+		profiler.end(gl, PASS_ROBOT2);
+		/* The queued models cast the shadows, so the shadow maps are drawn once everything is
+		   queued, and the lights (with their shadow matrices) are written for the frame after */
+		profiler.begin(gl, PASS_SHADOWS);
+		shadowRenderer.update(gl);
+		profiler.end(gl, PASS_SHADOWS);
+		lightManager.update(gl, camera);
+		frameData.update(gl, camera, lightManager);
+		// Models are only queued above; they are sorted by state and drawn here
+		profiler.begin(gl, PASS_QUEUE);
+		if (deferredRenderer != null) deferredRenderer.beginGeometry(gl);
+		RenderQueue.flush(gl, camera.getPosition());
+		profiler.end(gl, PASS_QUEUE);
+		// With forward shading the models were already lit as they were drawn
+		profiler.begin(gl, PASS_LIGHTING);
+		if (deferredRenderer != null) deferredRenderer.light(gl, lightManager);
+		profiler.end(gl, PASS_LIGHTING);
+		// The markers are drawn after the lighting, which (with deferred shading) overwrites the
+		// window's colour and depth
+		profiler.begin(gl, PASS_LIGHTS);
+		lightManager.render(gl);
+		profiler.end(gl, PASS_LIGHTS);
+		profiler.begin(gl, PASS_SKYBOX);
 		skybox.render(gl);
-	}
-
-	// ***************************************************
-	/* TIME */ 
-	
-	private double startTime;
-	
-	/**
-	 * Get the current time in seconds.
-	 * 
-	 * @return The current time in seconds in a double format.
-	 */
-	private double getSeconds() {
-		return System.currentTimeMillis()/1000.0;
+		profiler.end(gl, PASS_SKYBOX);
 	}
 }
\ No newline at end of file
@@ -7,6 +7,10 @@
  * 
  * Changes made:
  * - createVerticesPosOnly(): generate array of vertices with only position (for the spotlight)
+ * - createVertices(), createIndices(): package-private so they can be timed by the benchmarks (see build.gradle)
+ * - createVertices(), createIndices(): take the number of segments around and from pole to pole,
+ *   and getVertices()/getIndices() generate and cache a coarser sphere for each level of detail
+ *   (drawn by LodModelNode)
  */
 public final class Sphere {  
     // ***************************************************
@@ -14,35 +18,83 @@ public final class Sphere {
     // anticlockwise/counterclockwise ordering
     private static final int XLONG = 30;
     private static final int YLAT = 30;
+    // Vertices around and from pole to pole for each level of detail (level 0 is the full sphere)
+    private static final int[] LOD_XLONG = {XLONG, 20, 12, 8};
+    private static final int[] LOD_YLAT = {YLAT, 16, 10, 7};
+    public static final int LOD_LEVELS = LOD_XLONG.length;
     
     public static final float[] vertices = createVertices();
     public static final int[] indices = createIndices();
 
+    // Generated levels of detail (level 0 is vertices/indices)
+    private static final float[][] lodVertices = new float[LOD_LEVELS][];
+    private static final int[][] lodIndices = new int[LOD_LEVELS][];
+
+	/**
+	 * Get the vertices of the sphere at a level of detail, generating them the first time the
+	 * level is used.
+	 * 
+	 * @param level The level of detail (0 is the most detailed, up to LOD_LEVELS-1).
+	 * @return An array of vertices (shared, so must not be changed).
+	 */
+    public static synchronized float[] getVertices(int level) {
+		if (level == 0) return vertices;
+		if (lodVertices[level] == null)
+			lodVertices[level] = createVertices(LOD_XLONG[level], LOD_YLAT[level]);
+		return lodVertices[level];
+    }
+
+	/**
+	 * Get the indices of the sphere at a level of detail, generating them the first time the
+	 * level is used.
+	 * 
+	 * @param level The level of detail (0 is the most detailed, up to LOD_LEVELS-1).
+	 * @return An array of indices (shared, so must not be changed).
+	 */
+    public static synchronized int[] getIndices(int level) {
+		if (level == 0) return indices;
+		if (lodIndices[level] == null)
+			lodIndices[level] = createIndices(LOD_XLONG[level], LOD_YLAT[level]);
+		return lodIndices[level];
+    }
+
 	/**
 	 * Generate the vertices of the sphere (position, normals and texture).
 	 * 
 	 * @return An array of vertices.
 	 */
-    private static float[] createVertices() {
+    static float[] createVertices() {
+		return createVertices(XLONG, YLAT);
+    }
+
+	/**
+	 * Generate the vertices of a sphere with a given number of vertices around each ring and
+	 * rings from pole to pole (position, normals and texture).
+	 * 
+	 * @param xlong The number of vertices around each ring (the first and last overlap).
+	 * @param ylat The number of rings from pole to pole.
+	 * @return An array of vertices.
+	 */
+    static float[] createVertices(int xlong, int ylat) {
 		double r = 0.5;
 		int step = 8;
-		float[] vertices = new float[XLONG*YLAT*step];
-		for (int j = 0; j<YLAT; ++j) {
-			double b = Math.toRadians(-90+180*(double)(j)/(YLAT-1));
-			for (int i = 0; i<XLONG; ++i) {
-				double a = Math.toRadians(360*(double)(i)/(XLONG-1));
+		float[] vertices = new float[xlong*ylat*step];
+		for (int j = 0; j<ylat; ++j) {
+			double b = Math.toRadians(-90+180*(double)(j)/(ylat-1));
+			for (int i = 0; i<xlong; ++i) {
+				double a = Math.toRadians(360*(double)(i)/(xlong-1));
 				double z = Math.cos(b) * Math.cos(a);
 				double x = Math.cos(b) * Math.sin(a);
 				double y = Math.sin(b);
-				int base = j*XLONG*step;
+				int base = j*xlong*step;
 				vertices[base + i*step+0] = (float)(r*x);
 				vertices[base + i*step+1] = (float)(r*y);
 				vertices[base + i*step+2] = (float)(r*z); 
 				vertices[base + i*step+3] = (float)x;
 				vertices[base + i*step+4] = (float)y;
 				vertices[base + i*step+5] = (float)z;
-				vertices[base + i*step+6] = (float)(i)/(float)(XLONG-1);
-				vertices[base + i*step+7] = (float)(j)/(float)(YLAT-1);
+				vertices[base + i*step+6] = (float)(i)/(float)(xlong-1);
+				vertices[base + i*step+7] = (float)(j)/(float)(ylat-1);
 			}
 		}
 		return vertices;
@@ -53,17 +105,28 @@ public final class Sphere {
 	 * 
 	 * @return An array of indices.
 	 */
-    private static int[] createIndices() {
-		int[] indices = new int[(XLONG-1)*(YLAT-1)*6];
-		for (int j = 0; j<YLAT-1; ++j) {
-			for (int i = 0; i<XLONG-1; ++i) {
-				int base = j*(XLONG-1)*6;
-				indices[base + i*6+0] = j*XLONG+i;
-				indices[base + i*6+1] = j*XLONG+i+1;
-				indices[base + i*6+2] = (j+1)*XLONG+i+1;
-				indices[base + i*6+3] = j*XLONG+i;
-				indices[base + i*6+4] = (j+1)*XLONG+i+1;
-				indices[base + i*6+5] = (j+1)*XLONG+i;
+    static int[] createIndices() {
+		return createIndices(XLONG, YLAT);
+    }
+
+	/**
+	 * Generate the indices of a sphere made by createVertices(xlong, ylat).
+	 * 
+	 * @param xlong The number of vertices around each ring.
+	 * @param ylat The number of rings from pole to pole.
+	 * @return An array of indices.
+	 */
+    static int[] createIndices(int xlong, int ylat) {
+		int[] indices = new int[(xlong-1)*(ylat-1)*6];
+		for (int j = 0; j<ylat-1; ++j) {
+			for (int i = 0; i<xlong-1; ++i) {
+				int base = j*(xlong-1)*6;
+				indices[base + i*6+0] = j*xlong+i;
+				indices[base + i*6+1] = j*xlong+i+1;
+				indices[base + i*6+2] = (j+1)*xlong+i+1;
+				indices[base + i*6+3] = j*xlong+i;
+				indices[base + i*6+4] = (j+1)*xlong+i+1;
+				indices[base + i*6+5] = (j+1)*xlong+i;
 			}
 		}
 		return indices;
@@ -0,0 +1,364 @@
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import javax.imageio.ImageIO;
+import com.jogamp.opengl.*;
+
+/**
+ * Class for a directory of textures that have already been decoded and mip-mapped, so that later
+ * launches can upload them straight from disk without decoding any image files or generating
+ * mipmaps on the GPU.
+ *
+ * Each cached texture is one file named after a hash of its source file's path, and a hash of
+ * the source's size and modification time (plus whether it has mipmaps). A changed source file
+ * therefore has a different name, so it misses the cache; it is decoded as normal and the new
+ * cache file is written in the background (replacing the stale one). Images resized to fit a
+ * texture array are cached separately from the full-size image, with the size added to the path.
+ *
+ * File format (big-endian): magic, version, level count, then for each level its width, height
+ * and byte length followed by its RGBA8 pixels (rows bottom to top, the order OpenGL expects and
+ * the one JOGL's image loaders produce).
+ */
+public class TextureCache {
+	public static final String DEFAULT_DIRECTORY = ".texture_cache";
+	private static final int MAGIC = 0x53435458;   // "SCTX"
+	private static final int VERSION = 2;
+	private static final String EXTENSION = ".tex";
+
+	private final File directory;
+	private volatile int hits = 0;
+	private volatile int misses = 0;
+
+	/**
+	 * Constructor. Use a directory for the cache (created when the first file is written).
+	 *
+	 * @param directory The path of the cache directory.
+	 */
+	public TextureCache(String directory) {
+		this.directory = new File(directory);
+	}
+
+	/**
+	 * Load an image file as a chain of RGBA levels, from the cache if there is an up-to-date copy
+	 * there (memory-mapped, without decoding), otherwise by decoding the file, in which case the
+	 * result is written to the cache in the background. Safe to call from any thread.
+	 *
+	 * @param filename The file name (or path) of the image.
+	 * @param mipmaps True to include every mipmap level, false for only the full-size image.
+	 * @return The loaded levels.
+	 * @throws IOException If the image cannot be read.
+	 */
+	public Image load(String filename, boolean mipmaps) throws IOException {
+		return load(filename, mipmaps, 0, 0);
+	}
+
+	/**
+	 * Load an image file as a chain of RGBA levels (as load(filename, mipmaps) does), resized to
+	 * a given size first if it is not already that size (e.g. to fit the layers of a texture
+	 * array).
+	 *
+	 * @param filename The file name (or path) of the image.
+	 * @param mipmaps True to include every mipmap level, false for only the full-size image.
+	 * @param width The width to resize the image to (0 to keep the image's own size).
+	 * @param height The height to resize the image to (0 to keep the image's own size).
+	 * @return The loaded levels.
+	 * @throws IOException If the image cannot be read.
+	 */
+	public Image load(String filename, boolean mipmaps, int width, int height) throws IOException {
+		File source = new File(filename);
+		String path = source.getCanonicalPath();
+		// A resized copy is a different entry, so it does not replace the full-size one
+		if (width > 0) path += "@" + width + "x" + height;
+		String prefix = Fnv1aHash.toFileName(path) + "-";
+		File cached = new File(directory, prefix
+			+ Fnv1aHash.toFileName(source.length() + ":" + source.lastModified() + ":" + mipmaps) + EXTENSION);
+		if (cached.isFile()) {
+			try {
+				Image image = read(cached);
+				hits++;
+				return image;
+			}
+			catch (IOException e) {
+				// Damaged or from another version: rebuilt below
+			}
+		}
+		misses++;
+		Image image = decode(source, mipmaps, width, height);
+		CompletableFuture.runAsync(() -> write(image, cached, prefix), ForkJoinPool.commonPool());
+		return image;
+	}
+
+	/**
+	 * Get the number of loads served from the cache.
+	 *
+	 * @return The number of cache hits.
+	 */
+	public int getHits() {
+		return hits;
+	}
+
+	/**
+	 * Get the number of loads that had to decode the image file.
+	 *
+	 * @return The number of cache misses.
+	 */
+	public int getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Decode an image file into RGBA8 pixels with the bottom row first (resizing it with
+	 * bilinear filtering if asked to) and, if wanted, build its mipmap chain with a 2x2 box filter.
+	 *
+	 * @param source The image file.
+	 * @param mipmaps True to build every mipmap level.
+	 * @param resizeWidth The width to resize the image to (0 to keep the image's own size).
+	 * @param resizeHeight The height to resize the image to (0 to keep the image's own size).
+	 * @return The decoded levels.
+	 * @throws IOException If the image cannot be read.
+	 */
+	private static Image decode(File source, boolean mipmaps, int resizeWidth, int resizeHeight)
+			throws IOException {
+		BufferedImage picture = ImageIO.read(source);
+		if (picture == null) throw new IOException("Unsupported image " + source);
+		if (resizeWidth > 0
+		    && (picture.getWidth() != resizeWidth || picture.getHeight() != resizeHeight)) {
+			BufferedImage resized = new BufferedImage(resizeWidth, resizeHeight,
+			                                          BufferedImage.TYPE_INT_ARGB);
+			Graphics2D g = resized.createGraphics();
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+			                   RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.drawImage(picture, 0, 0, resizeWidth, resizeHeight, null);
+			g.dispose();
+			picture = resized;
+		}
+		int width = picture.getWidth(), height = picture.getHeight();
+		int levels = 1;
+		if (mipmaps) {
+			for (int size = Math.max(width, height); size > 1; size /= 2) {
+				levels++;
+			}
+		}
+		Image image = new Image(levels);
+
+		int[] argb = picture.getRGB(0, 0, width, height, null, 0, width);
+		ByteBuffer level = ByteBuffer.allocateDirect(width*height*4);
+		// ImageIO gives the top row first, but OpenGL takes the bottom row first
+		for (int y=height-1; y>=0; y--) {
+			for (int x=0; x<width; x++) {
+				int p = argb[y*width+x];
+				level.put((byte)(p >> 16)).put((byte)(p >> 8)).put((byte)p).put((byte)(p >>> 24));
+			}
+		}
+		level.flip();
+		image.setLevel(0, width, height, level);
+
+		for (int i=1; i<levels; i++) {
+			ByteBuffer src = image.levels[i-1];
+			int sw = image.widths[i-1], sh = image.heights[i-1];
+			int w = Math.max(1, sw/2), h = Math.max(1, sh/2);
+			ByteBuffer dst = ByteBuffer.allocateDirect(w*h*4);
+			for (int y=0; y<h; y++) {
+				int y0 = Math.min(y*2, sh-1), y1 = Math.min(y*2+1, sh-1);
+				for (int x=0; x<w; x++) {
+					int x0 = Math.min(x*2, sw-1), x1 = Math.min(x*2+1, sw-1);
+					for (int c=0; c<4; c++) {
+						int sum = (src.get((y0*sw+x0)*4+c) & 0xff) + (src.get((y0*sw+x1)*4+c) & 0xff)
+						        + (src.get((y1*sw+x0)*4+c) & 0xff) + (src.get((y1*sw+x1)*4+c) & 0xff);
+						dst.put((byte)((sum+2) >> 2));
+					}
+				}
+			}
+			dst.flip();
+			image.setLevel(i, w, h, dst);
+		}
+		return image;
+	}
+
+	/**
+	 * Read a cache file by memory-mapping it (the levels point straight into the mapping).
+	 *
+	 * @param file The cache file.
+	 * @return The levels stored in the file.
+	 * @throws IOException If the file cannot be read or is not a valid cache file.
+	 */
+	private static Image read(File file) throws IOException {
+		MappedByteBuffer map;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			// The mapping stays valid after the channel is closed
+			map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		map.order(ByteOrder.BIG_ENDIAN);
+		try {
+			if (map.getInt() != MAGIC || map.getInt() != VERSION) {
+				throw new IOException("Not a texture cache file: " + file);
+			}
+			int levels = map.getInt();
+			Image image = new Image(levels);
+			for (int i=0; i<levels; i++) {
+				int w = map.getInt(), h = map.getInt(), length = map.getInt();
+				if (length != w*h*4) throw new IOException("Bad level size in " + file);
+				ByteBuffer level = map.slice();
+				level.limit(length);
+				map.position(map.position() + length);
+				image.setLevel(i, w, h, level);
+			}
+			return image;
+		}
+		catch (RuntimeException e) {
+			// e.g. a truncated file
+			throw new IOException("Bad texture cache file: " + file, e);
+		}
+	}
+
+	/**
+	 * Write a cache file (to a temporary file first, so a half-written file is never read), then
+	 * remove any stale cache files for the same source.
+	 *
+	 * @param image The levels to write.
+	 * @param file The cache file.
+	 * @param prefix The start of the name shared by every cache file for the same source.
+	 */
+	private void write(Image image, File file, String prefix) {
+		try {
+			Files.createDirectories(directory.toPath());
+			File temp = File.createTempFile(prefix, ".tmp", directory);
+			try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+				ByteBuffer header = ByteBuffer.allocate(12 + image.levels.length*12);
+				header.putInt(MAGIC).putInt(VERSION).putInt(image.levels.length);
+				header.flip();
+				writeFully(channel, header);
+				for (int i=0; i<image.levels.length; i++) {
+					ByteBuffer levelHeader = ByteBuffer.allocate(12);
+					levelHeader.putInt(image.widths[i]).putInt(image.heights[i])
+					           .putInt(image.levels[i].remaining());
+					levelHeader.flip();
+					writeFully(channel, levelHeader);
+					writeFully(channel, image.levels[i].duplicate());
+				}
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+			           StandardCopyOption.ATOMIC_MOVE);
+
+			File[] stale = directory.listFiles((dir, name) -> name.startsWith(prefix)
+				&& name.endsWith(EXTENSION) && !name.equals(file.getName()));
+			if (stale != null) {
+				for (File f : stale) {
+					f.delete();
+				}
+			}
+		}
+		catch (IOException e) {
+			System.out.println("Could not write texture cache file " + file + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Write the whole of a buffer to a channel.
+	 *
+	 * @param channel The channel to write to.
+	 * @param buffer The data to write.
+	 * @throws IOException If the write fails.
+	 */
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Class for the RGBA8 pixels of every level of a texture.
+	 */
+	public static final class Image {
+		private final ByteBuffer[] levels;
+		private final int[] widths, heights;
+
+		private Image(int levelCount) {
+			levels = new ByteBuffer[levelCount];
+			widths = new int[levelCount];
+			heights = new int[levelCount];
+		}
+
+		private void setLevel(int i, int width, int height, ByteBuffer pixels) {
+			widths[i] = width;
+			heights[i] = height;
+			levels[i] = pixels;
+		}
+
+		/**
+		 * Get the number of levels (1 if there are no mipmaps).
+		 *
+		 * @return The number of levels.
+		 */
+		public int getLevelCount() {
+			return levels.length;
+		}
+
+		/**
+		 * Get the width of the full-size level.
+		 *
+		 * @return The width in pixels.
+		 */
+		public int getWidth() {
+			return widths[0];
+		}
+
+		/**
+		 * Get the height of the full-size level.
+		 *
+		 * @return The height in pixels.
+		 */
+		public int getHeight() {
+			return heights[0];
+		}
+
+		/**
+		 * Upload every level with glTexImage2D (the texture must be bound).
+		 *
+		 * @param gl The OpenGL context used for rendering.
+		 * @param target The image target (e.g. GL_TEXTURE_2D or a cube map face).
+		 */
+		public void upload(GL3 gl, int target) {
+			for (int i=0; i<levels.length; i++) {
+				gl.glTexImage2D(target, i, GL.GL_RGBA8, widths[i], heights[i], 0, GL.GL_RGBA,
+				                GL.GL_UNSIGNED_BYTE, levels[i].duplicate());
+			}
+		}
+
+		/**
+		 * Allocate every level of a bound GL_TEXTURE_2D_ARRAY with this image's level sizes,
+		 * without filling any layers.
+		 *
+		 * @param gl The OpenGL context used for rendering.
+		 * @param layers The number of layers in the array.
+		 */
+		public void allocateArray(GL3 gl, int layers) {
+			for (int i=0; i<levels.length; i++) {
+				gl.glTexImage3D(GL3.GL_TEXTURE_2D_ARRAY, i, GL.GL_RGBA8, widths[i], heights[i], layers,
+				                0, GL.GL_RGBA, GL.GL_UNSIGNED_BYTE, null);
+			}
+		}
+
+		/**
+		 * Upload every level into one layer of a bound GL_TEXTURE_2D_ARRAY with glTexSubImage3D
+		 * (the array must have been allocated with the same level sizes).
+		 *
+		 * @param gl The OpenGL context used for rendering.
+		 * @param layer The index of the layer.
+		 */
+		public void uploadLayer(GL3 gl, int layer) {
+			for (int i=0; i<levels.length; i++) {
+				gl.glTexSubImage3D(GL3.GL_TEXTURE_2D_ARRAY, i, 0, 0, layer, widths[i], heights[i], 1,
+				                   GL.GL_RGBA, GL.GL_UNSIGNED_BYTE, levels[i].duplicate());
+			}
+		}
+	}
+}
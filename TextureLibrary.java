@@ -1,7 +1,11 @@
-import java.io.File;
 import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
 
 import com.jogamp.opengl.*;
 
@@ -16,10 +20,27 @@ import com.jogamp.opengl.util.texture.*;
  * Email address: ebarker5@sheffield.ac.uk
  * 
  * Changes made:
- * - loadCubemap(): load a cubemap texture from an array of 2D textures (for the skybox)
+ * - addCubemap(): load a cubemap texture from an array of 2D textures (for the skybox)
+ * - add(), addCubemap(): image files are decoded in parallel on worker threads instead of on the
+ *   GL thread. Each texture is created straight away holding a 1x1 placeholder (so it can be used
+ *   by models immediately), and the decoded images are uploaded into it by uploadCompleted() on
+ *   the GL thread once they are ready
+ * - Decoded and mip-mapped images are kept in a TextureCache on disk, so later launches upload
+ *   them straight from the cache (no decoding and no glGenerateMipmap)
  */
 public class TextureLibrary {	
+	// Colour of the placeholder shown until a texture's image has been decoded (mid grey)
+	private static final byte PLACEHOLDER_VALUE = (byte)128;
+
+	// Name to #define when compiling the standard shaders for textures packed with addArray
+	public static final String ARRAY_DEFINE = "TEXTURE_ARRAY";
+
 	private Map<String,Texture> textures;
+	// Layer of each texture packed into a texture array
+	private Map<String,Integer> layers;
+	private TextureCache cache;
+	// Textures whose images are still being decoded (or are decoded but not yet uploaded)
+	private ArrayList<PendingTexture> pending;
 
 	/**
 	 * Constructor. Initialises the hash map used to store texture information alongside an 
@@ -27,30 +48,74 @@ public class TextureLibrary {
 	 */
 	public TextureLibrary() {
 		textures = new HashMap<String, Texture>();
+		layers = new HashMap<String, Integer>();
+		pending = new ArrayList<PendingTexture>();
+		cache = new TextureCache(TextureCache.DEFAULT_DIRECTORY);
 	}
 
 	/**
-	 * Add a new texture to the texture hash map based on a file path.
+	 * Add a new texture to the texture hash map based on a file path. The file is decoded on a
+	 * worker thread; until uploadCompleted() uploads it, the texture holds a placeholder.
 	 * 
 	 * @param gl The OpenGL context used for rendering.
 	 * @param name The name used to refer to the texture.
 	 * @param filename The file name (or path) of the texture in the user's system.
 	 */
 	public void add(GL3 gl, String name, String filename) {
-		Texture texture = loadTexture(gl, filename);
+		Texture texture = new Texture(GL3.GL_TEXTURE_2D);
+		uploadPlaceholder(gl, texture, 1);
 		textures.put(name, texture);
+		pending.add(new PendingTexture(texture, new String[] {filename},
+		                               List.of(decode(filename, true, 0, 0))));
 	}
 
 	/**
-	 * Add a new cube map texture to the texture hash map based on file paths.
+	 * Add a new cube map texture to the texture hash map based on file paths. The faces are
+	 * decoded on worker threads; until uploadCompleted() uploads them, the texture holds a
+	 * placeholder.
 	 * 
 	 * @param gl The OpenGL context used for rendering.
 	 * @param name The name used to refer to the texture.
 	 * @param filenames The selection of file names (or paths) of textures in the user's system.
 	 */
 	public void addCubemap(GL3 gl, String name, String[] filenames) {
-		Texture cubemap = loadCubemap(gl, filenames);
+		Texture cubemap = new Texture(GL3.GL_TEXTURE_CUBE_MAP);
+		uploadPlaceholder(gl, cubemap, 1);
 		textures.put(name, cubemap);
+		List<CompletableFuture<TextureCache.Image>> faces =
+			new ArrayList<CompletableFuture<TextureCache.Image>>(filenames.length);
+		for (int i=0; i<filenames.length; i++) {
+			faces.add(decode(filenames[i], false, 0, 0));
+		}
+		pending.add(new PendingTexture(cubemap, filenames, faces));
+	}
+
+	/**
+	 * Add a texture array to the texture hash map, with one layer for each of a selection of image
+	 * files. Every image is resized to the same size (if it is not already that size), so
+	 * textures of any size can be packed together; each still repeats across its own layer. The
+	 * images are decoded on worker threads; until uploadCompleted() uploads them, every layer
+	 * holds a placeholder.
+	 * 
+	 * @param gl The OpenGL context used for rendering.
+	 * @param name The name used to refer to the texture array.
+	 * @param width The width of every layer.
+	 * @param height The height of every layer.
+	 * @param layerNames The names used to refer to each layer (see getLayer).
+	 * @param filenames The file names (or paths) of the image for each layer.
+	 */
+	public void addArray(GL3 gl, String name, int width, int height, String[] layerNames,
+	                     String[] filenames) {
+		Texture array = new Texture(GL3.GL_TEXTURE_2D_ARRAY);
+		uploadPlaceholder(gl, array, filenames.length);
+		textures.put(name, array);
+		List<CompletableFuture<TextureCache.Image>> images =
+			new ArrayList<CompletableFuture<TextureCache.Image>>(filenames.length);
+		for (int i=0; i<filenames.length; i++) {
+			layers.put(layerNames[i], i);
+			images.add(decode(filenames[i], true, width, height));
+		}
+		pending.add(new PendingTexture(array, filenames, images));
 	}
 
 	/**
@@ -64,70 +129,192 @@ public class TextureLibrary {
 	}
 
 	/**
-	 * Create a new 2D texture from loading a file, and set its properties to allow for 
-	 * mip-mapping.
+	 * Get the layer of a texture packed into a texture array with addArray.
 	 * 
-	 * @param gl The OpenGL context used for rendering.
-	 * @param filename The file name (or path) of the texture in the user's system.
-	 * @return The texture that has been loaded.
-	 */
-	public static Texture loadTexture(GL3 gl3, String filename) {
-		Texture t = null; 
-		try {
-			File f = new File(filename);
-			t = (Texture)TextureIO.newTexture(f, true);
-			t.bind(gl3);
-			t.setTexParameteri(gl3, GL3.GL_TEXTURE_WRAP_S, GL3.GL_REPEAT);
-			t.setTexParameteri(gl3, GL3.GL_TEXTURE_WRAP_T, GL3.GL_REPEAT); 
-			t.setTexParameteri(gl3, GL3.GL_TEXTURE_MIN_FILTER, GL3.GL_LINEAR_MIPMAP_LINEAR);
-			t.setTexParameteri(gl3, GL3.GL_TEXTURE_MAG_FILTER, GL3.GL_LINEAR);
-			gl3.glGenerateMipmap(GL3.GL_TEXTURE_2D);
+	 * @param name The name of the layer.
+	 * @return The index of the layer in its texture array.
+	 */
+	public int getLayer(String name) {
+		Integer layer = layers.get(name);
+		if (layer == null) throw new IllegalArgumentException("No texture array layer named " + name);
+		return layer;
+	}
+
+	/**
+	 * Get the layers of several textures packed into texture arrays with addArray.
+	 * 
+	 * @param names The names of the layers.
+	 * @return The index of each layer in its texture array.
+	 */
+	public int[] getLayers(String... names) {
+		int[] result = new int[names.length];
+		for (int i=0; i<names.length; i++) {
+			result[i] = getLayer(names[i]);
 		}
-		catch(Exception e) {
-			System.out.println("Error loading texture " + filename); 
+		return result;
+	}
+
+	/**
+	 * Upload every texture whose image has finished decoding, replacing its placeholder. Must be
+	 * called on the GL thread (e.g. at the start of each frame); does not wait for decoding.
+	 * 
+	 * @param gl The OpenGL context used for rendering.
+	 */
+	public void uploadCompleted(GL3 gl) {
+		if (pending.isEmpty()) return;
+		boolean uploaded = false;
+		for (int i=pending.size()-1; i>=0; i--) {
+			PendingTexture p = pending.get(i);
+			if (p.isDone()) {
+				p.upload(gl);
+				pending.remove(i);
+				uploaded = true;
+			}
 		}
-		return t;
+		// Uploading binds textures behind the render state's back
+		if (uploaded) RenderState.invalidate();
 	}
 
 	/**
-	 * Create a cube map texture from loading a selection of 6 images that each represent a 
-	 * different face of the cube.
+	 * Wait for every texture to finish decoding and upload them all. Must be called on the GL
+	 * thread.
 	 * 
 	 * @param gl The OpenGL context used for rendering.
-	 * @param filenames The file names (or paths) of the individual face textures.
-	 * @return The cube map texture that has been loaded.
-	 */
-	public static Texture loadCubemap(GL3 gl3, String[] filenames) {
-		Texture t = null;
-		try {
-			t = (Texture)TextureIO.newTexture(GL3.GL_TEXTURE_CUBE_MAP);
-			t.bind(gl3);
-
-			// Assigning texture to each face of the cube map
-			for (int i=0; i<filenames.length; i++) {
-				File f = new File(filenames[i]);
-				TextureData faceData = TextureIO.newTextureData(gl3.getGLProfile(), f, true, null);
-				gl3.glTexImage2D(GL3.GL_TEXTURE_CUBE_MAP_POSITIVE_X + i,
-								 0,
-								 faceData.getInternalFormat(),
-								 faceData.getWidth(),
-								 faceData.getHeight(),
-								 0,
-								 faceData.getPixelFormat(),
-								 faceData.getPixelType(),
-								 faceData.getBuffer());
+	 */
+	public void finishLoading(GL3 gl) {
+		for (PendingTexture p : pending) {
+			p.upload(gl);
+		}
+		pending.clear();
+		RenderState.invalidate();
+	}
+
+	/**
+	 * Return whether any texture is still showing its placeholder.
+	 * 
+	 * @return True if some textures have not been uploaded yet.
+	 */
+	public boolean isLoading() {
+		return !pending.isEmpty();
+	}
+
+	/**
+	 * Start loading an image file on a worker thread (from the texture cache if possible).
+	 * 
+	 * @param filename The file name (or path) of the image.
+	 * @param mipmaps True to load every mipmap level.
+	 * @param width The width to resize the image to (0 to keep the image's own size).
+	 * @param height The height to resize the image to (0 to keep the image's own size).
+	 * @return The image levels, once loaded.
+	 */
+	private CompletableFuture<TextureCache.Image> decode(String filename, boolean mipmaps,
+	                                                     int width, int height) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return cache.load(filename, mipmaps, width, height);
+			}
+			catch (Exception e) {
+				throw new RuntimeException(e);
 			}
+		}, ForkJoinPool.commonPool());
+	}
 
-			t.setTexParameteri(gl3, GL3.GL_TEXTURE_WRAP_S, GL3.GL_CLAMP_TO_EDGE);
-			t.setTexParameteri(gl3, GL3.GL_TEXTURE_WRAP_T, GL3.GL_CLAMP_TO_EDGE);
-			t.setTexParameteri(gl3, GL3.GL_TEXTURE_WRAP_R, GL3.GL_CLAMP_TO_EDGE);
+	/**
+	 * Fill a texture with a single placeholder pixel (on every face for a cube map, and every
+	 * layer for a texture array).
+	 * 
+	 * @param gl The OpenGL context used for rendering.
+	 * @param t The texture to fill.
+	 * @param layerCount The number of layers (1 unless t is a texture array).
+	 */
+	private static void uploadPlaceholder(GL3 gl3, Texture t, int layerCount) {
+		ByteBuffer pixel = ByteBuffer.allocateDirect(4*layerCount);
+		for (int i=0; i<layerCount; i++) {
+			pixel.put(PLACEHOLDER_VALUE).put(PLACEHOLDER_VALUE).put(PLACEHOLDER_VALUE).put((byte)255);
+		}
+		pixel.flip();
+		t.bind(gl3);
+		if (t.getTarget() == GL3.GL_TEXTURE_2D_ARRAY) {
+			gl3.glTexImage3D(GL3.GL_TEXTURE_2D_ARRAY, 0, GL3.GL_RGBA8, 1, 1, layerCount, 0,
+			                 GL3.GL_RGBA, GL3.GL_UNSIGNED_BYTE, pixel);
+			t.setTexParameteri(gl3, GL3.GL_TEXTURE_MAX_LEVEL, 0);
+			t.setTexParameteri(gl3, GL3.GL_TEXTURE_WRAP_S, GL3.GL_REPEAT);
+			t.setTexParameteri(gl3, GL3.GL_TEXTURE_WRAP_T, GL3.GL_REPEAT);
 			t.setTexParameteri(gl3, GL3.GL_TEXTURE_MIN_FILTER, GL3.GL_LINEAR);
 			t.setTexParameteri(gl3, GL3.GL_TEXTURE_MAG_FILTER, GL3.GL_LINEAR);
 		}
-		catch(Exception e) {
-			System.out.println("Error loading textures for cubemap"); 
+		else if (t.getTarget() == GL3.GL_TEXTURE_CUBE_MAP) {
+			for (int i=0; i<6; i++) {
+				gl3.glTexImage2D(GL3.GL_TEXTURE_CUBE_MAP_POSITIVE_X + i, 0, GL3.GL_RGBA, 1, 1, 0,
+				                 GL3.GL_RGBA, GL3.GL_UNSIGNED_BYTE, pixel);
+			}
+			setCubemapParameters(gl3, t);
 		}
-		return t;
+		else {
+			TextureData data = new TextureData(gl3.getGLProfile(), GL3.GL_RGBA, 1, 1, 0, GL3.GL_RGBA,
+			                                   GL3.GL_UNSIGNED_BYTE, false, false, false, pixel, null);
+			t.updateImage(gl3, data);
+			t.setTexParameteri(gl3, GL3.GL_TEXTURE_WRAP_S, GL3.GL_REPEAT);
+			t.setTexParameteri(gl3, GL3.GL_TEXTURE_WRAP_T, GL3.GL_REPEAT);
+			t.setTexParameteri(gl3, GL3.GL_TEXTURE_MIN_FILTER, GL3.GL_LINEAR);
+			t.setTexParameteri(gl3, GL3.GL_TEXTURE_MAG_FILTER, GL3.GL_LINEAR);
+		}
+	}
+
+	/**
+	 * Upload the levels of a loaded image into a 2D texture and set its properties to allow for
+	 * mip-mapping (the mipmaps are already in the image, so none are generated).
+	 * 
+	 * @param gl The OpenGL context used for rendering.
+	 * @param t The texture to upload into.
+	 * @param image The loaded image levels.
+	 */
+	private static void uploadTexture(GL3 gl3, Texture t, TextureCache.Image image) {
+		t.bind(gl3);
+		image.upload(gl3, GL3.GL_TEXTURE_2D);
+		t.setTexParameteri(gl3, GL3.GL_TEXTURE_MAX_LEVEL, image.getLevelCount()-1);
+		t.setTexParameteri(gl3, GL3.GL_TEXTURE_WRAP_S, GL3.GL_REPEAT);
+		t.setTexParameteri(gl3, GL3.GL_TEXTURE_WRAP_T, GL3.GL_REPEAT); 
+		t.setTexParameteri(gl3, GL3.GL_TEXTURE_MIN_FILTER, GL3.GL_LINEAR_MIPMAP_LINEAR);
+		t.setTexParameteri(gl3, GL3.GL_TEXTURE_MAG_FILTER, GL3.GL_LINEAR);
+	}
+
+	/**
+	 * Upload the levels of loaded images into the layers of a texture array and set its
+	 * properties to allow for mip-mapping. Every image must have the same size.
+	 * 
+	 * @param gl The OpenGL context used for rendering.
+	 * @param t The texture array to upload into.
+	 * @param images The loaded image levels of each layer.
+	 */
+	private static void uploadArray(GL3 gl3, Texture t, TextureCache.Image[] images) {
+		for (TextureCache.Image image : images) {
+			if (image.getWidth() != images[0].getWidth() || image.getHeight() != images[0].getHeight()
+			    || image.getLevelCount() != images[0].getLevelCount()) {
+				throw new IllegalArgumentException("Texture array layers differ in size");
+			}
+		}
+		t.bind(gl3);
+		images[0].allocateArray(gl3, images.length);
+		for (int i=0; i<images.length; i++) {
+			images[i].uploadLayer(gl3, i);
+		}
+		t.setTexParameteri(gl3, GL3.GL_TEXTURE_MAX_LEVEL, images[0].getLevelCount()-1);
+		t.setTexParameteri(gl3, GL3.GL_TEXTURE_MIN_FILTER, GL3.GL_LINEAR_MIPMAP_LINEAR);
+	}
+
+	/**
+	 * Set the wrapping and filtering properties of a cube map (the cube map must be bound).
+	 * 
+	 * @param gl The OpenGL context used for rendering.
+	 * @param t The cube map texture.
+	 */
+	private static void setCubemapParameters(GL3 gl3, Texture t) {
+		t.setTexParameteri(gl3, GL3.GL_TEXTURE_WRAP_S, GL3.GL_CLAMP_TO_EDGE);
+		t.setTexParameteri(gl3, GL3.GL_TEXTURE_WRAP_T, GL3.GL_CLAMP_TO_EDGE);
+		t.setTexParameteri(gl3, GL3.GL_TEXTURE_WRAP_R, GL3.GL_CLAMP_TO_EDGE);
+		t.setTexParameteri(gl3, GL3.GL_TEXTURE_MIN_FILTER, GL3.GL_LINEAR);
+		t.setTexParameteri(gl3, GL3.GL_TEXTURE_MAG_FILTER, GL3.GL_LINEAR);
 	}
 
 	/**
@@ -140,4 +327,81 @@ public class TextureLibrary {
 			entry.getValue().destroy(gl3);
 		}
 	}
+
+	/**
+	 * Class for a texture whose image files are being decoded on worker threads.
+	 */
+	private static final class PendingTexture {
+		private final Texture texture;
+		private final String[] filenames;
+		private final List<CompletableFuture<TextureCache.Image>> images;
+
+		/**
+		 * Constructor. Record the texture and the images being decoded for it.
+		 * 
+		 * @param texture The texture to upload the images into.
+		 * @param filenames The file names of the images (used in error messages).
+		 * @param images The images being decoded, one for each face or layer of the texture.
+		 */
+		private PendingTexture(Texture texture, String[] filenames,
+		                       List<CompletableFuture<TextureCache.Image>> images) {
+			this.texture = texture;
+			this.filenames = filenames;
+			this.images = images;
+		}
+
+		/**
+		 * Return whether every image of the texture has finished decoding (or failed).
+		 * 
+		 * @return True if the texture can be uploaded without waiting.
+		 */
+		private boolean isDone() {
+			for (CompletableFuture<TextureCache.Image> image : images) {
+				if (!image.isDone()) return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Upload the decoded images into the texture, waiting for any still being decoded. If an
+		 * image fails to load, the texture keeps its placeholder.
+		 * 
+		 * @param gl The OpenGL context used for rendering.
+		 */
+		private void upload(GL3 gl3) {
+			try {
+				if (texture.getTarget() == GL3.GL_TEXTURE_2D_ARRAY) {
+					TextureCache.Image[] layers = new TextureCache.Image[images.size()];
+					for (int i=0; i<layers.length; i++) {
+						layers[i] = images.get(i).join();
+					}
+					uploadArray(gl3, texture, layers);
+				}
+				else if (texture.getTarget() == GL3.GL_TEXTURE_CUBE_MAP) {
+					TextureCache.Image[] faces = new TextureCache.Image[images.size()];
+					for (int i=0; i<faces.length; i++) {
+						faces[i] = images.get(i).join();
+					}
+					texture.bind(gl3);
+					for (int i=0; i<faces.length; i++) {
+						faces[i].upload(gl3, GL3.GL_TEXTURE_CUBE_MAP_POSITIVE_X + i);
+					}
+				}
+				else {
+					uploadTexture(gl3, texture, images.get(0).join());
+				}
+			}
+			catch (Exception e) {
+				if (texture.getTarget() == GL3.GL_TEXTURE_2D_ARRAY) {
+					System.out.println("Error loading textures for texture array: " + e.getMessage());
+				}
+				else if (texture.getTarget() == GL3.GL_TEXTURE_CUBE_MAP) {
+					System.out.println("Error loading textures for cubemap");
+				}
+				else {
+					System.out.println("Error loading texture " + filenames[0]);
+				}
+			}
+		}
+	}
 }
\ No newline at end of file
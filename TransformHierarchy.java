@@ -0,0 +1,353 @@
+import gmaths.*;
+import java.util.Arrays;
+import com.jogamp.opengl.*;
+
+/**
+ * Class for a scene graph compiled into flat arrays. Each transform that is not the identity is
+ * given a slot: slots are stored in topological order (every parent before its children) with
+ * their parent's slot in an int array and their local and world matrices packed into float arrays.
+ * Name nodes and identity transforms take no slot, so updating every world matrix is one linear
+ * loop over the slots. The SGNode tree is still used to build the scene; only its transforms and
+ * models are read from it.
+ *
+ * Each slot also has a world-space bounding sphere enclosing every model below it, so when drawing
+ * a whole subtree outside the view frustum is skipped with one test. Models with levels of detail
+ * (from a LodModelNode) pick their level from their world bounding sphere when they are drawn.
+ * The models inside any other frustum (e.g. a light's) can also be visited (see visitModels).
+ */
+public class TransformHierarchy {
+	private static final int INITIAL_CAPACITY = 16;
+	private static final int NO_SLOT = -1;
+
+	private SGNode root;
+	private int slotCount;
+	private int[] parent = new int[INITIAL_CAPACITY];
+	private float[] local = new float[INITIAL_CAPACITY*16];
+	private float[] world = new float[INITIAL_CAPACITY*16];
+	private boolean[] localChanged = new boolean[INITIAL_CAPACITY];
+	private boolean[] worldChanged = new boolean[INITIAL_CAPACITY];
+	// Bounding sphere (x, y, z, radius) of each slot's subtree and the frustum test result for it
+	private float[] slotBounds = new float[INITIAL_CAPACITY*4];
+	private int[] slotState = new int[INITIAL_CAPACITY];
+
+	// Models in drawing order and the slot of the transform each one is drawn with
+	private int modelCount;
+	private ModelMultipleLights[] models = new ModelMultipleLights[INITIAL_CAPACITY];
+	// The node picking each model's level of detail (null for models with only one)
+	private LodModelNode[] modelLods = new LodModelNode[INITIAL_CAPACITY];
+	private int[] modelSlot = new int[INITIAL_CAPACITY];
+	private float[] modelBounds = new float[INITIAL_CAPACITY*4];
+	private boolean boundsValid = false;
+
+	// Set when an identity transform that was compiled away is changed
+	private boolean needsCompile = false;
+	private final Mat4 identity = new Mat4(1);
+	private final Mat4 modelMatrix = new Mat4(1);
+
+	/**
+	 * Constructor. Compile the scene graph below the given root node.
+	 *
+	 * @param root The root node of the scene graph.
+	 */
+	public TransformHierarchy(SGNode root) {
+		this.root = root;
+		compile();
+	}
+
+	/**
+	 * Get the number of transform slots in the compiled hierarchy.
+	 *
+	 * @return The number of slots.
+	 */
+	public int getSlotCount() {
+		return slotCount;
+	}
+
+	/**
+	 * Record that a transform node's matrix has changed. Called by TransformNode.setTransform.
+	 *
+	 * @param slot The node's slot (-1 if the node was compiled away as an identity transform).
+	 * @param transform The node's new transformation matrix.
+	 */
+	void transformChanged(int slot, Mat4 transform) {
+		if (slot == NO_SLOT) {
+			// The node needs a slot once it is no longer the identity
+			if (!transform.isIdentity()) needsCompile = true;
+			return;
+		}
+		System.arraycopy(transform.toFloatArrayForGLSL(), 0, local, slot*16, 16);
+		localChanged[slot] = true;
+	}
+
+	/**
+	 * Recompute the world matrix of every slot whose local matrix or parent has changed.
+	 */
+	public void update() {
+		if (needsCompile) compile();
+		int recomputed = 0;
+		for (int i=0; i<slotCount; i++) {
+			int p = parent[i];
+			boolean changed = localChanged[i] || (p != NO_SLOT && worldChanged[p]);
+			worldChanged[i] = changed;
+			if (changed) {
+				if (p == NO_SLOT) {
+					System.arraycopy(local, i*16, world, i*16, 16);
+				}
+				else {
+					Mat4.multiplyInto(world, p*16, local, i*16, world, i*16);
+				}
+				localChanged[i] = false;
+				recomputed++;
+			}
+		}
+		SGNode.recomputedCount += recomputed;
+		if (recomputed > 0 || !boundsValid) updateBounds();
+	}
+
+	/**
+	 * Recompute the world bounding sphere of every model, then merge them into the bounding
+	 * sphere of each slot and (in reverse order, so children come before their parents) into
+	 * every ancestor slot.
+	 */
+	private void updateBounds() {
+		for (int i=0; i<slotCount; i++) {
+			slotBounds[i*4+3] = -1;
+		}
+		for (int i=0; i<modelCount; i++) {
+			int slot = modelSlot[i];
+			Mesh mesh = models[i].getMesh();
+			if (mesh == null) {
+				// Never culled (the model reports its missing mesh when rendered)
+				modelBounds[i*4+3] = Float.POSITIVE_INFINITY;
+				continue;
+			}
+			float[] m = (slot == NO_SLOT) ? identity.toFloatArrayForGLSL() : world;
+			Frustum.transformSphere(m, (slot == NO_SLOT) ? 0 : slot*16, mesh, modelBounds, i*4);
+			if (slot != NO_SLOT) mergeSphere(slotBounds, slot*4, modelBounds, i*4);
+		}
+		for (int i=slotCount-1; i>=0; i--) {
+			if (parent[i] != NO_SLOT && slotBounds[i*4+3] >= 0) {
+				mergeSphere(slotBounds, parent[i]*4, slotBounds, i*4);
+			}
+		}
+		boundsValid = true;
+	}
+
+	/**
+	 * Grow a sphere so that it also encloses another sphere.
+	 *
+	 * @param dest The array holding the sphere to grow (a negative radius means it is empty).
+	 * @param d The index of the sphere in dest.
+	 * @param src The array holding the sphere to enclose.
+	 * @param s The index of the sphere in src.
+	 */
+	private static void mergeSphere(float[] dest, int d, float[] src, int s) {
+		float r = dest[d+3], sr = src[s+3];
+		if (r < 0) {
+			System.arraycopy(src, s, dest, d, 4);
+			return;
+		}
+		float dx = src[s]-dest[d], dy = src[s+1]-dest[d+1], dz = src[s+2]-dest[d+2];
+		float distance = (float)Math.sqrt(dx*dx + dy*dy + dz*dz);
+		if (distance + sr <= r) return;
+		if (distance + r <= sr) {
+			System.arraycopy(src, s, dest, d, 4);
+			return;
+		}
+		float newRadius = (distance + r + sr)*0.5f;
+		float t = (newRadius - r)/distance;
+		dest[d] += dx*t;
+		dest[d+1] += dy*t;
+		dest[d+2] += dz*t;
+		dest[d+3] = newRadius;
+	}
+
+	/**
+	 * Draw every model in the hierarchy with its world matrix.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 */
+	public void draw(GL3 gl) {
+		for (int i=0; i<modelCount; i++) {
+			render(gl, i);
+		}
+	}
+
+	/**
+	 * Draw every model in the hierarchy that is inside the view frustum. A slot whose bounding
+	 * sphere is outside the frustum skips its whole subtree, and one fully inside skips the tests
+	 * for everything below it.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param frustum The view frustum of the camera.
+	 */
+	public void draw(GL3 gl, Frustum frustum) {
+		classifySlots(frustum);
+		for (int i=0; i<modelCount; i++) {
+			int slot = modelSlot[i];
+			int state = (slot == NO_SLOT) ? Frustum.INTERSECTING : slotState[slot];
+			if (state == Frustum.INTERSECTING) {
+				int b = i*4;
+				state = frustum.classifySphere(
+					modelBounds[b], modelBounds[b+1], modelBounds[b+2], modelBounds[b+3]);
+			}
+			if (state == Frustum.OUTSIDE) {
+				Frustum.countCulled();
+			}
+			else {
+				Frustum.countVisible();
+				render(gl, i);
+			}
+		}
+	}
+
+	/**
+	 * Visit the mesh and world matrix of every model whose transform's subtree is not outside a
+	 * frustum (e.g. to find the shadow casters in a light's view). Unlike draw, the models visited
+	 * do not depend on the camera: each one's most detailed mesh is visited, and the visitor
+	 * tests the models themselves.
+	 *
+	 * @param frustum The frustum.
+	 * @param visitor The visitor called for each model.
+	 */
+	public void visitModels(Frustum frustum, ModelVisitor visitor) {
+		classifySlots(frustum);
+		for (int i=0; i<modelCount; i++) {
+			int slot = modelSlot[i];
+			Mesh mesh = models[i].getMesh();
+			if (mesh == null || (slot != NO_SLOT && slotState[slot] == Frustum.OUTSIDE)) continue;
+			if (slot == NO_SLOT) visitor.visit(mesh, identity.toFloatArrayForGLSL(), 0);
+			else visitor.visit(mesh, world, slot*16);
+		}
+	}
+
+	/**
+	 * Test the bounding sphere of every slot against a frustum. A slot below one outside or fully
+	 * inside the frustum takes its parent's result without being tested.
+	 *
+	 * @param frustum The frustum.
+	 */
+	private void classifySlots(Frustum frustum) {
+		for (int i=0; i<slotCount; i++) {
+			int state = (parent[i] == NO_SLOT) ? Frustum.INTERSECTING : slotState[parent[i]];
+			if (state == Frustum.INTERSECTING) {
+				int b = i*4;
+				state = (slotBounds[b+3] < 0) ? Frustum.OUTSIDE : frustum.classifySphere(
+					slotBounds[b], slotBounds[b+1], slotBounds[b+2], slotBounds[b+3]);
+			}
+			slotState[i] = state;
+		}
+	}
+
+	/**
+	 * Draw one model with its world matrix.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param model The index of the model.
+	 */
+	private void render(GL3 gl, int model) {
+		int slot = modelSlot[model];
+		ModelMultipleLights m = (modelLods[model] == null) ? models[model]
+			: modelLods[model].select(modelBounds, model*4);
+		m.render(gl, slot == NO_SLOT ? identity : modelMatrix.set(world, slot*16));
+	}
+
+	/**
+	 * Rebuild the arrays from the scene graph. Every slot is marked as changed, so the next update
+	 * recomputes every world matrix.
+	 */
+	private void compile() {
+		slotCount = 0;
+		modelCount = 0;
+		needsCompile = false;
+		boundsValid = false;
+		compile(root, NO_SLOT);
+	}
+
+	/**
+	 * Add a node and its children to the arrays (in depth-first order, so parents come first).
+	 *
+	 * @param node The node to add.
+	 * @param parentSlot The slot of the nearest ancestor transform (-1 if there is none).
+	 */
+	private void compile(SGNode node, int parentSlot) {
+		if (node instanceof TransformNode) {
+			TransformNode transformNode = (TransformNode)node;
+			Mat4 transform = transformNode.getTransform();
+			if (transform.isIdentity()) {
+				transformNode.attach(this, NO_SLOT);
+			}
+			else {
+				int slot = addSlot(parentSlot, transform);
+				transformNode.attach(this, slot);
+				parentSlot = slot;
+			}
+		}
+		else if (node instanceof ModelNode) {
+			LodModelNode lod = (node instanceof LodModelNode) ? (LodModelNode)node : null;
+			addModel(((ModelNode)node).getModel(), lod, parentSlot);
+		}
+		for (int i=0; i<node.children.size(); i++) {
+			compile(node.children.get(i), parentSlot);
+		}
+	}
+
+	/**
+	 * Add a transform slot, growing the arrays if they are full.
+	 *
+	 * @param parentSlot The slot of the parent transform (-1 if there is none).
+	 * @param transform The local transformation matrix.
+	 * @return The new slot.
+	 */
+	private int addSlot(int parentSlot, Mat4 transform) {
+		if (slotCount == parent.length) {
+			int capacity = slotCount*2;
+			parent = Arrays.copyOf(parent, capacity);
+			local = Arrays.copyOf(local, capacity*16);
+			world = Arrays.copyOf(world, capacity*16);
+			localChanged = Arrays.copyOf(localChanged, capacity);
+			worldChanged = Arrays.copyOf(worldChanged, capacity);
+			slotBounds = Arrays.copyOf(slotBounds, capacity*4);
+			slotState = Arrays.copyOf(slotState, capacity);
+		}
+		int slot = slotCount++;
+		parent[slot] = parentSlot;
+		System.arraycopy(transform.toFloatArrayForGLSL(), 0, local, slot*16, 16);
+		localChanged[slot] = true;
+		return slot;
+	}
+
+	/**
+	 * Add a model to be drawn, growing the arrays if they are full.
+	 *
+	 * @param model The model.
+	 * @param lod The node picking the model's level of detail (null if it has only one).
+	 * @param slot The slot of the transform the model is drawn with (-1 for the identity).
+	 */
+	private void addModel(ModelMultipleLights model, LodModelNode lod, int slot) {
+		if (modelCount == models.length) {
+			models = Arrays.copyOf(models, modelCount*2);
+			modelLods = Arrays.copyOf(modelLods, modelCount*2);
+			modelSlot = Arrays.copyOf(modelSlot, modelCount*2);
+			modelBounds = Arrays.copyOf(modelBounds, modelCount*2*4);
+		}
+		models[modelCount] = model;
+		modelLods[modelCount] = lod;
+		modelSlot[modelCount] = slot;
+		modelCount++;
+	}
+
+	/**
+	 * A visitor of the models in a hierarchy (see visitModels).
+	 */
+	public interface ModelVisitor {
+		/**
+		 * Visit one model.
+		 *
+		 * @param mesh The model's mesh.
+		 * @param matrix The array holding the world transformation (column-major).
+		 * @param offset The index of the world transformation in matrix.
+		 */
+		void visit(Mesh mesh, float[] matrix, int offset);
+	}
+}
@@ -7,6 +7,12 @@ import com.jogamp.opengl.*;
  */
 public class TransformNode extends SGNode {
 	private Mat4 transform;
+	private Mat4 childTransform = new Mat4(1);
+	// True if the transform has been set since childTransform was last computed
+	private boolean transformChanged = true;
+	// Compiled hierarchy the node belongs to (if any) and its slot there (-1 if compiled away)
+	private TransformHierarchy hierarchy;
+	private int slot = -1;
 
 	/**
 	 * Constructor. Set the name and transformation (as a matrix) for the node.
@@ -20,26 +26,56 @@ public class TransformNode extends SGNode {
 	}
 
 	/**
-	 * Set a new value for the transformation matrix.
+	 * Set a new value for the transformation matrix. Only this node's subtree is recomputed on the
+	 * next update.
 	 * 
 	 * @param m The transformation matrix.
 	 */
 	public void setTransform(Mat4 m) {
-		transform = new Mat4(m);
+		transform.set(m);
+		transformChanged = true;
+		markDirty();
+		if (hierarchy != null) hierarchy.transformChanged(slot, transform);
+	}
+
+	/**
+	 * Get the transformation matrix of the node.
+	 * 
+	 * @return The transformation matrix (should not be changed other than via setTransform).
+	 */
+	public Mat4 getTransform() {
+		return transform;
+	}
+
+	/**
+	 * Record which compiled hierarchy the node belongs to, so that changes to the transform are
+	 * passed on to it.
+	 * 
+	 * @param hierarchy The compiled hierarchy.
+	 * @param slot The node's slot in the hierarchy (-1 if it was compiled away).
+	 */
+	void attach(TransformHierarchy hierarchy, int slot) {
+		this.hierarchy = hierarchy;
+		this.slot = slot;
 	}
 	
 	/**
 	 * Merge the world transformation matrix with the node's transform matrix and apply the result
-	 * to all children nodes.
+	 * to all children nodes. The merged matrix is only recomputed if either matrix has changed.
 	 * 
 	 * @param t The world transformation matrix of the parent node.
+	 * @param changed Whether or not t has changed since the last update.
 	 */
-	protected void update(Mat4 t) {
+	protected void update(Mat4 t, boolean changed) {
 		worldTransform = t;
-		t = Mat4.multiply(worldTransform, transform);
-		for (int i=0; i<children.size(); i++) {
-			children.get(i).update(t);
-		}   
+		changed = changed || transformChanged;
+		if (changed) {
+			// Reuse the same matrix every update rather than allocating a new one for the children
+			Mat4.multiplyInto(worldTransform, transform, childTransform);
+			transformChanged = false;
+			recomputedCount++;
+		}
+		updateChildren(childTransform, changed);
 	}
 
 	/**
@@ -0,0 +1,98 @@
+import gmaths.*;
+import com.jogamp.opengl.*;
+
+/**
+ * Class for a uniform variable whose location has already been resolved, so that its value can be
+ * set while rendering without any string building or name lookups.
+ */
+public class UniformHandle {
+	private final int location;
+
+	/**
+	 * Constructor. Store the resolved location of the uniform variable.
+	 *
+	 * @param location The location of the uniform variable (-1 if it is inactive).
+	 */
+	public UniformHandle(int location) {
+		this.location = location;
+	}
+
+	/**
+	 * Get the location of the uniform variable.
+	 *
+	 * @return The location of the uniform variable.
+	 */
+	public int getLocation() {
+		return location;
+	}
+
+	/**
+	 * Return whether or not the uniform variable is used by the shader.
+	 *
+	 * @return True if the uniform variable is active.
+	 */
+	public boolean isActive() {
+		return location != -1;
+	}
+
+	/**
+	 * Set an integer value for the uniform variable (the shader must currently be in use).
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param value The integer value to set the uniform to.
+	 */
+	public void setInt(GL3 gl, int value) {
+		gl.glUniform1i(location, value);
+	}
+
+	/**
+	 * Set a float value for the uniform variable (the shader must currently be in use).
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param value The float value to set the uniform to.
+	 */
+	public void setFloat(GL3 gl, float value) {
+		gl.glUniform1f(location, value);
+	}
+
+	/**
+	 * Set a 2D vector for the uniform variable (the shader must currently be in use).
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param f1 The first float value of the 2D vector.
+	 * @param f2 The second float value of the 2D vector.
+	 */
+	public void setFloat(GL3 gl, float f1, float f2) {
+		gl.glUniform2f(location, f1, f2);
+	}
+
+	/**
+	 * Set a 3D vector for the uniform variable (the shader must currently be in use).
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param v The Vec3 representing the vector of values.
+	 */
+	public void setVec3(GL3 gl, Vec3 v) {
+		gl.glUniform3f(location, v.x, v.y, v.z);
+	}
+
+	/**
+	 * Set a 4x4 matrix for the uniform variable (the shader must currently be in use).
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param f The array of float values (representing the 4x4 matrix).
+	 */
+	public void setFloatArray(GL3 gl, float[] f) {
+		gl.glUniformMatrix4fv(location, 1, false, f, 0);
+	}
+
+	/**
+	 * Set a 3x3 matrix for the uniform variable (the shader must currently be in use).
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param m The 3x3 matrix.
+	 */
+	public void setMat3(GL3 gl, Mat3 m) {
+		gl.glUniformMatrix3fv(location, 1, false, m.toFloatArrayForGLSL(), 0);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,222 @@
+import java.nio.*;
+import com.jogamp.common.nio.*;
+import com.jogamp.opengl.*;
+
+/**
+ * Class for describing how a mesh's vertices are stored in its vertex buffer. Meshes are always
+ * made from the standard layout of 8 floats per vertex (position, normal, texture coordinates);
+ * a format says how each of the three attributes is packed for the GPU, and sets up the vertex
+ * attributes (locations 0-2) to read them.
+ *
+ * FULL keeps the 32 byte float layout. COMPACT (see compactFor) packs a vertex into 16 bytes:
+ * - positions as normalized shorts when every coordinate is within [-1, 1] (true of every shape
+ *   in the scene, which are scaled by their model matrices), otherwise as half floats
+ * - normals as GL_INT_2_10_10_10_REV (10 bits per component, normalized)
+ * - texture coordinates as half floats
+ * The vertex shaders still read vec3/vec2 attributes, as GL converts the values when fetching them.
+ */
+public final class VertexFormat {
+	public enum PositionType {FLOAT, HALF_FLOAT, NORMALIZED_SHORT};
+	public enum NormalType {FLOAT, PACKED_2_10_10_10};
+	public enum TexCoordType {FLOAT, HALF_FLOAT};
+
+	// Floats per vertex in the standard layout meshes are made from
+	public static final int SOURCE_FLOATS = 8;
+	public static final VertexFormat FULL = new VertexFormat(
+		PositionType.FLOAT, NormalType.FLOAT, TexCoordType.FLOAT);
+	public static final VertexFormat COMPACT = new VertexFormat(
+		PositionType.NORMALIZED_SHORT, NormalType.PACKED_2_10_10_10, TexCoordType.HALF_FLOAT);
+	private static final VertexFormat COMPACT_HALF_POSITIONS = new VertexFormat(
+		PositionType.HALF_FLOAT, NormalType.PACKED_2_10_10_10, TexCoordType.HALF_FLOAT);
+
+	private final PositionType positionType;
+	private final NormalType normalType;
+	private final TexCoordType texCoordType;
+	// Byte offset of each attribute within a vertex, and the size of a vertex
+	private final int normalOffset, texCoordOffset, stride;
+
+	/**
+	 * Constructor. Lay the attributes out one after another, each starting on a 4 byte boundary.
+	 *
+	 * @param positionType How positions are stored.
+	 * @param normalType How normals are stored.
+	 * @param texCoordType How texture coordinates are stored.
+	 */
+	public VertexFormat(PositionType positionType, NormalType normalType,
+	                    TexCoordType texCoordType) {
+		this.positionType = positionType;
+		this.normalType = normalType;
+		this.texCoordType = texCoordType;
+		// Three 2 byte values are padded to 8 bytes
+		normalOffset = (positionType == PositionType.FLOAT) ? 3*Float.BYTES : 8;
+		texCoordOffset = normalOffset + ((normalType == NormalType.FLOAT) ? 3*Float.BYTES : 4);
+		stride = texCoordOffset + ((texCoordType == TexCoordType.FLOAT) ? 2*Float.BYTES : 4);
+	}
+
+	/**
+	 * Get the compact format for a set of vertices: COMPACT, or with half float positions if any
+	 * coordinate is outside the range of a normalized short.
+	 *
+	 * @param vertices The vertices in the standard layout.
+	 * @return The compact format for the vertices.
+	 */
+	public static VertexFormat compactFor(float[] vertices) {
+		for (int i=0; i<vertices.length; i+=SOURCE_FLOATS) {
+			for (int c=0; c<3; c++) {
+				if (Math.abs(vertices[i+c]) > 1) return COMPACT_HALF_POSITIONS;
+			}
+		}
+		return COMPACT;
+	}
+
+	/**
+	 * Get the number of bytes taken by each vertex.
+	 *
+	 * @return The size of a vertex in bytes.
+	 */
+	public int getStride() {
+		return stride;
+	}
+
+	/**
+	 * Pack vertices in the standard layout into a buffer in this format.
+	 *
+	 * @param vertices The vertices in the standard layout.
+	 * @return A direct buffer holding the packed vertices, ready to upload.
+	 */
+	public ByteBuffer pack(float[] vertices) {
+		int count = vertices.length/SOURCE_FLOATS;
+		ByteBuffer buffer = Buffers.newDirectByteBuffer(count*stride);
+		for (int v=0; v<count; v++) {
+			int src = v*SOURCE_FLOATS;
+			int dest = v*stride;
+			switch (positionType) {
+				case FLOAT:
+					for (int c=0; c<3; c++) buffer.putFloat(dest + c*4, vertices[src+c]);
+					break;
+				case HALF_FLOAT:
+					for (int c=0; c<3; c++) buffer.putShort(dest + c*2, toHalf(vertices[src+c]));
+					break;
+				default:
+					for (int c=0; c<3; c++) buffer.putShort(dest + c*2, toShort(vertices[src+c]));
+			}
+			dest = v*stride + normalOffset;
+			if (normalType == NormalType.FLOAT) {
+				for (int c=0; c<3; c++) buffer.putFloat(dest + c*4, vertices[src+3+c]);
+			}
+			else {
+				buffer.putInt(dest, pack2101010(vertices[src+3], vertices[src+4], vertices[src+5]));
+			}
+			dest = v*stride + texCoordOffset;
+			for (int c=0; c<2; c++) {
+				if (texCoordType == TexCoordType.FLOAT)
+					buffer.putFloat(dest + c*4, vertices[src+6+c]);
+				else
+					buffer.putShort(dest + c*2, toHalf(vertices[src+6+c]));
+			}
+		}
+		return buffer;
+	}
+
+	/**
+	 * Point the position, normal and texture attributes (locations 0-2) of the currently bound
+	 * vertex array at the currently bound vertex buffer, holding vertices in this format.
+	 *
+	 * @param gl The OpenGL context used for rendering.
+	 * @param positionsOnly True to only set up the position attribute (e.g. for a depth-only pass).
+	 */
+	public void bindAttributes(GL3 gl, boolean positionsOnly) {
+		switch (positionType) {
+			case FLOAT:
+				gl.glVertexAttribPointer(0, 3, GL.GL_FLOAT, false, stride, 0);
+				break;
+			case HALF_FLOAT:
+				gl.glVertexAttribPointer(0, 3, GL.GL_HALF_FLOAT, false, stride, 0);
+				break;
+			default:
+				gl.glVertexAttribPointer(0, 3, GL.GL_SHORT, true, stride, 0);
+		}
+		gl.glEnableVertexAttribArray(0);
+		if (positionsOnly) return;
+
+		if (normalType == NormalType.FLOAT)
+			gl.glVertexAttribPointer(1, 3, GL.GL_FLOAT, false, stride, normalOffset);
+		else
+			// Packed formats are read as 4 components; the shader only uses the first three
+			gl.glVertexAttribPointer(1, 4, GL3.GL_INT_2_10_10_10_REV, true, stride, normalOffset);
+		gl.glEnableVertexAttribArray(1);
+
+		if (texCoordType == TexCoordType.FLOAT)
+			gl.glVertexAttribPointer(2, 2, GL.GL_FLOAT, false, stride, texCoordOffset);
+		else
+			gl.glVertexAttribPointer(2, 2, GL.GL_HALF_FLOAT, false, stride, texCoordOffset);
+		gl.glEnableVertexAttribArray(2);
+	}
+
+	/**
+	 * Convert a value in [-1, 1] to a normalized short.
+	 *
+	 * @param f The value (clamped to [-1, 1]).
+	 * @return The normalized short.
+	 */
+	static short toShort(float f) {
+		return (short)Math.round(Math.max(-1f, Math.min(1f, f))*Short.MAX_VALUE);
+	}
+
+	/**
+	 * Pack a normal into the 10 bit signed x, y and z components of a GL_INT_2_10_10_10_REV value
+	 * (x in the lowest bits, and w left as 0).
+	 *
+	 * @param x The x component (in [-1, 1]).
+	 * @param y The y component (in [-1, 1]).
+	 * @param z The z component (in [-1, 1]).
+	 * @return The packed normal.
+	 */
+	static int pack2101010(float x, float y, float z) {
+		return to10Bits(x) | (to10Bits(y) << 10) | (to10Bits(z) << 20);
+	}
+
+	/**
+	 * Convert a value in [-1, 1] to a 10 bit normalized signed integer.
+	 *
+	 * @param f The value (clamped to [-1, 1]).
+	 * @return The integer in the lowest 10 bits.
+	 */
+	private static int to10Bits(float f) {
+		return Math.round(Math.max(-1f, Math.min(1f, f))*511) & 0x3ff;
+	}
+
+	/**
+	 * Convert a float to a half float (IEEE 754 binary16), rounding to the nearest value.
+	 *
+	 * @param f The float.
+	 * @return The bits of the half float.
+	 */
+	static short toHalf(float f) {
+		int bits = Float.floatToRawIntBits(f);
+		int sign = (bits >>> 16) & 0x8000;
+		int exponent = ((bits >>> 23) & 0xff) - 127 + 15;
+		int mantissa = bits & 0x7fffff;
+		if (exponent == 0xff - 127 + 15) {
+			// Infinity or NaN
+			return (short)(sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+		}
+		if (exponent >= 0x1f) return (short)(sign | 0x7c00);
+		if (exponent <= 0) {
+			// Too small for a normal half float, so made subnormal (or zero)
+			if (exponent < -10) return (short)sign;
+			mantissa |= 0x800000;
+			int shift = 14 - exponent;
+			int half = mantissa >> shift;
+			int remainder = mantissa & ((1 << shift) - 1);
+			int midpoint = 1 << (shift - 1);
+			if (remainder > midpoint || (remainder == midpoint && (half & 1) != 0)) half++;
+			return (short)(sign | half);
+		}
+		int half = (exponent << 10) | (mantissa >> 13);
+		int remainder = mantissa & 0x1fff;
+		// Rounding up may carry into the exponent, which is still the right result
+		if (remainder > 0x1000 || (remainder == 0x1000 && (half & 1) != 0)) half++;
+		return (short)(sign | half);
+	}
+}
@@ -0,0 +1,127 @@
+package gmaths;
+
+public class Mat3 {   // row column formulation, stored column by column (as GLSL expects)
+
+  // Relative tolerance used to decide whether a matrix is a rotation with a uniform scale
+  private static final float UNIFORM_SCALE_EPSILON = 1e-5f;
+
+  private final float[] values;
+
+  public Mat3() {
+    this(0);
+  }
+
+  public Mat3(float f) {
+    values = new float[9];
+    for (int i=0; i<3; ++i) {
+      values[i*3+i] = f;
+    }
+  }
+
+  public Mat3(Mat3 m) {
+    this.values = new float[9];
+    System.arraycopy(m.values, 0, this.values, 0, 9);
+  }
+
+  public void set(int r, int c, float f) {
+    values[c*3+r] = f;
+  }
+
+  public float get(int r, int c) {
+    return values[c*3+r];
+  }
+
+  /**
+   * Resets this matrix to the identity matrix, without allocating.
+   *
+   * @return  This matrix, to allow calls to be chained
+   */
+  public Mat3 setIdentity() {
+    for (int i=0; i<9; ++i) {
+      values[i] = 0;
+    }
+    values[0] = values[4] = values[8] = 1;
+    return this;
+  }
+
+  /**
+   * Calculates the normal matrix of a model matrix (the inverse transpose of its upper 3x3) and
+   * stores it in dest, without allocating.
+   *
+   * @param m The model matrix
+   * @param dest The matrix that receives the normal matrix
+   * @return  dest, to allow calls to be chained
+   */
+  public static Mat3 normalMatrixInto(Mat4 m, Mat3 dest) {
+    normalMatrixInto(m.toFloatArrayForGLSL(), 0, dest.values, 0);
+    return dest;
+  }
+
+  /**
+   * Calculates the normal matrix of a 4x4 matrix packed (column-major) into a float array and
+   * stores it (column-major) in dest.
+   * If the upper 3x3 is a rotation with a uniform scale s (the usual case), the normal matrix is
+   * just the upper 3x3 divided by s squared, so the general inverse is skipped.
+   *
+   * @param m The array holding the 4x4 matrix
+   * @param mOffset The index of the matrix in m
+   * @param dest The array that receives the 3x3 normal matrix
+   * @param destOffset The index in dest to write the normal matrix to
+   */
+  public static void normalMatrixInto(float[] m, int mOffset, float[] dest, int destOffset) {
+    float m00 = m[mOffset], m10 = m[mOffset+1], m20 = m[mOffset+2];
+    float m01 = m[mOffset+4], m11 = m[mOffset+5], m21 = m[mOffset+6];
+    float m02 = m[mOffset+8], m12 = m[mOffset+9], m22 = m[mOffset+10];
+
+    // Columns of equal length and at right angles to each other: rotation and uniform scale
+    float len0 = m00*m00 + m10*m10 + m20*m20;
+    float len1 = m01*m01 + m11*m11 + m21*m21;
+    float len2 = m02*m02 + m12*m12 + m22*m22;
+    float tolerance = len0*UNIFORM_SCALE_EPSILON;
+    if (len0 > 0 && Math.abs(len1-len0) <= tolerance && Math.abs(len2-len0) <= tolerance
+        && Math.abs(m00*m01 + m10*m11 + m20*m21) <= tolerance
+        && Math.abs(m00*m02 + m10*m12 + m20*m22) <= tolerance
+        && Math.abs(m01*m02 + m11*m12 + m21*m22) <= tolerance) {
+      float invScale2 = 1.0f/len0;
+      dest[destOffset] = m00*invScale2;   dest[destOffset+1] = m10*invScale2; dest[destOffset+2] = m20*invScale2;
+      dest[destOffset+3] = m01*invScale2; dest[destOffset+4] = m11*invScale2; dest[destOffset+5] = m21*invScale2;
+      dest[destOffset+6] = m02*invScale2; dest[destOffset+7] = m12*invScale2; dest[destOffset+8] = m22*invScale2;
+      return;
+    }
+
+    // General case: the inverse transpose is the cofactor matrix divided by the determinant
+    float c00 = m11*m22 - m12*m21, c01 = m12*m20 - m10*m22, c02 = m10*m21 - m11*m20;
+    float c10 = m02*m21 - m01*m22, c11 = m00*m22 - m02*m20, c12 = m01*m20 - m00*m21;
+    float c20 = m01*m12 - m02*m11, c21 = m02*m10 - m00*m12, c22 = m00*m11 - m01*m10;
+    float invDet = 1.0f/(m00*c00 + m01*c01 + m02*c02);
+    dest[destOffset] = c00*invDet;   dest[destOffset+1] = c10*invDet; dest[destOffset+2] = c20*invDet;
+    dest[destOffset+3] = c01*invDet; dest[destOffset+4] = c11*invDet; dest[destOffset+5] = c21*invDet;
+    dest[destOffset+6] = c02*invDet; dest[destOffset+7] = c12*invDet; dest[destOffset+8] = c22*invDet;
+  }
+
+  /**
+   * Returns the values of the matrix for passing to GLSL (e.g. with glUniformMatrix3fv).
+   * No copy is made, so the array must be treated as read-only and is only valid until
+   * the matrix is next changed.
+   *
+   * @return  The 9 values of the matrix in column-major order
+   */
+  public float[] toFloatArrayForGLSL() {  // col by row
+    return values;
+  }
+
+  public String toString() {
+    String s = "{";
+    for (int i=0; i<3; ++i) {
+      s += (i==0) ? "{" : " {";
+      for (int j=0; j<3; ++j) {
+        s += String.format("%.2f",values[j*3+i]);
+        if (j<2) s += ", ";
+      }
+      s += (i==2) ? "}" : "},\n";
+    }
+    s += "}";
+    return s;
+  }
+
+} // end of Mat3 class
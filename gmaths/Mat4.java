@@ -1,109 +1,257 @@
 package gmaths;
 
-public class Mat4 {   // row column formulation
+public class Mat4 {   // row column formulation, stored column by column (as GLSL expects)
+
+  private final float[] values;
 
-  private float[][] values;
-  
   public Mat4() {
     this(0);
   }
-  
+
   public Mat4(float f) {
-    values = new float[4][4];
-    makeZero();
+    values = new float[16];
     for (int i=0; i<4; ++i) {
-      values[i][i] = f;
+      values[i*4+i] = f;
     }
   }
-  
+
   public Mat4(Mat4 m) {
-    this.values = new float[4][4];
-    for (int i=0; i<4; ++i) {
-      for (int j=0; j<4; ++j) {
-        this.values[i][j] = m.values[i][j];
-      }
-    }
+    this.values = new float[16];
+    System.arraycopy(m.values, 0, this.values, 0, 16);
   }
-  
+
   public void set(int r, int c, float f) {
-    values[r][c] = f;
+    values[c*4+r] = f;
   }
-  
-  private void makeZero() {
-    for (int i=0; i<4; ++i) {
-      for (int j=0; j<4; ++j) {
-        values[i][j] = 0;
-      }
+
+  public float get(int r, int c) {
+    return values[c*4+r];
+  }
+
+  /**
+   * Copies the values of another matrix into this one, without allocating.
+   *
+   * @param m The matrix to copy from
+   * @return  This matrix, to allow calls to be chained
+   */
+  public Mat4 set(Mat4 m) {
+    if (m != this) System.arraycopy(m.values, 0, values, 0, 16);
+    return this;
+  }
+
+  /**
+   * Copies 16 values (in column-major order) from an array into this matrix, without allocating.
+   *
+   * @param src The array to copy from
+   * @param offset The index of the first value in src
+   * @return  This matrix, to allow calls to be chained
+   */
+  public Mat4 set(float[] src, int offset) {
+    System.arraycopy(src, offset, values, 0, 16);
+    return this;
+  }
+
+  /**
+   * Returns whether this matrix is exactly the identity matrix.
+   *
+   * @return  True if this is the identity matrix
+   */
+  public boolean isIdentity() {
+    for (int i=0; i<16; ++i) {
+      if (values[i] != ((i%5 == 0) ? 1 : 0)) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Resets this matrix to the identity matrix, without allocating.
+   *
+   * @return  This matrix, to allow calls to be chained
+   */
+  public Mat4 setIdentity() {
+    for (int i=0; i<16; ++i) {
+      values[i] = 0;
     }
+    values[0] = values[5] = values[10] = values[15] = 1;
+    return this;
   }
-  
+
   public void transpose() {
     for (int i=0; i<4; ++i) {
-      for (int j=i; j<4; ++j) {
-        float t = values[i][j];
-        values[i][j] = values[j][i];
-        values[j][i] = t;
+      for (int j=i+1; j<4; ++j) {
+        float t = values[j*4+i];
+        values[j*4+i] = values[i*4+j];
+        values[i*4+j] = t;
       }
     }
   }
-    
+
   public static Mat4 transpose(Mat4 m) {
     Mat4 a = new Mat4(m);
-    for (int i=0; i<4; ++i) {
-      for (int j=i; j<4; ++j) {
-        float t = a.values[i][j];
-        a.values[i][j] = a.values[j][i];
-        a.values[j][i] = t;
-      }
-    }
+    a.transpose();
     return a;
   }
 
   public static Mat4 multiply(Mat4 a, Mat4 b) {
     Mat4 result = new Mat4();
-    for (int i=0; i<4; ++i) {
-      for (int j=0; j<4; ++j) {
-        for (int k=0; k<4; ++k) {
-          result.values[i][j] += a.values[i][k]*b.values[k][j];
-        }
-      }
-    }
+    multiplyInto(a, b, result);
     return result;
   }
 
-  public float[] toFloatArrayForGLSL() {  // col by row
-    float[] f = new float[16];
-    for (int j=0; j<4; ++j) {
-      for (int i=0; i<4; ++i) {
-        f[j*4+i] = values[i][j];
-      }
+  /**
+   * Calculates a x b and stores the result in dest, without allocating.
+   * dest may be the same object as a and/or b.
+   *
+   * @param a The left-hand matrix
+   * @param b The right-hand matrix
+   * @param dest The matrix that receives the result
+   * @return  dest, to allow calls to be chained
+   */
+  public static Mat4 multiplyInto(Mat4 a, Mat4 b, Mat4 dest) {
+    multiplyInto(a.values, 0, b.values, 0, dest.values, 0);
+    return dest;
+  }
+
+  /**
+   * Calculates a x b for matrices packed (column-major) into float arrays and stores the result
+   * in dest. dest may be the same matrix as a and/or b.
+   *
+   * @param av The array holding the left-hand matrix
+   * @param ao The index of the left-hand matrix in av
+   * @param bv The array holding the right-hand matrix
+   * @param bo The index of the right-hand matrix in bv
+   * @param d The array that receives the result
+   * @param dOff The index in d to write the result to
+   */
+  public static void multiplyInto(float[] av, int ao, float[] bv, int bo, float[] d, int dOff) {
+    float a00 = av[ao],    a10 = av[ao+1],  a20 = av[ao+2],  a30 = av[ao+3];
+    float a01 = av[ao+4],  a11 = av[ao+5],  a21 = av[ao+6],  a31 = av[ao+7];
+    float a02 = av[ao+8],  a12 = av[ao+9],  a22 = av[ao+10], a32 = av[ao+11];
+    float a03 = av[ao+12], a13 = av[ao+13], a23 = av[ao+14], a33 = av[ao+15];
+    for (int c=0; c<16; c+=4) {
+      float b0 = bv[bo+c], b1 = bv[bo+c+1], b2 = bv[bo+c+2], b3 = bv[bo+c+3];
+      d[dOff+c]   = a00*b0 + a01*b1 + a02*b2 + a03*b3;
+      d[dOff+c+1] = a10*b0 + a11*b1 + a12*b2 + a13*b3;
+      d[dOff+c+2] = a20*b0 + a21*b1 + a22*b2 + a23*b3;
+      d[dOff+c+3] = a30*b0 + a31*b1 + a32*b2 + a33*b3;
     }
-    return f;
   }
-  
+
+  /**
+   * Post-multiplies this matrix by a translation matrix, i.e. this = this x T.
+   *
+   * @param tx The translation amount for x
+   * @param ty The translation amount for y
+   * @param tz The translation amount for z
+   * @return  This matrix, to allow calls to be chained
+   */
+  public Mat4 translate(float tx, float ty, float tz) {
+    for (int r=0; r<4; ++r) {
+      values[12+r] += values[r]*tx + values[4+r]*ty + values[8+r]*tz;
+    }
+    return this;
+  }
+
+  public Mat4 translate(Vec3 v) {
+    return translate(v.x, v.y, v.z);
+  }
+
+  /**
+   * Post-multiplies this matrix by a scale matrix, i.e. this = this x S.
+   *
+   * @param sx The scale amount for x
+   * @param sy The scale amount for y
+   * @param sz The scale amount for z
+   * @return  This matrix, to allow calls to be chained
+   */
+  public Mat4 scale(float sx, float sy, float sz) {
+    for (int r=0; r<4; ++r) {
+      values[r] *= sx;
+      values[4+r] *= sy;
+      values[8+r] *= sz;
+    }
+    return this;
+  }
+
+  /**
+   * Post-multiplies this matrix by a rotation around the X axis, i.e. this = this x R.
+   *
+   * @param angle The amount of rotation in degrees. Positive values indicate anticlockwise rotation.
+   * @return  This matrix, to allow calls to be chained
+   */
+  public Mat4 rotateAroundX(float angle) {
+    rotateColumns(1, 2, angle);
+    return this;
+  }
+
+  /**
+   * Post-multiplies this matrix by a rotation around the Y axis, i.e. this = this x R.
+   *
+   * @param angle The amount of rotation in degrees. Positive values indicate anticlockwise rotation.
+   * @return  This matrix, to allow calls to be chained
+   */
+  public Mat4 rotateAroundY(float angle) {
+    rotateColumns(2, 0, angle);
+    return this;
+  }
+
+  /**
+   * Post-multiplies this matrix by a rotation around the Z axis, i.e. this = this x R.
+   *
+   * @param angle The amount of rotation in degrees. Positive values indicate anticlockwise rotation.
+   * @return  This matrix, to allow calls to be chained
+   */
+  public Mat4 rotateAroundZ(float angle) {
+    rotateColumns(0, 1, angle);
+    return this;
+  }
+
+  // column p becomes c*p + s*q and column q becomes c*q - s*p
+  private void rotateColumns(int p, int q, float angle) {
+    double rad = angle*Math.PI/180.0;
+    float c = (float)Math.cos(rad);
+    float s = (float)Math.sin(rad);
+    int pc = p*4, qc = q*4;
+    for (int r=0; r<4; ++r) {
+      float vp = values[pc+r];
+      float vq = values[qc+r];
+      values[pc+r] = c*vp + s*vq;
+      values[qc+r] = c*vq - s*vp;
+    }
+  }
+
+  /**
+   * Returns the backing array of this matrix, which is already in column by row order for GLSL.
+   * No copy is made, so the array must be treated as read-only and is only valid until
+   * the matrix is next changed.
+   *
+   * @return  The 16 values of the matrix in column-major order
+   */
+  public float[] toFloatArrayForGLSL() {  // col by row
+    return values;
+  }
+
   public String asFloatArrayForGLSL() {  // col by row
     String s = "{";
-    for (int j=0; j<4; ++j) {
-      for (int i=0; i<4; ++i) {
-        s += String.format("%.2f",values[i][j]);
-        if (!(j==3 && i==3)) s+=",";
-      }
+    for (int i=0; i<16; ++i) {
+      s += String.format("%.2f",values[i]);
+      if (i<15) s+=",";
     }
     return s;
   }
-  
+
   public String toString() {
     String s = "{";
     for (int i=0; i<4; ++i) {
       s += (i==0) ? "{" : " {";
       for (int j=0; j<4; ++j) {
-        s += String.format("%.2f",values[i][j]);  
+        s += String.format("%.2f",values[j*4+i]);
         if (j<3) s += ", ";
       }
       s += (i==3) ? "}" : "},\n";
-    } 
+    }
     s += "}";
     return s;
   }
-  
+
 } // end of Mat4 class
\ No newline at end of file
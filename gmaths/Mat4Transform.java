@@ -159,28 +159,48 @@ public final class Mat4Transform  {   // row column formulation
    * @return  The 4x4 viewing matrix, as a Mat4.
    */
    public static Mat4 lookAt(Vec3 from, Vec3 to, Vec3 worldup) {
-    Vec3 front = Vec3.subtract(to, from);
-    front.normalize();
-    Vec3 right = Vec3.crossProduct(front, worldup);
-    right.normalize();
-    Vec3 up = Vec3.crossProduct(right, front);
-    up.normalize();
-    Mat4 view = new Mat4(1);
-    view.set(0, 0, right.x);
-    view.set(0, 1, right.y);
-    view.set(0, 2, right.z);
-    view.set(1, 0, up.x);
-    view.set(1, 1, up.y);
-    view.set(1, 2, up.z);
-    view.set(2, 0, -front.x);
-    view.set(2, 1, -front.y);
-    view.set(2, 2, -front.z);
-    Mat4 cam = new Mat4(1);
-    cam.set(0, 3, -from.x);
-    cam.set(1, 3, -from.y);
-    cam.set(2, 3, -from.z);
-    Mat4 result = Mat4.multiply(view, cam);
-    return result;
+    return lookAtInto(from, to, worldup, new Mat4());
+  }
+  
+  /**
+   * As lookAt, but writes the viewing matrix into an existing matrix rather than allocating
+   * new vectors and matrices.
+   * 
+   * @param from The camera postion.
+   * @param to The target that the camera is looking at.
+   * @param worldup The up direction for the world. 
+   * @param dest The matrix that receives the viewing matrix.
+   * @return  dest, to allow calls to be chained.
+   */
+   public static Mat4 lookAtInto(Vec3 from, Vec3 to, Vec3 worldup, Mat4 dest) {
+    float fx = to.x-from.x, fy = to.y-from.y, fz = to.z-from.z;
+    float len = (float)Math.sqrt(fx*fx+fy*fy+fz*fz);
+    fx /= len; fy /= len; fz /= len;
+    float rx = fy*worldup.z-fz*worldup.y;
+    float ry = fz*worldup.x-fx*worldup.z;
+    float rz = fx*worldup.y-fy*worldup.x;
+    len = (float)Math.sqrt(rx*rx+ry*ry+rz*rz);
+    rx /= len; ry /= len; rz /= len;
+    float ux = ry*fz-rz*fy;
+    float uy = rz*fx-rx*fz;
+    float uz = rx*fy-ry*fx;
+    len = (float)Math.sqrt(ux*ux+uy*uy+uz*uz);
+    ux /= len; uy /= len; uz /= len;
+    dest.setIdentity();
+    dest.set(0, 0, rx);
+    dest.set(0, 1, ry);
+    dest.set(0, 2, rz);
+    dest.set(1, 0, ux);
+    dest.set(1, 1, uy);
+    dest.set(1, 2, uz);
+    dest.set(2, 0, -fx);
+    dest.set(2, 1, -fy);
+    dest.set(2, 2, -fz);
+    // view x translate(-from), folded into the last column
+    dest.set(0, 3, -(rx*from.x+ry*from.y+rz*from.z));
+    dest.set(1, 3, -(ux*from.x+uy*from.y+uz*from.z));
+    dest.set(2, 3, fx*from.x+fy*from.y+fz*from.z);
+    return dest;
   }
   
 } // end of class
\ No newline at end of file
@@ -0,0 +1,119 @@
+import benchmarks.Workload;
+import gmaths.*;
+import java.lang.reflect.Array;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import com.jogamp.opengl.*;
+
+/**
+ * Class for setting up the program's work for the benchmarks in the benchmarks package, which
+ * cannot refer to the program's classes themselves (see Workload). It is in the default package
+ * like the program, so it can also call package-private functions (e.g. Sphere.createVertices).
+ */
+public final class BenchmarkWorkloads {
+	private static final int TREE_BRANCHING = 4;
+
+	/**
+	 * Set up a workload. Called by Workload.create.
+	 *
+	 * @param name The name of the workload.
+	 * @param size The number of transform nodes in the scene (ignored by workloads without one).
+	 * @return The workload.
+	 */
+	public static Workload create(String name, int size) {
+		switch (name) {
+			case "TransformHierarchy.update/all": {
+				Scene scene = new Scene(size);
+				TransformNode top = scene.transforms.get(0);
+				Mat4 transform = new Mat4(top.getTransform());
+				return blackhole -> {
+					top.setTransform(transform);
+					scene.hierarchy.update();
+					blackhole.consume(SGNode.getRecomputedCount());
+				};
+			}
+			case "TransformHierarchy.update/leaf": {
+				Scene scene = new Scene(size);
+				TransformNode leaf = scene.transforms.get(size-1);
+				Mat4 transform = new Mat4(leaf.getTransform());
+				return blackhole -> {
+					leaf.setTransform(transform);
+					scene.hierarchy.update();
+					blackhole.consume(SGNode.getRecomputedCount());
+				};
+			}
+			case "TransformHierarchy.draw": {
+				Scene scene = new Scene(size);
+				Frustum frustum = scene.camera.getFrustum();
+				return blackhole -> {
+					scene.hierarchy.draw(scene.gl, frustum);
+					blackhole.consume(RenderQueue.size());
+					RenderQueue.clear();
+				};
+			}
+			case "Sphere.createVertices":
+				return blackhole -> blackhole.consume(Sphere.createVertices());
+			case "Sphere.createIndices":
+				return blackhole -> blackhole.consume(Sphere.createIndices());
+			case "MeshOptimizer.optimize/sphere":
+				return blackhole -> blackhole.consume(
+					MeshOptimizer.optimize(Sphere.vertices, Sphere.indices));
+			default:
+				throw new IllegalArgumentException("Unknown workload " + name);
+		}
+	}
+
+	/**
+	 * Class for a synthetic scene graph of transform nodes (each with a small translation and
+	 * rotation, and a cube model below it), filling each level before starting the next, compiled
+	 * into a TransformHierarchy and viewed by the default camera.
+	 */
+	private static final class Scene {
+		private final GL3 gl = noOpGL();
+		private final ArrayList<TransformNode> transforms;
+		private final TransformHierarchy hierarchy;
+		private final Camera camera;
+
+		/**
+		 * Constructor. Build the scene graph and compile it.
+		 *
+		 * @param size The number of transform nodes to create.
+		 */
+		private Scene(int size) {
+			ModelMultipleLights model = new ModelMultipleLights();
+			model.setMesh(new Mesh(gl, Cube.vertices, Cube.indices));
+			SGNode root = new NameNode("root");
+			transforms = new ArrayList<TransformNode>(size);
+			for (int i=0; i<size; i++) {
+				Mat4 t = Mat4Transform.translate(0.1f, 0.2f, 0.3f);
+				t.rotateAroundY(i % 360);
+				TransformNode node = new TransformNode("transform " + i, t);
+				node.addChild(new ModelNode("model " + i, model));
+				if (i == 0) root.addChild(node);
+				else transforms.get((i-1)/TREE_BRANCHING).addChild(node);
+				transforms.add(node);
+			}
+			hierarchy = new TransformHierarchy(root);
+			hierarchy.update();
+			// Looking past the side of the scene, so about half of the models are culled
+			camera = new Camera(new Vec3(0, 1, 6), new Vec3(8.5f, 1, 0), Camera.DEFAULT_UP);
+			camera.setPerspectiveMatrix(Mat4Transform.perspective(45, 16/9f));
+		}
+	}
+
+	/**
+	 * Make a GL3 whose functions do nothing (returning zero, false or null), so meshes can be made
+	 * without a GL context. The drawing benchmarks only queue draws, so never call it.
+	 *
+	 * @return The GL3.
+	 */
+	private static GL3 noOpGL() {
+		return (GL3)Proxy.newProxyInstance(GL3.class.getClassLoader(), new Class<?>[] {GL3.class},
+			(proxy, method, args) -> {
+				Class<?> type = method.getReturnType();
+				// The default value of a primitive type is read from a new array of it
+				return type.isPrimitive() && type != void.class
+					? Array.get(Array.newInstance(type, 1), 0) : null;
+			});
+	}
+}
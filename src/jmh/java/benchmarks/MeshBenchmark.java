@@ -0,0 +1,59 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for generating the sphere's vertices and indices and optimising its mesh (done for
+ * every level of detail when the scene is loaded).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MeshBenchmark {
+	private Workload createVertices, createIndices, optimize;
+
+	/**
+	 * Set up the workloads.
+	 */
+	@Setup
+	public void setUp() {
+		createVertices = Workload.create("Sphere.createVertices", 0);
+		createIndices = Workload.create("Sphere.createIndices", 0);
+		optimize = Workload.create("MeshOptimizer.optimize/sphere", 0);
+	}
+
+	/**
+	 * Generate the vertices of the full detail sphere.
+	 *
+	 * @param blackhole The blackhole consuming the results.
+	 */
+	@Benchmark
+	public void sphereVertices(Blackhole blackhole) {
+		createVertices.run(blackhole);
+	}
+
+	/**
+	 * Generate the indices of the full detail sphere.
+	 *
+	 * @param blackhole The blackhole consuming the results.
+	 */
+	@Benchmark
+	public void sphereIndices(Blackhole blackhole) {
+		createIndices.run(blackhole);
+	}
+
+	/**
+	 * Weld, remove degenerate triangles and reorder the full detail sphere for the vertex cache.
+	 *
+	 * @param blackhole The blackhole consuming the results.
+	 */
+	@Benchmark
+	public void optimizeSphere(Blackhole blackhole) {
+		optimize.run(blackhole);
+	}
+}
@@ -0,0 +1,63 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for updating and drawing a compiled scene graph (TransformHierarchy) of a given
+ * number of transform nodes, each with a model below it. Drawing only culls the models against
+ * the camera's frustum and queues the visible ones on the RenderQueue, so no GL context is needed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SceneGraphBenchmark {
+	@Param({"100", "1000", "10000", "100000"})
+	private int size;
+
+	private Workload updateAll, updateLeaf, draw;
+
+	/**
+	 * Build the scene for the current size.
+	 */
+	@Setup
+	public void setUp() {
+		updateAll = Workload.create("TransformHierarchy.update/all", size);
+		updateLeaf = Workload.create("TransformHierarchy.update/leaf", size);
+		draw = Workload.create("TransformHierarchy.draw", size);
+	}
+
+	/**
+	 * Change the top transform, so every world matrix (and bounding sphere) is recomputed.
+	 *
+	 * @param blackhole The blackhole consuming the results.
+	 */
+	@Benchmark
+	public void updateAll(Blackhole blackhole) {
+		updateAll.run(blackhole);
+	}
+
+	/**
+	 * Change one leaf transform, so only its world matrix is recomputed (and the bounding spheres).
+	 *
+	 * @param blackhole The blackhole consuming the results.
+	 */
+	@Benchmark
+	public void updateLeaf(Blackhole blackhole) {
+		updateLeaf.run(blackhole);
+	}
+
+	/**
+	 * Cull every model against the frustum and queue the visible ones.
+	 *
+	 * @param blackhole The blackhole consuming the results.
+	 */
+	@Benchmark
+	public void draw(Blackhole blackhole) {
+		draw.run(blackhole);
+	}
+}
@@ -0,0 +1,36 @@
+package benchmarks;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Interface for a piece of the program's work set up for benchmarking. The program's classes are
+ * in the default package, which JMH does not allow benchmarks in, and a class in a named package
+ * cannot refer to one in the default package. So the work is set up by BenchmarkWorkloads (in the
+ * default package) and handed to the benchmarks through this interface.
+ */
+public interface Workload {
+	/**
+	 * Run the work once.
+	 *
+	 * @param blackhole The blackhole to consume the results with, so they cannot be optimised away.
+	 */
+	void run(Blackhole blackhole);
+
+	/**
+	 * Set up a workload from BenchmarkWorkloads (found by reflection, as it is in the default
+	 * package).
+	 *
+	 * @param name The name of the workload.
+	 * @param size The number of transform nodes in the scene (ignored by workloads without one).
+	 * @return The workload.
+	 */
+	static Workload create(String name, int size) {
+		try {
+			return (Workload)Class.forName("BenchmarkWorkloads")
+				.getMethod("create", String.class, int.class).invoke(null, name, size);
+		}
+		catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Could not set up workload " + name, e);
+		}
+	}
+}
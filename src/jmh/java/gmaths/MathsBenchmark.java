@@ -0,0 +1,191 @@
+package gmaths;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for the matrix and vector maths used every frame. The allocating versions of the
+ * matrix functions are timed next to their allocation-free (Into) versions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MathsBenchmark {
+	private Mat4 a, b, nonUniform, dest;
+	private Mat3 normal;
+	private Vec3 u, v, target, up;
+	// Not final, so the angle cannot be folded into the rotations as a constant
+	private float angle = 30;
+
+	/**
+	 * Set up the matrices and vectors.
+	 */
+	@Setup
+	public void setUp() {
+		a = Mat4Transform.rotateAroundY(30);
+		a.translate(1, 2, 3);
+		b = Mat4Transform.rotateAroundX(45);
+		b.scale(2, 2, 2);
+		nonUniform = Mat4.multiply(a, Mat4Transform.scale(1, 2, 3));
+		dest = new Mat4();
+		normal = new Mat3();
+		u = new Vec3(1, 2, 3);
+		v = new Vec3(-4, 5, 0.5f);
+		target = new Vec3(0, 4, 0);
+		up = new Vec3(0, 1, 0);
+	}
+
+	/**
+	 * Multiply two matrices into a new matrix.
+	 *
+	 * @return The product.
+	 */
+	@Benchmark
+	public Mat4 multiply() {
+		return Mat4.multiply(a, b);
+	}
+
+	/**
+	 * Multiply two matrices into an existing matrix.
+	 *
+	 * @param blackhole The blackhole consuming the results.
+	 */
+	@Benchmark
+	public void multiplyInto(Blackhole blackhole) {
+		blackhole.consume(Mat4.multiplyInto(a, b, dest).get(0, 0));
+	}
+
+	/**
+	 * Compute the normal matrix of a rotation with a uniform scale.
+	 *
+	 * @param blackhole The blackhole consuming the results.
+	 */
+	@Benchmark
+	public void normalMatrixUniform(Blackhole blackhole) {
+		blackhole.consume(Mat3.normalMatrixInto(a, normal).get(1, 1));
+	}
+
+	/**
+	 * Compute the normal matrix of a transform with a non-uniform scale (the general inverse).
+	 *
+	 * @param blackhole The blackhole consuming the results.
+	 */
+	@Benchmark
+	public void normalMatrixGeneral(Blackhole blackhole) {
+		blackhole.consume(Mat3.normalMatrixInto(nonUniform, normal).get(1, 1));
+	}
+
+	/**
+	 * Get a matrix as a float array for GLSL.
+	 *
+	 * @return The array.
+	 */
+	@Benchmark
+	public float[] toFloatArrayForGLSL() {
+		return a.toFloatArrayForGLSL();
+	}
+
+	/**
+	 * Make a rotation around the x axis.
+	 *
+	 * @return The rotation.
+	 */
+	@Benchmark
+	public Mat4 rotateAroundX() {
+		return Mat4Transform.rotateAroundX(angle);
+	}
+
+	/**
+	 * Make a rotation around the y axis.
+	 *
+	 * @return The rotation.
+	 */
+	@Benchmark
+	public Mat4 rotateAroundY() {
+		return Mat4Transform.rotateAroundY(angle);
+	}
+
+	/**
+	 * Make a rotation around the z axis.
+	 *
+	 * @return The rotation.
+	 */
+	@Benchmark
+	public Mat4 rotateAroundZ() {
+		return Mat4Transform.rotateAroundZ(angle);
+	}
+
+	/**
+	 * Make a view matrix into a new matrix.
+	 *
+	 * @return The view matrix.
+	 */
+	@Benchmark
+	public Mat4 lookAt() {
+		return Mat4Transform.lookAt(u, target, up);
+	}
+
+	/**
+	 * Make a view matrix into an existing matrix.
+	 *
+	 * @param blackhole The blackhole consuming the results.
+	 */
+	@Benchmark
+	public void lookAtInto(Blackhole blackhole) {
+		blackhole.consume(Mat4Transform.lookAtInto(u, target, up, dest).get(0, 3));
+	}
+
+	/**
+	 * Make a perspective projection.
+	 *
+	 * @return The projection.
+	 */
+	@Benchmark
+	public Mat4 perspective() {
+		return Mat4Transform.perspective(45, 4/3f);
+	}
+
+	/**
+	 * Add two vectors.
+	 *
+	 * @return The sum.
+	 */
+	@Benchmark
+	public Vec3 add() {
+		return Vec3.add(u, v);
+	}
+
+	/**
+	 * Take the cross product of two vectors.
+	 *
+	 * @return The cross product.
+	 */
+	@Benchmark
+	public Vec3 crossProduct() {
+		return Vec3.crossProduct(u, v);
+	}
+
+	/**
+	 * Normalise a vector.
+	 *
+	 * @return The normalised vector.
+	 */
+	@Benchmark
+	public Vec3 normalize() {
+		return Vec3.normalize(v);
+	}
+
+	/**
+	 * Take the dot product of two vectors.
+	 *
+	 * @return The dot product.
+	 */
+	@Benchmark
+	public float dotProduct() {
+		return Vec3.dotProduct(u, v);
+	}
+}